@@ -48,6 +48,7 @@ import java.util.Collections;
  * <li>Listing all ad units for a custom channel</li>
  * <li>Listing all URL channels for an ad client</li>
  * <li>Running a report for an ad client, for the past 7 days</li>
+ * <li>Exporting a report for an ad client, for the past 7 days, to a CSV file</li>
  * <li>Running a paginated report for an ad client, for the past 7 days</li>
  * <li>Listing all saved reports for the account</li>
  * <li>Running a saved report for the account</li>
@@ -68,6 +69,10 @@ public class AdExchangeSellerSample {
   private static final java.io.File DATA_STORE_DIR =
       new java.io.File(System.getProperty("user.home"), ".store/adexchangeseller_sample");
 
+  /** File to export the CSV report to. */
+  private static final java.io.File REPORT_CSV_FILE =
+      new java.io.File(System.getProperty("user.home"), ".store/adexchangeseller_report.csv.gz");
+
   /**
    * Global instance of the {@link DataStoreFactory}. The best practice is to make it a single
    * globally shared instance across your application.
@@ -80,6 +85,7 @@ public class AdExchangeSellerSample {
   // Request parameters.
   private static final int MAX_LIST_PAGE_SIZE = 50;
   private static final int MAX_REPORT_PAGE_SIZE = 50;
+  private static final int MAX_REPORT_PAGES_IN_FLIGHT = 4;
 
   /** Global instance of the HTTP transport. */
   private static HttpTransport httpTransport;
@@ -159,7 +165,9 @@ public class AdExchangeSellerSample {
 
         GetAllUrlChannels.run(adExchangeSeller, exampleAdClientId, MAX_LIST_PAGE_SIZE);
         GenerateReport.run(adExchangeSeller, exampleAdClientId);
-        GenerateReportWithPaging.run(adExchangeSeller, exampleAdClientId, MAX_REPORT_PAGE_SIZE);
+        GenerateReportAsCsv.run(adExchangeSeller, exampleAdClientId, REPORT_CSV_FILE);
+        GenerateReportWithPaging.run(adExchangeSeller, exampleAdClientId, MAX_REPORT_PAGE_SIZE,
+            MAX_REPORT_PAGES_IN_FLIGHT);
       } else {
         System.out.println("No ad clients found, unable to run remaining methods.");
       }
@@ -18,12 +18,20 @@ import com.google.api.services.adexchangeseller.AdExchangeSeller;
 import com.google.api.services.adexchangeseller.AdExchangeSeller.Reports.Generate;
 import com.google.api.services.adexchangeseller.model.Report;
 
+import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * This example retrieves a report for the specified ad client.
@@ -32,6 +40,10 @@ import java.util.List;
  * constraints. If you need to retrieve more than 5000 rows, please check GenerateReport.java, as
  * due to current limitations you will not be able to use paging for large reports.
  *
+ * <p>Once the first page is in, the total number of rows and so the offsets of all remaining pages
+ * are known, so they can also be fetched several at a time (see
+ * {@link #run(AdExchangeSeller, String, long, int)}).
+ *
  * <p>Tags: reports.generate
  *
  * @author sgomes@google.com (Sérgio Gomes)
@@ -54,6 +66,22 @@ public class GenerateReportWithPaging {
    */
   public static void run(AdExchangeSeller adExchangeSeller, String adClientId,
       long maxReportPageSize) throws Exception {
+    run(adExchangeSeller, adClientId, maxReportPageSize, 1);
+  }
+
+  /**
+   * Runs this sample, fetching the pages after the first one concurrently. They are still displayed
+   * in order.
+   *
+   * @param adExchangeSeller AdExchangeSeller service object on which to run the requests.
+   * @param adClientId the ad client ID on which to run the report.
+   * @param maxReportPageSize the maximum size page to retrieve.
+   * @param pagesInFlight the maximum number of pages to request at the same time; 1 requests them
+   *        one after another.
+   * @throws Exception
+   */
+  public static void run(AdExchangeSeller adExchangeSeller, String adClientId,
+      long maxReportPageSize, int pagesInFlight) throws Exception {
     System.out.println("=================================================================");
     System.out.printf("Running report for ad client %s\n", adClientId);
     System.out.println("=================================================================");
@@ -67,17 +95,7 @@ public class GenerateReportWithPaging {
 
     String startDate = DATE_FORMATTER.format(oneWeekAgo);
     String endDate = DATE_FORMATTER.format(today);
-    Generate request = adExchangeSeller.reports().generate(startDate, endDate);
-
-    // Specify the desired ad client using a filter.
-    request.setFilter(Arrays.asList("AD_CLIENT_ID==" + escapeFilterParameter(adClientId)));
-
-    request.setMetric(Arrays.asList("PAGE_VIEWS", "AD_REQUESTS", "AD_REQUESTS_COVERAGE", "CLICKS",
-        "AD_REQUESTS_CTR", "COST_PER_CLICK", "AD_REQUESTS_RPM", "EARNINGS"));
-    request.setDimension(Arrays.asList("DATE"));
-
-    // Sort by ascending date.
-    request.setSort(Arrays.asList("+DATE"));
+    Generate request = newRequest(adExchangeSeller, adClientId, startDate, endDate);
 
     // Run first page of report.
     request.setMaxResults(maxReportPageSize);
@@ -88,11 +106,20 @@ public class GenerateReportWithPaging {
       return;
     }
 
-    // The first page, so display headers.
-    displayHeaders(response.getHeaders());
+    // The first page, so set up the report with its headers, and display it right away.
+    ColumnarReport report = ColumnarReport.fromResponse(response);
+    report.displayHeaders();
+    report.displayRows(0);
 
-    // Display first page results.
-    displayRows(response.getRows());
+    if (pagesInFlight > 1) {
+      if (!addRemainingPages(adExchangeSeller, adClientId, startDate, endDate, response, report,
+          maxReportPageSize, pagesInFlight)) {
+        System.out.printf("The report changed while it was being paged, so only its first %d rows "
+            + "are shown.\n", report.getRowCount());
+      }
+      System.out.println();
+      return;
+    }
 
     int totalRows = Math.min(response.getTotalMatchedRows().intValue(), ROW_LIMIT);
     for (long startIndex = response.getRows().size(); startIndex < totalRows;
@@ -112,35 +139,103 @@ public class GenerateReportWithPaging {
         break;
       }
 
-      // Display results.
-      displayRows(response.getRows());
+      // Add and display results.
+      int fromRow = report.getRowCount();
+      report.addRows(response.getRows());
+      report.displayRows(fromRow);
     }
-
     System.out.println();
   }
 
   /**
-   * Displays the headers for the report.
-   * @param headers The list of headers to be displayed.
+   * Prepares a request for the report, without the page to retrieve.
    */
-  private static void displayHeaders(List<Report.Headers> headers) {
-    for (Report.Headers header : headers) {
-      System.out.printf("%25s", header.getName());
-    }
-    System.out.println();
+  private static Generate newRequest(AdExchangeSeller adExchangeSeller, String adClientId,
+      String startDate, String endDate) throws IOException {
+    Generate request = adExchangeSeller.reports().generate(startDate, endDate);
+
+    // Specify the desired ad client using a filter.
+    request.setFilter(Arrays.asList("AD_CLIENT_ID==" + escapeFilterParameter(adClientId)));
+
+    request.setMetric(Arrays.asList("PAGE_VIEWS", "AD_REQUESTS", "AD_REQUESTS_COVERAGE", "CLICKS",
+        "AD_REQUESTS_CTR", "COST_PER_CLICK", "AD_REQUESTS_RPM", "EARNINGS"));
+    request.setDimension(Arrays.asList("DATE"));
+
+    // Sort by ascending date.
+    request.setSort(Arrays.asList("+DATE"));
+    return request;
   }
 
   /**
-   * Displays a list of rows for the report.
-   * @param rows The list of rows to display.
+   * Fetches the pages after the first one, adds them to the report and displays their rows, with
+   * up to {@code pagesInFlight} requests running at a time. Pages are added in order, each as soon
+   * as the ones before it have been: one that arrives early is held until then. If a page reports a
+   * different total than the first one, or holds fewer rows than requested, the report changed in
+   * between and the remaining pages are abandoned, as their offsets no longer match.
+   *
+   * @return whether all pages were added; {@code false} if the report changed.
    */
-  public static void displayRows(List<List<String>> rows) {
-    // Display results.
-    for (List<String> row : rows) {
-      for (String column : row) {
-        System.out.printf("%25s", column);
+  private static boolean addRemainingPages(final AdExchangeSeller adExchangeSeller,
+      final String adClientId, final String startDate, final String endDate, Report firstPage,
+      ColumnarReport report, long maxReportPageSize, int pagesInFlight) throws Exception {
+    Long totalMatchedRows = firstPage.getTotalMatchedRows();
+    long totalRows = Math.min(totalMatchedRows.longValue(), ROW_LIMIT);
+    long nextStartIndex = firstPage.getRows().size();
+
+    ExecutorService executor = Executors.newFixedThreadPool(pagesInFlight);
+    Deque<PendingPage> pending = new ArrayDeque<PendingPage>();
+    try {
+      while (nextStartIndex < totalRows || !pending.isEmpty()) {
+        // Keep requesting pages until as many as allowed are in flight.
+        while (nextStartIndex < totalRows && pending.size() < pagesInFlight) {
+          final long startIndex = nextStartIndex;
+          final long pageSize = Math.min(maxReportPageSize, totalRows - startIndex);
+          pending.addLast(new PendingPage(pageSize, executor.submit(new Callable<Report>() {
+            @Override
+            public Report call() throws Exception {
+              Generate request = newRequest(adExchangeSeller, adClientId, startDate, endDate);
+              request.setStartIndex(startIndex);
+              request.setMaxResults(pageSize);
+              return request.execute();
+            }
+          })));
+          nextStartIndex += pageSize;
+        }
+
+        // Add the earliest page, waiting for it if need be.
+        PendingPage page = pending.removeFirst();
+        Report response = page.get();
+        List<List<String>> rows = response.getRows();
+        if (!totalMatchedRows.equals(response.getTotalMatchedRows()) || rows == null
+            || rows.size() != page.pageSize) {
+          return false;
+        }
+        int fromRow = report.getRowCount();
+        report.addRows(rows);
+        report.displayRows(fromRow);
+      }
+      return true;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /** A page of the report that has been requested, and the number of rows requested. */
+  private static final class PendingPage {
+    final long pageSize;
+    final Future<Report> response;
+
+    PendingPage(long pageSize, Future<Report> response) {
+      this.pageSize = pageSize;
+      this.response = response;
+    }
+
+    Report get() throws Exception {
+      try {
+        return response.get();
+      } catch (ExecutionException e) {
+        throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
       }
-      System.out.println();
     }
   }
 
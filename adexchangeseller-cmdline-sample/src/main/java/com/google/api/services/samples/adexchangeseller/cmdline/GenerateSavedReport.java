@@ -22,7 +22,6 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.List;
 
 /**
  * This example retrieves a saved report for the default account.
@@ -59,20 +58,10 @@ public class GenerateSavedReport {
     Report response = request.execute();
 
     if (response.getRows() != null && !response.getRows().isEmpty()) {
-      // Display headers.
-      for (Report.Headers header : response.getHeaders()) {
-        System.out.printf("%25s", header.getName());
-      }
-      System.out.println();
+      ColumnarReport report = ColumnarReport.fromResponse(response);
 
       // Display results.
-      for (List<String> row : response.getRows()) {
-        for (String column : row) {
-          System.out.printf("%25s", column);
-        }
-        System.out.println();
-      }
-
+      report.display();
       System.out.println();
     } else {
       System.out.println("No rows returned.");
@@ -51,7 +51,8 @@ import java.util.Collections;
  * <li>Listing all custom channels for an ad client</li>
  * <li>Listing all ad units for a custom channel</li>
  * <li>Listing all URL channels for an ad client</li>
- * <li>Running a report for an ad client, for the past 7 days</li>
+ * <li>Running a report for an ad client, for the past 7 days, with the final days cached</li>
+ * <li>Exporting a report for an ad client, for the past 7 days, to a CSV file</li>
  * <li>Running a paginated report for an ad client, for the past 7 days</li>
  * <li>Listing all saved reports for the default account</li>
  * <li>Running a saved report for the default account</li>
@@ -59,6 +60,7 @@ import java.util.Collections;
  * <li>Listing all dimensions for the default account</li>
  * <li>Listing all metrics for the default account</li>
  * <li>Listing all alerts for the default account</li>
+ * <li>Crawling the whole inventory into a snapshot file</li>
  * </ul>
  */
 public class AdSenseSample {
@@ -73,6 +75,18 @@ public class AdSenseSample {
   private static final java.io.File DATA_STORE_DIR =
       new java.io.File(System.getProperty("user.home"), ".store/adsense_management_sample");
 
+  /** Directory to store the final days of reports in. */
+  private static final java.io.File REPORT_CACHE_DIR =
+      new java.io.File(System.getProperty("user.home"), ".store/adsense_report_cache");
+
+  /** File to export the CSV report to. */
+  private static final java.io.File REPORT_CSV_FILE =
+      new java.io.File(System.getProperty("user.home"), ".store/adsense_report.csv.gz");
+
+  /** File to write the inventory snapshot to. */
+  private static final java.io.File INVENTORY_SNAPSHOT_FILE =
+      new java.io.File(System.getProperty("user.home"), ".store/adsense_inventory.json");
+
   /**
    * Global instance of the {@link DataStoreFactory}. The best practice is to make it a single
    * globally shared instance across your application.
@@ -85,6 +99,11 @@ public class AdSenseSample {
   // Request parameters.
   private static final int MAX_LIST_PAGE_SIZE = 50;
   private static final int MAX_REPORT_PAGE_SIZE = 50;
+  private static final int MAX_REPORT_PAGES_IN_FLIGHT = 4;
+  // Days, counting back from today, whose report data may still change.
+  private static final int REPORT_FINALIZATION_DAYS = 3;
+  private static final int CRAWL_THREADS = 8;
+  private static final double CRAWL_REQUESTS_PER_SECOND = 5;
 
   /** Global instance of the HTTP transport. */
   private static HttpTransport httpTransport;
@@ -170,8 +189,11 @@ public class AdSenseSample {
         }
 
         GetAllUrlChannels.run(adsense, exampleAdClientId, MAX_LIST_PAGE_SIZE);
-        GenerateReport.run(adsense, exampleAdClientId);
-        GenerateReportWithPaging.run(adsense, exampleAdClientId, MAX_REPORT_PAGE_SIZE);
+        GenerateReport.run(adsense, exampleAdClientId,
+            new ReportCache(REPORT_CACHE_DIR, REPORT_FINALIZATION_DAYS));
+        GenerateReportAsCsv.run(adsense, exampleAdClientId, REPORT_CSV_FILE);
+        GenerateReportWithPaging.run(
+            adsense, exampleAdClientId, MAX_REPORT_PAGE_SIZE, MAX_REPORT_PAGES_IN_FLIGHT);
       } else {
         System.out.println("No ad clients found, unable to run remaining methods.");
       }
@@ -192,6 +214,9 @@ public class AdSenseSample {
 
       GetAllAlerts.run(adsense);
 
+      CrawlInventory.run(adsense, INVENTORY_SNAPSHOT_FILE, MAX_LIST_PAGE_SIZE, CRAWL_THREADS,
+          CRAWL_REQUESTS_PER_SECOND);
+
     } catch (IOException e) {
       System.err.println(e.getMessage());
     } catch (Throwable t) {
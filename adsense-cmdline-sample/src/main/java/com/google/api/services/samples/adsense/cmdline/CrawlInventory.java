@@ -0,0 +1,446 @@
+/*
+ * Copyright (c) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonGenerator;
+import com.google.api.client.util.Charsets;
+import com.google.api.client.util.DateTime;
+import com.google.api.client.util.Key;
+import com.google.api.services.adsense.AdSense;
+import com.google.api.services.adsense.model.Account;
+import com.google.api.services.adsense.model.Accounts;
+import com.google.api.services.adsense.model.AdClient;
+import com.google.api.services.adsense.model.AdClients;
+import com.google.api.services.adsense.model.AdUnit;
+import com.google.api.services.adsense.model.AdUnits;
+import com.google.api.services.adsense.model.CustomChannel;
+import com.google.api.services.adsense.model.CustomChannels;
+import com.google.api.services.adsense.model.UrlChannel;
+import com.google.api.services.adsense.model.UrlChannels;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * This example crawls the whole inventory of the user: every account, the ad clients of each
+ * account, and the ad units, custom channels and URL channels of each ad client. It then writes a
+ * snapshot of the inventory to a JSON file.
+ *
+ * The tree is walked one level at a time, with the lists of all the nodes of a level requested
+ * concurrently. All requests share a budget of requests per second, so the crawl stays within the
+ * API quota however many threads it runs. A list that fails, e.g. for a disapproved account, is
+ * recorded as an error in the snapshot rather than stopping the crawl.
+ *
+ * Tags: accounts.list, accounts.adclients.list, accounts.adunits.list,
+ * accounts.customchannels.list, accounts.urlchannels.list
+ *
+ */
+public class CrawlInventory {
+
+  /** The inventory of the user, as written to the snapshot file. */
+  public static class Snapshot extends GenericJson {
+    @Key
+    private DateTime crawlTime;
+    @Key
+    private List<AccountNode> accounts;
+
+    public DateTime getCrawlTime() {
+      return crawlTime;
+    }
+
+    public List<AccountNode> getAccounts() {
+      return accounts;
+    }
+  }
+
+  /** An account with its ad clients. */
+  public static class AccountNode extends GenericJson {
+    @Key
+    private Account account;
+    @Key
+    private List<AdClientNode> adClients;
+    @Key
+    private List<String> errors;
+
+    public Account getAccount() {
+      return account;
+    }
+
+    public List<AdClientNode> getAdClients() {
+      return adClients;
+    }
+
+    public List<String> getErrors() {
+      return errors;
+    }
+  }
+
+  /** An ad client with its ad units, custom channels and URL channels. */
+  public static class AdClientNode extends GenericJson {
+    @Key
+    private AdClient adClient;
+    @Key
+    private List<AdUnit> adUnits;
+    @Key
+    private List<CustomChannel> customChannels;
+    @Key
+    private List<UrlChannel> urlChannels;
+    @Key
+    private List<String> errors;
+
+    public AdClient getAdClient() {
+      return adClient;
+    }
+
+    public List<AdUnit> getAdUnits() {
+      return adUnits;
+    }
+
+    public List<CustomChannel> getCustomChannels() {
+      return customChannels;
+    }
+
+    public List<UrlChannel> getUrlChannels() {
+      return urlChannels;
+    }
+
+    public List<String> getErrors() {
+      return errors;
+    }
+  }
+
+  private final AdSense adsense;
+  private final int maxPageSize;
+  private final RequestBudget budget;
+
+  private CrawlInventory(AdSense adsense, int maxPageSize, double requestsPerSecond) {
+    this.adsense = adsense;
+    this.maxPageSize = maxPageSize;
+    this.budget = new RequestBudget(requestsPerSecond);
+  }
+
+  /**
+   * Runs this sample.
+   *
+   * @param adsense AdSense service object on which to run the requests.
+   * @param snapshotFile the file to write the snapshot to.
+   * @param maxPageSize the maximum page size to retrieve.
+   * @param threads the maximum number of requests in flight.
+   * @param requestsPerSecond the maximum rate at which requests are started.
+   * @return the snapshot.
+   * @throws Exception
+   */
+  public static Snapshot run(AdSense adsense, File snapshotFile, int maxPageSize, int threads,
+      double requestsPerSecond) throws Exception {
+    System.out.println("=================================================================");
+    System.out.printf("Crawling the inventory into %s\n", snapshotFile);
+    System.out.println("=================================================================");
+
+    long start = System.currentTimeMillis();
+    CrawlInventory crawler = new CrawlInventory(adsense, maxPageSize, requestsPerSecond);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    Snapshot snapshot;
+    try {
+      snapshot = crawler.crawl(executor);
+    } finally {
+      executor.shutdownNow();
+    }
+    writeSnapshot(adsense, snapshot, snapshotFile);
+
+    int adClientCount = 0;
+    int adUnitCount = 0;
+    int customChannelCount = 0;
+    int urlChannelCount = 0;
+    int errorCount = 0;
+    for (AccountNode accountNode : snapshot.accounts) {
+      errorCount += accountNode.errors.size();
+      for (AdClientNode adClientNode : accountNode.adClients) {
+        adClientCount++;
+        adUnitCount += adClientNode.adUnits.size();
+        customChannelCount += adClientNode.customChannels.size();
+        urlChannelCount += adClientNode.urlChannels.size();
+        errorCount += adClientNode.errors.size();
+      }
+    }
+    System.out.printf("Crawled %d accounts, %d ad clients, %d ad units, %d custom channels and %d "
+        + "URL channels with %d requests in %.1f s.\n", snapshot.accounts.size(), adClientCount,
+        adUnitCount, customChannelCount, urlChannelCount, crawler.budget.getRequestCount(),
+        (System.currentTimeMillis() - start) / 1000.0);
+    if (errorCount > 0) {
+      System.out.printf("%d lists failed; see the errors in the snapshot.\n", errorCount);
+    }
+
+    System.out.println();
+    return snapshot;
+  }
+
+  private Snapshot crawl(ExecutorService executor) throws Exception {
+    Snapshot snapshot = new Snapshot();
+    snapshot.crawlTime = new DateTime(System.currentTimeMillis());
+    snapshot.accounts = new ArrayList<AccountNode>();
+    for (Account account : listAccounts()) {
+      AccountNode accountNode = new AccountNode();
+      accountNode.account = account;
+      accountNode.adClients = new ArrayList<AdClientNode>();
+      accountNode.errors = newErrorList();
+      snapshot.accounts.add(accountNode);
+    }
+
+    // The ad clients of each account.
+    List<Future<?>> futures = new ArrayList<Future<?>>();
+    for (final AccountNode accountNode : snapshot.accounts) {
+      futures.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          try {
+            for (AdClient adClient : listAdClients(accountNode.account.getId())) {
+              AdClientNode adClientNode = new AdClientNode();
+              adClientNode.adClient = adClient;
+              adClientNode.adUnits = new ArrayList<AdUnit>();
+              adClientNode.customChannels = new ArrayList<CustomChannel>();
+              adClientNode.urlChannels = new ArrayList<UrlChannel>();
+              adClientNode.errors = newErrorList();
+              accountNode.adClients.add(adClientNode);
+            }
+          } catch (IOException e) {
+            accountNode.errors.add("adClients: " + e.getMessage());
+          }
+          return null;
+        }
+      }));
+    }
+    awaitAll(futures);
+
+    // The ad units, custom channels and URL channels of each ad client.
+    futures.clear();
+    for (AccountNode accountNode : snapshot.accounts) {
+      final String accountId = accountNode.account.getId();
+      for (final AdClientNode adClientNode : accountNode.adClients) {
+        final String adClientId = adClientNode.adClient.getId();
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            try {
+              adClientNode.adUnits.addAll(listAdUnits(accountId, adClientId));
+            } catch (IOException e) {
+              adClientNode.errors.add("adUnits: " + e.getMessage());
+            }
+            return null;
+          }
+        }));
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            try {
+              adClientNode.customChannels.addAll(listCustomChannels(accountId, adClientId));
+            } catch (IOException e) {
+              adClientNode.errors.add("customChannels: " + e.getMessage());
+            }
+            return null;
+          }
+        }));
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            try {
+              adClientNode.urlChannels.addAll(listUrlChannels(accountId, adClientId));
+            } catch (IOException e) {
+              adClientNode.errors.add("urlChannels: " + e.getMessage());
+            }
+            return null;
+          }
+        }));
+      }
+    }
+    awaitAll(futures);
+    return snapshot;
+  }
+
+  private static List<String> newErrorList() {
+    // The lists of an ad client are requested on separate threads.
+    return Collections.synchronizedList(new ArrayList<String>());
+  }
+
+  /** Waits for all tasks, rethrowing the first failure that is not an API error. */
+  private static void awaitAll(List<Future<?>> futures) throws Exception {
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof Exception) {
+          throw (Exception) cause;
+        }
+        throw (Error) cause;
+      }
+    }
+  }
+
+  private List<Account> listAccounts() throws IOException, InterruptedException {
+    List<Account> items = new ArrayList<Account>();
+    String pageToken = null;
+    do {
+      budget.acquire();
+      Accounts page = adsense.accounts().list()
+          .setMaxResults(maxPageSize)
+          .setPageToken(pageToken)
+          .execute();
+      if (page.getItems() != null) {
+        items.addAll(page.getItems());
+      }
+      pageToken = page.getNextPageToken();
+    } while (pageToken != null);
+    return items;
+  }
+
+  private List<AdClient> listAdClients(String accountId) throws IOException, InterruptedException {
+    List<AdClient> items = new ArrayList<AdClient>();
+    String pageToken = null;
+    do {
+      budget.acquire();
+      AdClients page = adsense.accounts().adclients().list(accountId)
+          .setMaxResults(maxPageSize)
+          .setPageToken(pageToken)
+          .execute();
+      if (page.getItems() != null) {
+        items.addAll(page.getItems());
+      }
+      pageToken = page.getNextPageToken();
+    } while (pageToken != null);
+    return items;
+  }
+
+  private List<AdUnit> listAdUnits(String accountId, String adClientId)
+      throws IOException, InterruptedException {
+    List<AdUnit> items = new ArrayList<AdUnit>();
+    String pageToken = null;
+    do {
+      budget.acquire();
+      AdUnits page = adsense.accounts().adunits().list(accountId, adClientId)
+          .setMaxResults(maxPageSize)
+          .setPageToken(pageToken)
+          .execute();
+      if (page.getItems() != null) {
+        items.addAll(page.getItems());
+      }
+      pageToken = page.getNextPageToken();
+    } while (pageToken != null);
+    return items;
+  }
+
+  private List<CustomChannel> listCustomChannels(String accountId, String adClientId)
+      throws IOException, InterruptedException {
+    List<CustomChannel> items = new ArrayList<CustomChannel>();
+    String pageToken = null;
+    do {
+      budget.acquire();
+      CustomChannels page = adsense.accounts().customchannels().list(accountId, adClientId)
+          .setMaxResults(maxPageSize)
+          .setPageToken(pageToken)
+          .execute();
+      if (page.getItems() != null) {
+        items.addAll(page.getItems());
+      }
+      pageToken = page.getNextPageToken();
+    } while (pageToken != null);
+    return items;
+  }
+
+  private List<UrlChannel> listUrlChannels(String accountId, String adClientId)
+      throws IOException, InterruptedException {
+    List<UrlChannel> items = new ArrayList<UrlChannel>();
+    String pageToken = null;
+    do {
+      budget.acquire();
+      UrlChannels page = adsense.accounts().urlchannels().list(accountId, adClientId)
+          .setMaxResults(maxPageSize)
+          .setPageToken(pageToken)
+          .execute();
+      if (page.getItems() != null) {
+        items.addAll(page.getItems());
+      }
+      pageToken = page.getNextPageToken();
+    } while (pageToken != null);
+    return items;
+  }
+
+  /**
+   * Writes the snapshot to a temporary file first, so that a failed write leaves the previous
+   * snapshot in place.
+   */
+  private static void writeSnapshot(AdSense adsense, Snapshot snapshot, File snapshotFile)
+      throws IOException {
+    File tempFile = new File(snapshotFile.getPath() + ".tmp");
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile));
+    try {
+      JsonGenerator generator = adsense.getJsonFactory().createJsonGenerator(out, Charsets.UTF_8);
+      generator.enablePrettyPrint();
+      generator.serialize(snapshot);
+      generator.flush();
+    } finally {
+      out.close();
+    }
+    if (!tempFile.renameTo(snapshotFile)
+        && !(snapshotFile.delete() && tempFile.renameTo(snapshotFile))) {
+      throw new IOException("Unable to replace " + snapshotFile);
+    }
+  }
+
+  /** Spaces the starts of requests evenly, to at most a given number per second. */
+  private static final class RequestBudget {
+    private final long intervalNanos;
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private long nextStartNanos = System.nanoTime();
+
+    RequestBudget(double requestsPerSecond) {
+      if (requestsPerSecond <= 0) {
+        throw new IllegalArgumentException("requestsPerSecond must be positive");
+      }
+      intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond);
+    }
+
+    /** Waits until the next request may start. */
+    void acquire() throws InterruptedException {
+      long waitNanos;
+      synchronized (this) {
+        long now = System.nanoTime();
+        long start = Math.max(now, nextStartNanos);
+        nextStartNanos = start + intervalNanos;
+        waitNanos = start - now;
+      }
+      requestCount.incrementAndGet();
+      TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+
+    int getRequestCount() {
+      return requestCount.get();
+    }
+  }
+}
@@ -26,7 +26,8 @@ import java.util.Date;
 import java.util.List;
 
 /**
- * This example retrieves a report, using a filter for a specified ad client.
+ * This example retrieves a report, using a filter for a specified ad client. Optionally, the days
+ * whose data is final are taken from a local {@link ReportCache}.
  *
  * Tags: reports.generate
  *
@@ -37,6 +38,11 @@ public class GenerateReport {
 
   static final DateFormat DATE_FORMATTER = new SimpleDateFormat("yyyy-MM-dd");
 
+  static final List<String> METRICS = Arrays.asList("PAGE_VIEWS", "AD_REQUESTS",
+      "AD_REQUESTS_COVERAGE", "CLICKS", "AD_REQUESTS_CTR", "COST_PER_CLICK", "AD_REQUESTS_RPM",
+      "EARNINGS");
+  static final List<String> DIMENSIONS = Arrays.asList("DATE");
+
   /**
    * Runs this sample.
    * @param adsense AdSense service object on which to run the requests.
@@ -44,6 +50,19 @@ public class GenerateReport {
    * @throws Exception
    */
   public static void run(AdSense adsense, String adClientId) throws Exception {
+    run(adsense, adClientId, null);
+  }
+
+  /**
+   * Runs this sample, taking the days whose data is final from a cache.
+   * @param adsense AdSense service object on which to run the requests.
+   * @param adClientId the ad client ID on which to run the report.
+   * @param cache the cache to take final days from and store them in, or {@code null} to request
+   *        all days.
+   * @throws Exception if the report can't be generated; with a cache, that includes a report over
+   *         the API's row limit, which is not cached in pieces.
+   */
+  public static void run(AdSense adsense, String adClientId, ReportCache cache) throws Exception {
     System.out.println("=================================================================");
     System.out.printf("Running report for ad client %s\n", adClientId);
     System.out.println("=================================================================");
@@ -55,38 +74,41 @@ public class GenerateReport {
     calendar.add(Calendar.DATE, -7);
     Date oneWeekAgo = calendar.getTime();
 
-    String startDate = DATE_FORMATTER.format(oneWeekAgo);
-    String endDate = DATE_FORMATTER.format(today);
-    Generate request = adsense.reports().generate(startDate, endDate);
-
-    // Specify the desired ad client using a filter.
-    request.setFilter(Arrays.asList("AD_CLIENT_ID==" + escapeFilterParameter(adClientId)));
+    ColumnarReport report;
+    if (cache != null) {
+      // Request only the days that are not final yet, or not cached yet.
+      int daysFromDisk = cache.getDaysFromDisk();
+      int daysFromApi = cache.getDaysFromApi();
+      report = cache.generate(adsense, adClientId, DIMENSIONS, METRICS, oneWeekAgo, today);
+      System.out.printf("Loaded %d days from the cache and requested %d days.\n",
+          cache.getDaysFromDisk() - daysFromDisk, cache.getDaysFromApi() - daysFromApi);
+    } else {
+      String startDate = DATE_FORMATTER.format(oneWeekAgo);
+      String endDate = DATE_FORMATTER.format(today);
+      Generate request = adsense.reports().generate(startDate, endDate);
 
-    request.setMetric(Arrays.asList("PAGE_VIEWS", "AD_REQUESTS", "AD_REQUESTS_COVERAGE", "CLICKS",
-        "AD_REQUESTS_CTR", "COST_PER_CLICK", "AD_REQUESTS_RPM", "EARNINGS"));
-    request.setDimension(Arrays.asList("DATE"));
+      // Specify the desired ad client using a filter.
+      request.setFilter(Arrays.asList("AD_CLIENT_ID==" + escapeFilterParameter(adClientId)));
 
-    // Sort by ascending date.
-    request.setSort(Arrays.asList("+DATE"));
+      request.setMetric(METRICS);
+      request.setDimension(DIMENSIONS);
 
-    // Run report.
-    AdsenseReportsGenerateResponse response = request.execute();
+      // Sort by ascending date.
+      request.setSort(Arrays.asList("+DATE"));
 
-    if (response.getRows() != null && !response.getRows().isEmpty()) {
-      // Display headers.
-      for (AdsenseReportsGenerateResponse.Headers header : response.getHeaders()) {
-        System.out.printf("%25s", header.getName());
-      }
-      System.out.println();
+      // Run report.
+      AdsenseReportsGenerateResponse response = request.execute();
+      report = ColumnarReport.fromResponse(response);
+    }
 
+    if (report.getRowCount() > 0) {
       // Display results.
-      for (List<String> row : response.getRows()) {
-        for (String column : row) {
-          System.out.printf("%25s", column);
-        }
-        System.out.println();
-        }
+      report.display();
+      System.out.println();
 
+      // Roll up the metrics from the report's columns, without reparsing any values.
+      System.out.printf("Total clicks: %d, total earnings: %.2f\n",
+          (long) report.sum("CLICKS"), report.sum("EARNINGS"));
       System.out.println();
     } else {
       System.out.println("No rows returned.");
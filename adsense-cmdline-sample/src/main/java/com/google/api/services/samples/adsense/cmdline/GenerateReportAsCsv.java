@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import com.google.api.client.http.HttpResponse;
+import com.google.api.services.adsense.AdSense;
+import com.google.api.services.adsense.AdSense.Reports.Generate;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This example exports a report for a specified ad client to a CSV file.
+ *
+ * The report is requested with alt=csv, and the bytes of the response are copied to the file
+ * through a large buffer, without ever being parsed into model objects. The client accepts gzip,
+ * so the response is transferred compressed and inflated as it is read. If the name of the file
+ * ends in ".gz", the file is written compressed too.
+ *
+ * Tags: reports.generate
+ *
+ */
+public class GenerateReportAsCsv {
+
+  // Size of the buffer the response is copied through.
+  private static final int BUFFER_SIZE = 1024 * 1024;
+
+  /**
+   * Runs this sample.
+   * @param adsense AdSense service object on which to run the requests.
+   * @param adClientId the ad client ID on which to run the report.
+   * @param file the file to write the CSV to.
+   * @return the number of bytes of CSV exported.
+   * @throws Exception
+   */
+  public static long run(AdSense adsense, String adClientId, File file) throws Exception {
+    System.out.println("=================================================================");
+    System.out.printf("Exporting report for ad client %s to %s\n", adClientId, file);
+    System.out.println("=================================================================");
+
+    // Prepare report.
+    Date today = new Date();
+    Calendar calendar = Calendar.getInstance();
+    calendar.setTime(today);
+    calendar.add(Calendar.DATE, -7);
+    Date oneWeekAgo = calendar.getTime();
+
+    String startDate = GenerateReport.DATE_FORMATTER.format(oneWeekAgo);
+    String endDate = GenerateReport.DATE_FORMATTER.format(today);
+    Generate request = adsense.reports().generate(startDate, endDate);
+
+    // Specify the desired ad client using a filter.
+    request.setFilter(
+        Arrays.asList("AD_CLIENT_ID==" + GenerateReport.escapeFilterParameter(adClientId)));
+
+    request.setMetric(GenerateReport.METRICS);
+    request.setDimension(GenerateReport.DIMENSIONS);
+
+    // Sort by ascending date.
+    request.setSort(Arrays.asList("+DATE"));
+
+    // Run report, straight into the file.
+    long start = System.currentTimeMillis();
+    long byteCount;
+    OutputStream out = new FileOutputStream(file);
+    try {
+      if (file.getName().endsWith(".gz")) {
+        out = new GZIPOutputStream(out, BUFFER_SIZE);
+      }
+      byteCount = export(request, out);
+    } finally {
+      out.close();
+    }
+
+    System.out.printf("Exported %d bytes of CSV in %.1f s.\n", byteCount,
+        (System.currentTimeMillis() - start) / 1000.0);
+    System.out.println();
+    return byteCount;
+  }
+
+  /**
+   * Runs a report request as CSV and copies the response to a stream, which is left open.
+   * @param request the report request.
+   * @param out the stream to copy the CSV to.
+   * @return the number of bytes of CSV copied.
+   * @throws IOException
+   */
+  public static long export(Generate request, OutputStream out) throws IOException {
+    // The media methods would replace alt=csv with alt=media, so the response is taken unparsed.
+    request.setAlt("csv");
+    HttpResponse response = request.executeUnparsed();
+    try {
+      InputStream in = response.getContent();
+      byte[] buffer = new byte[BUFFER_SIZE];
+      long byteCount = 0;
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+        byteCount += read;
+      }
+      out.flush();
+      return byteCount;
+    } finally {
+      response.disconnect();
+    }
+  }
+}
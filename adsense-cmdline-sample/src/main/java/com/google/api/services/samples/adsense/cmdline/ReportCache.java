@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import com.google.api.services.adsense.AdSense;
+import com.google.api.services.adsense.AdSense.Reports.Generate;
+import com.google.api.services.adsense.model.AdsenseReportsGenerateResponse;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * A local cache of reports with a DATE dimension, stored in one file per day.
+ *
+ * <p>Reports are keyed by ad client, dimensions and metrics. The data of a day may still change
+ * until the day is older than the finalization window; only days older than that are stored. A
+ * report for a range of dates then requests just the days that are not stored, one call per run of
+ * consecutive such days, which for a dashboard of the last few days is a single call for the days
+ * still within the window, and merges in the others from disk.
+ *
+ * <p>Reports are requested without {@code useTimezoneReporting}, so their dates are days in the
+ * Pacific time zone, whatever the time zones of the account and of this machine, and the window is
+ * counted back from today in that zone.
+ *
+ * <p>Each day is stored in the binary form of {@link ColumnarReport#write}, and is loaded by
+ * memory-mapping its file and copying each column out of the mapping in bulk, with no parsing of
+ * values.
+ */
+public class ReportCache {
+
+  private static final String PARTITION_SUFFIX = ".report";
+
+  /** The time zone of report dates when {@code useTimezoneReporting} isn't set. */
+  private static final TimeZone REPORT_TIME_ZONE = TimeZone.getTimeZone("America/Los_Angeles");
+
+  private final File directory;
+  private final int finalizationDays;
+  private int daysFromDisk;
+  private int daysFromApi;
+
+  /**
+   * Creates a cache.
+   *
+   * @param directory the directory to store the reports in.
+   * @param finalizationDays the number of days, counting back from today, whose data may still
+   *        change.
+   */
+  public ReportCache(File directory, int finalizationDays) {
+    if (finalizationDays < 1) {
+      throw new IllegalArgumentException("finalizationDays must be at least 1, since the data of "
+          + "today always changes");
+    }
+    this.directory = directory;
+    this.finalizationDays = finalizationDays;
+  }
+
+  /**
+   * Returns a report for an ad client, from the stored days and one request for each run of
+   * consecutive other days.
+   *
+   * @param adsense AdSense service object on which to run the request.
+   * @param adClientId the ad client ID on which to run the report.
+   * @param dimensions the dimensions of the report, which must include DATE.
+   * @param metrics the metrics of the report.
+   * @param startDate the first day of the report.
+   * @param endDate the last day of the report.
+   * @return the report, with rows in ascending order of date.
+   * @throws IOException if a request fails, or returns fewer rows than the report has; a report
+   *         over the API's row limit is not cached in pieces.
+   */
+  public ColumnarReport generate(AdSense adsense, String adClientId, List<String> dimensions,
+      List<String> metrics, Date startDate, Date endDate) throws IOException {
+    if (!dimensions.contains("DATE")) {
+      throw new IllegalArgumentException("Only reports with a DATE dimension can be cached");
+    }
+    SimpleDateFormat reportDateFormatter = new SimpleDateFormat("yyyy-MM-dd");
+    reportDateFormatter.setTimeZone(REPORT_TIME_ZONE);
+    Calendar reportCalendar = Calendar.getInstance(REPORT_TIME_ZONE);
+    reportCalendar.add(Calendar.DATE, -finalizationDays);
+    String lastFinalDay = reportDateFormatter.format(reportCalendar.getTime());
+    SimpleDateFormat dateFormatter = new SimpleDateFormat("yyyy-MM-dd");
+    Calendar calendar = Calendar.getInstance();
+    File reportDirectory = new File(directory, keyOf(adClientId, dimensions, metrics));
+
+    // Find the days that must be requested.
+    List<String> days = new ArrayList<String>();
+    List<String> missingDays = new ArrayList<String>();
+    calendar.setTime(startDate);
+    String lastDay = dateFormatter.format(endDate);
+    String day = dateFormatter.format(startDate);
+    while (day.compareTo(lastDay) <= 0) {
+      days.add(day);
+      if (day.compareTo(lastFinalDay) > 0 || !partitionFile(reportDirectory, day).exists()) {
+        missingDays.add(day);
+      }
+      calendar.add(Calendar.DATE, 1);
+      day = dateFormatter.format(calendar.getTime());
+    }
+    if (days.isEmpty()) {
+      throw new IllegalArgumentException("The end date is before the start date");
+    }
+
+    // Request each run of consecutive missing days, and store the days that are final.
+    Map<String, ColumnarReport> requested = new HashMap<String, ColumnarReport>();
+    int runStart = 0;
+    while (runStart < missingDays.size()) {
+      int runEnd = runStart + 1;
+      int firstIndex = days.indexOf(missingDays.get(runStart));
+      while (runEnd < missingDays.size()
+          && missingDays.get(runEnd).equals(days.get(firstIndex + runEnd - runStart))) {
+        runEnd++;
+      }
+      List<String> run = missingDays.subList(runStart, runEnd);
+      AdsenseReportsGenerateResponse response = newRequest(adsense, adClientId, dimensions,
+          metrics, run.get(0), run.get(run.size() - 1)).execute();
+      Map<String, ColumnarReport> partitions = splitByDate(response);
+      reportDirectory.mkdirs();
+      for (String requestedDay : run) {
+        ColumnarReport partition = partitions.get(requestedDay);
+        if (partition == null) {
+          // A day without rows is stored too, so it is not requested again.
+          partition = ColumnarReport.fromHeaders(response.getHeaders());
+        }
+        requested.put(requestedDay, partition);
+        if (requestedDay.compareTo(lastFinalDay) <= 0) {
+          writePartition(reportDirectory, requestedDay, partition);
+        }
+      }
+      runStart = runEnd;
+    }
+
+    // Merge the days in order.
+    ColumnarReport report = null;
+    for (String reportDay : days) {
+      ColumnarReport partition = requested.get(reportDay);
+      if (partition != null) {
+        daysFromApi++;
+      } else {
+        partition = readPartition(reportDirectory, reportDay);
+        daysFromDisk++;
+      }
+      if (report == null) {
+        report = partition;
+      } else {
+        report.addAll(partition);
+      }
+    }
+    return report;
+  }
+
+  /** Returns the number of days loaded from disk since this cache was created. */
+  public int getDaysFromDisk() {
+    return daysFromDisk;
+  }
+
+  /** Returns the number of days requested from the API since this cache was created. */
+  public int getDaysFromApi() {
+    return daysFromApi;
+  }
+
+  private static Generate newRequest(AdSense adsense, String adClientId, List<String> dimensions,
+      List<String> metrics, String startDate, String endDate) throws IOException {
+    Generate request = adsense.reports().generate(startDate, endDate);
+    request.setFilter(
+        Arrays.asList("AD_CLIENT_ID==" + GenerateReport.escapeFilterParameter(adClientId)));
+    request.setMetric(metrics);
+    request.setDimension(dimensions);
+    request.setSort(Arrays.asList("+DATE"));
+    return request;
+  }
+
+  /** Splits the rows of a response into one report per date. */
+  private static Map<String, ColumnarReport> splitByDate(AdsenseReportsGenerateResponse response)
+      throws IOException {
+    List<List<String>> rows = response.getRows() != null
+        ? response.getRows() : new ArrayList<List<String>>();
+    Long totalMatchedRows = response.getTotalMatchedRows();
+    if (totalMatchedRows != null && totalMatchedRows > rows.size()) {
+      // Storing the rows of a truncated report would leave days incomplete for good.
+      throw new IOException("Got " + rows.size() + " of " + totalMatchedRows
+          + " rows; the report is too large to cache");
+    }
+    int dateColumn = 0;
+    while (!"DATE".equals(response.getHeaders().get(dateColumn).getName())) {
+      dateColumn++;
+    }
+    Map<String, List<List<String>>> rowsByDate = new HashMap<String, List<List<String>>>();
+    for (List<String> row : rows) {
+      List<List<String>> dateRows = rowsByDate.get(row.get(dateColumn));
+      if (dateRows == null) {
+        dateRows = new ArrayList<List<String>>();
+        rowsByDate.put(row.get(dateColumn), dateRows);
+      }
+      dateRows.add(row);
+    }
+    Map<String, ColumnarReport> reports = new HashMap<String, ColumnarReport>();
+    for (Map.Entry<String, List<List<String>>> entry : rowsByDate.entrySet()) {
+      ColumnarReport report = ColumnarReport.fromHeaders(response.getHeaders());
+      report.addRows(entry.getValue());
+      reports.put(entry.getKey(), report);
+    }
+    return reports;
+  }
+
+  /** Returns the name of the directory of a report, a digest of its key. */
+  private static String keyOf(String adClientId, List<String> dimensions, List<String> metrics) {
+    String key = adClientId + "\n" + dimensions + "\n" + metrics;
+    try {
+      byte[] digest =
+          MessageDigest.getInstance("SHA-1").digest(key.getBytes(Charset.forName("UTF-8")));
+      StringBuilder name = new StringBuilder();
+      for (byte b : digest) {
+        name.append(String.format("%02x", b));
+      }
+      return name.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static File partitionFile(File reportDirectory, String day) {
+    return new File(reportDirectory, day + PARTITION_SUFFIX);
+  }
+
+  /**
+   * Writes a day to a temporary file first, so that a failed write never leaves a partial day
+   * behind.
+   */
+  private static void writePartition(File reportDirectory, String day, ColumnarReport partition)
+      throws IOException {
+    File file = partitionFile(reportDirectory, day);
+    File tempFile = new File(file.getPath() + ".tmp");
+    DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+    try {
+      partition.write(out);
+    } finally {
+      out.close();
+    }
+    if (!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file))) {
+      throw new IOException("Unable to replace " + file);
+    }
+  }
+
+  private static ColumnarReport readPartition(File reportDirectory, String day)
+      throws IOException {
+    RandomAccessFile file = new RandomAccessFile(partitionFile(reportDirectory, day), "r");
+    try {
+      FileChannel channel = file.getChannel();
+      return ColumnarReport.read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    } finally {
+      file.close();
+    }
+  }
+}
@@ -26,6 +26,7 @@ import com.google.api.client.util.store.DataStoreFactory;
 import com.google.api.client.util.store.FileDataStoreFactory;
 import com.google.api.services.adsensehost.AdSenseHost;
 import com.google.api.services.adsensehost.AdSenseHostScopes;
+import com.google.api.services.adsensehost.model.AdClient;
 import com.google.api.services.adsensehost.model.AdClients;
 import com.google.api.services.adsensehost.model.AdUnit;
 import com.google.api.services.adsensehost.model.CustomChannel;
@@ -33,7 +34,9 @@ import com.google.api.services.adsensehost.model.UrlChannel;
 
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 
 /**
  * A sample application that runs multiple requests against the AdSense Host API. These include:
@@ -47,6 +50,7 @@ import java.util.Collections;
  * <li>Adding a new host URL channel</li>
  * <li>Deleting an existing host URL channel</li>
  * <li>Running a report for a host ad client, for the past 7 days</li>
+ * <li>Crawling the whole inventory into a snapshot file</li>
  * </ul>
  *
  * If you give PUB_ACCOUNT_ID a real account ID, the following requests will also run:
@@ -57,6 +61,7 @@ import java.util.Collections;
  * <li>Updating an existing ad unit</li>
  * <li>Deleting an ad unit</li>
  * <li>Running a report for a publisher ad client, for the past 7 days</li>
+ * <li>Including the publisher in the inventory crawl</li>
  * </ul>
  *
  * Other samples are included for illustration purposes, but won't be run:
@@ -78,6 +83,10 @@ public class AdSenseHostSample {
   private static final java.io.File DATA_STORE_DIR =
       new java.io.File(System.getProperty("user.home"), ".store/adsense_host_sample");
 
+  /** File to write the inventory snapshot to. */
+  private static final java.io.File INVENTORY_SNAPSHOT_FILE =
+      new java.io.File(System.getProperty("user.home"), ".store/adsense_host_inventory.json");
+
   /**
    * Global instance of the {@link DataStoreFactory}. The best practice is to make it a single
    * globally shared instance across your application.
@@ -92,6 +101,9 @@ public class AdSenseHostSample {
 
   // Maximum page size for list calls.
   private static final long MAX_LIST_PAGE_SIZE = 50;
+  // Requests in flight, and requests started per second, when crawling the inventory.
+  private static final int CRAWL_THREADS = 8;
+  private static final double CRAWL_REQUESTS_PER_SECOND = 5;
   // Change this constant to an example publisher account ID if you want the
   // publisher samples to run.
   private static final String PUB_ACCOUNT_ID = "INSERT_CLIENT_PUB_ID_HERE";
@@ -178,10 +190,15 @@ public class AdSenseHostSample {
         System.out.println("No host ad clients found, unable to run remaining host samples.");
       }
 
+      List<String> pubAdClientIds = new ArrayList<String>();
       if (!PUB_ACCOUNT_ID.equals("INSERT_CLIENT_PUB_ID_HERE")) {
         AdClients pubAdClients =
             GetAllAdClientsForPublisher.run(service, PUB_ACCOUNT_ID, MAX_LIST_PAGE_SIZE);
         if ((pubAdClients.getItems() != null) && !pubAdClients.getItems().isEmpty()) {
+          for (AdClient pubAdClient : pubAdClients.getItems()) {
+            pubAdClientIds.add(pubAdClient.getId());
+          }
+
           // Get a publisher ad client ID, so we can run the rest of the samples.
           String examplePubAdClientId = pubAdClients.getItems().get(0).getId();
 
@@ -202,6 +219,9 @@ public class AdSenseHostSample {
               "No publisher ad clients found, unable to run remaining publisher samples.");
         }
       }
+
+      CrawlInventory.run(service, pubAdClientIds, INVENTORY_SNAPSHOT_FILE, MAX_LIST_PAGE_SIZE,
+          CRAWL_THREADS, CRAWL_REQUESTS_PER_SECOND);
     } catch (IOException e) {
       System.err.println(e.getMessage());
     } catch (Throwable t) {
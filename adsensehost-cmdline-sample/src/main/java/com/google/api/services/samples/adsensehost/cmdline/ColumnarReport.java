@@ -0,0 +1,375 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsensehost.cmdline;
+
+import com.google.api.services.adsensehost.model.Report;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A report held column by column, with each value parsed once, when its row is added.
+ *
+ * <p>The type of each column comes from its header: tally metrics are stored as {@code long}s,
+ * ratio and currency metrics as {@code double}s, and dimensions, such as dates or channel names,
+ * as codes into a dictionary of their distinct values. Sums and group-by sums then run over
+ * primitive arrays, without reparsing or boxing any value. Rows of further pages, or of further
+ * reports with the same headers, can be added to one report to roll them up together. The number
+ * of decimal places of each decimal value is kept too, so that {@link #format} prints it as the API
+ * did, e.g. "12.30" rather than "12.3".
+ *
+ * <p>Note that summing a ratio metric, such as a CTR, gives no meaningful figure; sum the tallies
+ * it is computed from instead.
+ */
+public class ColumnarReport {
+
+  /** How the values of a column are stored. */
+  public enum ColumnType {
+    /** Dimension values, stored as codes into a dictionary. */
+    DIMENSION,
+    /** Counts ({@code METRIC_TALLY}), stored as {@code long}s. */
+    TALLY,
+    /** Ratios and amounts ({@code METRIC_RATIO}, {@code METRIC_CURRENCY}), as {@code double}s. */
+    DECIMAL;
+
+    /** Returns how a column is stored, given the type of its header. */
+    static ColumnType of(String headerType) {
+      if ("DIMENSION".equals(headerType)) {
+        return DIMENSION;
+      } else if ("METRIC_TALLY".equals(headerType)) {
+        return TALLY;
+      }
+      return DECIMAL;
+    }
+  }
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  private final String[] names;
+  private final ColumnType[] types;
+  // For each column, only the array of its type is allocated.
+  private final int[][] codes;
+  private final long[][] longs;
+  private final double[][] doubles;
+  // The decimal places of each decimal value, as the API printed it.
+  private final byte[][] scales;
+  private final Dictionary[] dictionaries;
+  private int rowCount;
+
+  /**
+   * Creates an empty report.
+   *
+   * @param names the names of the columns.
+   * @param types the types of the columns.
+   */
+  public ColumnarReport(List<String> names, List<ColumnType> types) {
+    if (names.size() != types.size()) {
+      throw new IllegalArgumentException("Got " + names.size() + " names for " + types.size()
+          + " types");
+    }
+    int columnCount = names.size();
+    this.names = names.toArray(new String[columnCount]);
+    this.types = types.toArray(new ColumnType[columnCount]);
+    codes = new int[columnCount][];
+    longs = new long[columnCount][];
+    doubles = new double[columnCount][];
+    scales = new byte[columnCount][];
+    dictionaries = new Dictionary[columnCount];
+    for (int i = 0; i < columnCount; i++) {
+      switch (this.types[i]) {
+        case DIMENSION:
+          codes[i] = new int[INITIAL_CAPACITY];
+          dictionaries[i] = new Dictionary();
+          break;
+        case TALLY:
+          longs[i] = new long[INITIAL_CAPACITY];
+          break;
+        default:
+          doubles[i] = new double[INITIAL_CAPACITY];
+          scales[i] = new byte[INITIAL_CAPACITY];
+      }
+    }
+  }
+
+  /**
+   * Creates an empty report with the columns of a report response.
+   *
+   * @param headers the headers of the response.
+   * @return the empty report.
+   */
+  public static ColumnarReport fromHeaders(List<Report.Headers> headers) {
+    List<String> names = new ArrayList<String>(headers.size());
+    List<ColumnType> types = new ArrayList<ColumnType>(headers.size());
+    for (Report.Headers header : headers) {
+      names.add(header.getName());
+      types.add(ColumnType.of(header.getType()));
+    }
+    return new ColumnarReport(names, types);
+  }
+
+  /**
+   * Creates a report holding the rows of a report response.
+   *
+   * @param response the response.
+   * @return the report.
+   */
+  public static ColumnarReport fromResponse(Report response) {
+    ColumnarReport report = fromHeaders(response.getHeaders());
+    if (response.getRows() != null) {
+      report.addRows(response.getRows());
+    }
+    return report;
+  }
+
+  /**
+   * Adds rows, as the API returns them, to the end of this report.
+   *
+   * @param rows the rows, each with a value for every column.
+   */
+  public void addRows(List<List<String>> rows) {
+    ensureCapacity(rowCount + rows.size());
+    for (List<String> row : rows) {
+      if (row.size() != names.length) {
+        throw new IllegalArgumentException("Got a row of " + row.size() + " values for "
+            + names.length + " columns");
+      }
+      for (int i = 0; i < names.length; i++) {
+        String value = row.get(i);
+        switch (types[i]) {
+          case DIMENSION:
+            codes[i][rowCount] = dictionaries[i].encode(value);
+            break;
+          case TALLY:
+            longs[i][rowCount] = value == null || value.isEmpty() ? 0 : Long.parseLong(value);
+            break;
+          default:
+            doubles[i][rowCount] = value == null || value.isEmpty() ? 0 : Double.parseDouble(value);
+            scales[i][rowCount] = scaleOf(value);
+        }
+      }
+      rowCount++;
+    }
+  }
+
+  private void ensureCapacity(int capacity) {
+    for (int i = 0; i < names.length; i++) {
+      if (codes[i] != null && codes[i].length < capacity) {
+        codes[i] = Arrays.copyOf(codes[i], grow(codes[i].length, capacity));
+      } else if (longs[i] != null && longs[i].length < capacity) {
+        longs[i] = Arrays.copyOf(longs[i], grow(longs[i].length, capacity));
+      } else if (doubles[i] != null && doubles[i].length < capacity) {
+        doubles[i] = Arrays.copyOf(doubles[i], grow(doubles[i].length, capacity));
+        scales[i] = Arrays.copyOf(scales[i], doubles[i].length);
+      }
+    }
+  }
+
+  private static int grow(int length, int capacity) {
+    return Math.max(capacity, length * 2);
+  }
+
+  /** Returns the number of decimal places of a value as the API printed it, e.g. 2 for "12.30". */
+  private static byte scaleOf(String value) {
+    if (value == null || value.isEmpty()) {
+      return 0;
+    }
+    int scale;
+    if (value.indexOf('E') < 0 && value.indexOf('e') < 0) {
+      int point = value.indexOf('.');
+      scale = point < 0 ? 0 : value.length() - point - 1;
+    } else {
+      scale = new BigDecimal(value).scale();
+    }
+    return (byte) Math.max(0, Math.min(scale, Byte.MAX_VALUE));
+  }
+
+  public int getRowCount() {
+    return rowCount;
+  }
+
+  public int getColumnCount() {
+    return names.length;
+  }
+
+  public String getColumnName(int column) {
+    return names[column];
+  }
+
+  public ColumnType getColumnType(int column) {
+    return types[column];
+  }
+
+  /**
+   * Returns the index of the column with the given name.
+   *
+   * @param name the name of the column, e.g. "EARNINGS".
+   * @return the index of the column.
+   */
+  public int getColumnIndex(String name) {
+    for (int i = 0; i < names.length; i++) {
+      if (names[i].equals(name)) {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException("No column named " + name);
+  }
+
+  /** Returns the value of a dimension in a row. */
+  public String getDimension(int column, int row) {
+    checkRow(row);
+    return dictionaries[checkType(column, ColumnType.DIMENSION)].decode(codes[column][row]);
+  }
+
+  /** Returns the value of a tally metric in a row. */
+  public long getLong(int column, int row) {
+    checkRow(row);
+    return longs[checkType(column, ColumnType.TALLY)][row];
+  }
+
+  /** Returns the value of a metric of any type in a row. */
+  public double getDouble(int column, int row) {
+    checkRow(row);
+    if (types[column] == ColumnType.TALLY) {
+      return longs[column][row];
+    }
+    return doubles[checkType(column, ColumnType.DECIMAL)][row];
+  }
+
+  /** Returns a value of any column as text, with as many decimal places as the API gave it. */
+  public String format(int column, int row) {
+    switch (types[column]) {
+      case DIMENSION:
+        return getDimension(column, row);
+      case TALLY:
+        return Long.toString(getLong(column, row));
+      default:
+        return BigDecimal.valueOf(getDouble(column, row))
+            .setScale(scales[column][row], RoundingMode.HALF_EVEN).toPlainString();
+    }
+  }
+
+  /**
+   * Returns the sum of a metric over all rows.
+   *
+   * @param metric the name of the metric column.
+   * @return the sum.
+   */
+  public double sum(String metric) {
+    int column = getColumnIndex(metric);
+    if (types[column] == ColumnType.TALLY) {
+      long[] values = longs[column];
+      long sum = 0;
+      for (int row = 0; row < rowCount; row++) {
+        sum += values[row];
+      }
+      return sum;
+    }
+    double[] values = doubles[checkType(column, ColumnType.DECIMAL)];
+    double sum = 0;
+    for (int row = 0; row < rowCount; row++) {
+      sum += values[row];
+    }
+    return sum;
+  }
+
+  /**
+   * Returns the sums of a metric for each value of a dimension, e.g. the earnings of each date or
+   * custom channel.
+   *
+   * @param dimension the name of the dimension column.
+   * @param metric the name of the metric column.
+   * @return the sums, keyed by the dimension values in the order they first appear.
+   */
+  public Map<String, Double> sumBy(String dimension, String metric) {
+    int dimensionColumn = checkType(getColumnIndex(dimension), ColumnType.DIMENSION);
+    int metricColumn = getColumnIndex(metric);
+    int[] keys = codes[dimensionColumn];
+    Dictionary dictionary = dictionaries[dimensionColumn];
+    double[] sums = new double[dictionary.size()];
+    if (types[metricColumn] == ColumnType.TALLY) {
+      long[] values = longs[metricColumn];
+      for (int row = 0; row < rowCount; row++) {
+        sums[keys[row]] += values[row];
+      }
+    } else {
+      double[] values = doubles[checkType(metricColumn, ColumnType.DECIMAL)];
+      for (int row = 0; row < rowCount; row++) {
+        sums[keys[row]] += values[row];
+      }
+    }
+    Map<String, Double> result = new LinkedHashMap<String, Double>();
+    for (int code = 0; code < sums.length; code++) {
+      result.put(dictionary.decode(code), sums[code]);
+    }
+    return result;
+  }
+
+  /** Displays the headers and rows of this report. */
+  public void display() {
+    StringBuilder line = new StringBuilder();
+    for (String name : names) {
+      line.append(String.format("%25s", name));
+    }
+    System.out.println(line);
+    for (int row = 0; row < rowCount; row++) {
+      line.setLength(0);
+      for (int column = 0; column < names.length; column++) {
+        line.append(String.format("%25s", format(column, row)));
+      }
+      System.out.println(line);
+    }
+  }
+
+  private void checkRow(int row) {
+    if (row < 0 || row >= rowCount) {
+      throw new IndexOutOfBoundsException("Row " + row + " of " + rowCount);
+    }
+  }
+
+  private int checkType(int column, ColumnType type) {
+    if (types[column] != type) {
+      throw new IllegalArgumentException(names[column] + " is a " + types[column] + " column");
+    }
+    return column;
+  }
+
+  /** The distinct values of a dimension, each with the code it is stored as. */
+  private static final class Dictionary {
+    private final List<String> values = new ArrayList<String>();
+    private final Map<String, Integer> codes = new HashMap<String, Integer>();
+
+    int encode(String value) {
+      Integer code = codes.get(value);
+      if (code == null) {
+        code = values.size();
+        values.add(value);
+        codes.put(value, code);
+      }
+      return code;
+    }
+
+    String decode(int code) {
+      return values.get(code);
+    }
+
+    int size() {
+      return values.size();
+    }
+  }
+}
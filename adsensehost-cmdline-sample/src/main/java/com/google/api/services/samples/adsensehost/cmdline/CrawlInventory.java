@@ -0,0 +1,547 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsensehost.cmdline;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonGenerator;
+import com.google.api.client.util.Charsets;
+import com.google.api.client.util.DateTime;
+import com.google.api.client.util.Key;
+import com.google.api.services.adsensehost.AdSenseHost;
+import com.google.api.services.adsensehost.model.Account;
+import com.google.api.services.adsensehost.model.Accounts;
+import com.google.api.services.adsensehost.model.AdClient;
+import com.google.api.services.adsensehost.model.AdClients;
+import com.google.api.services.adsensehost.model.AdUnit;
+import com.google.api.services.adsensehost.model.AdUnits;
+import com.google.api.services.adsensehost.model.CustomChannel;
+import com.google.api.services.adsensehost.model.CustomChannels;
+import com.google.api.services.adsensehost.model.UrlChannel;
+import com.google.api.services.adsensehost.model.UrlChannels;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * This example crawls the whole inventory of the host: the host ad clients, with their custom
+ * channels and URL channels, and the accounts of the given publisher ad clients, with the ad
+ * clients and ad units of each account. It then writes a snapshot of the inventory to a JSON file.
+ *
+ * The API has no way to list all the publishers of a host, so their ad client IDs, as the host
+ * stored them when the publishers signed up, must be passed in.
+ *
+ * The tree is walked one level at a time, with the lists of all the nodes of a level requested
+ * concurrently. All requests share a budget of requests per second, so the crawl stays within the
+ * API quota however many threads it runs. A list that fails, e.g. for a publisher that has since
+ * left the host, is recorded as an error in the snapshot rather than stopping the crawl.
+ *
+ * Tags: adclients.list, customchannels.list, urlchannels.list, accounts.list,
+ * accounts.adclients.list, accounts.adunits.list
+ *
+ */
+public class CrawlInventory {
+
+  // Publisher ad client IDs per accounts.list request, to keep the request URL short.
+  private static final int MAX_AD_CLIENT_IDS_PER_ACCOUNTS_LIST = 50;
+
+  /** The inventory of the host, as written to the snapshot file. */
+  public static class Snapshot extends GenericJson {
+    @Key
+    private DateTime crawlTime;
+    @Key
+    private List<HostAdClientNode> hostAdClients;
+    @Key
+    private List<PublisherAccountNode> publisherAccounts;
+    @Key
+    private List<String> errors;
+
+    public DateTime getCrawlTime() {
+      return crawlTime;
+    }
+
+    public List<HostAdClientNode> getHostAdClients() {
+      return hostAdClients;
+    }
+
+    public List<PublisherAccountNode> getPublisherAccounts() {
+      return publisherAccounts;
+    }
+
+    public List<String> getErrors() {
+      return errors;
+    }
+  }
+
+  /** A host ad client with its custom channels and URL channels. */
+  public static class HostAdClientNode extends GenericJson {
+    @Key
+    private AdClient adClient;
+    @Key
+    private List<CustomChannel> customChannels;
+    @Key
+    private List<UrlChannel> urlChannels;
+    @Key
+    private List<String> errors;
+
+    public AdClient getAdClient() {
+      return adClient;
+    }
+
+    public List<CustomChannel> getCustomChannels() {
+      return customChannels;
+    }
+
+    public List<UrlChannel> getUrlChannels() {
+      return urlChannels;
+    }
+
+    public List<String> getErrors() {
+      return errors;
+    }
+  }
+
+  /** A publisher account with its ad clients. */
+  public static class PublisherAccountNode extends GenericJson {
+    @Key
+    private Account account;
+    @Key
+    private List<PublisherAdClientNode> adClients;
+    @Key
+    private List<String> errors;
+
+    public Account getAccount() {
+      return account;
+    }
+
+    public List<PublisherAdClientNode> getAdClients() {
+      return adClients;
+    }
+
+    public List<String> getErrors() {
+      return errors;
+    }
+  }
+
+  /** A publisher ad client with its ad units. */
+  public static class PublisherAdClientNode extends GenericJson {
+    @Key
+    private AdClient adClient;
+    @Key
+    private List<AdUnit> adUnits;
+    @Key
+    private List<String> errors;
+
+    public AdClient getAdClient() {
+      return adClient;
+    }
+
+    public List<AdUnit> getAdUnits() {
+      return adUnits;
+    }
+
+    public List<String> getErrors() {
+      return errors;
+    }
+  }
+
+  private final AdSenseHost service;
+  private final long maxPageSize;
+  private final RequestBudget budget;
+
+  private CrawlInventory(AdSenseHost service, long maxPageSize, double requestsPerSecond) {
+    this.service = service;
+    this.maxPageSize = maxPageSize;
+    this.budget = new RequestBudget(requestsPerSecond);
+  }
+
+  /**
+   * Runs this sample.
+   *
+   * @param service AdSenseHost service object on which to run the requests.
+   * @param publisherAdClientIds the ad client IDs of the publishers to crawl.
+   * @param snapshotFile the file to write the snapshot to.
+   * @param maxPageSize the maximum page size to retrieve.
+   * @param threads the maximum number of requests in flight.
+   * @param requestsPerSecond the maximum rate at which requests are started.
+   * @return the snapshot.
+   * @throws Exception
+   */
+  public static Snapshot run(AdSenseHost service, List<String> publisherAdClientIds,
+      File snapshotFile, long maxPageSize, int threads, double requestsPerSecond)
+      throws Exception {
+    System.out.println("=================================================================");
+    System.out.printf("Crawling the host inventory into %s\n", snapshotFile);
+    System.out.println("=================================================================");
+
+    long start = System.currentTimeMillis();
+    CrawlInventory crawler = new CrawlInventory(service, maxPageSize, requestsPerSecond);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    Snapshot snapshot;
+    try {
+      snapshot = crawler.crawl(executor, publisherAdClientIds);
+    } finally {
+      executor.shutdownNow();
+    }
+    writeSnapshot(service, snapshot, snapshotFile);
+
+    int customChannelCount = 0;
+    int urlChannelCount = 0;
+    int adClientCount = 0;
+    int adUnitCount = 0;
+    int errorCount = snapshot.errors.size();
+    for (HostAdClientNode hostAdClientNode : snapshot.hostAdClients) {
+      customChannelCount += hostAdClientNode.customChannels.size();
+      urlChannelCount += hostAdClientNode.urlChannels.size();
+      errorCount += hostAdClientNode.errors.size();
+    }
+    for (PublisherAccountNode accountNode : snapshot.publisherAccounts) {
+      errorCount += accountNode.errors.size();
+      for (PublisherAdClientNode adClientNode : accountNode.adClients) {
+        adClientCount++;
+        adUnitCount += adClientNode.adUnits.size();
+        errorCount += adClientNode.errors.size();
+      }
+    }
+    System.out.printf("Crawled %d host ad clients, with %d custom channels and %d URL channels, "
+        + "and %d publisher accounts, with %d ad clients and %d ad units.\n",
+        snapshot.hostAdClients.size(), customChannelCount, urlChannelCount,
+        snapshot.publisherAccounts.size(), adClientCount, adUnitCount);
+    System.out.printf("Made %d requests in %.1f s.\n", crawler.budget.getRequestCount(),
+        (System.currentTimeMillis() - start) / 1000.0);
+    if (errorCount > 0) {
+      System.out.printf("%d lists failed; see the errors in the snapshot.\n", errorCount);
+    }
+
+    System.out.println();
+    return snapshot;
+  }
+
+  private Snapshot crawl(ExecutorService executor, List<String> publisherAdClientIds)
+      throws Exception {
+    final Snapshot snapshot = new Snapshot();
+    snapshot.crawlTime = new DateTime(System.currentTimeMillis());
+    snapshot.hostAdClients = new ArrayList<HostAdClientNode>();
+    snapshot.errors = newErrorList();
+
+    // The host ad clients, and the accounts of the publisher ad clients.
+    List<Future<?>> futures = new ArrayList<Future<?>>();
+    futures.add(executor.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        try {
+          for (AdClient adClient : listHostAdClients()) {
+            HostAdClientNode hostAdClientNode = new HostAdClientNode();
+            hostAdClientNode.adClient = adClient;
+            hostAdClientNode.customChannels = new ArrayList<CustomChannel>();
+            hostAdClientNode.urlChannels = new ArrayList<UrlChannel>();
+            hostAdClientNode.errors = newErrorList();
+            snapshot.hostAdClients.add(hostAdClientNode);
+          }
+        } catch (IOException e) {
+          snapshot.errors.add("hostAdClients: " + e.getMessage());
+        }
+        return null;
+      }
+    }));
+    final List<List<Account>> accountChunks = new ArrayList<List<Account>>();
+    for (int i = 0; i < publisherAdClientIds.size(); i += MAX_AD_CLIENT_IDS_PER_ACCOUNTS_LIST) {
+      final List<String> adClientIds = publisherAdClientIds.subList(
+          i, Math.min(i + MAX_AD_CLIENT_IDS_PER_ACCOUNTS_LIST, publisherAdClientIds.size()));
+      final List<Account> accounts = new ArrayList<Account>();
+      accountChunks.add(accounts);
+      futures.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          try {
+            accounts.addAll(listAccounts(adClientIds));
+          } catch (IOException e) {
+            snapshot.errors.add("publisherAccounts: " + e.getMessage());
+          }
+          return null;
+        }
+      }));
+    }
+    awaitAll(futures);
+
+    // Several of the publisher ad client IDs may belong to one account.
+    Map<String, PublisherAccountNode> accountNodes =
+        new LinkedHashMap<String, PublisherAccountNode>();
+    for (List<Account> accounts : accountChunks) {
+      for (Account account : accounts) {
+        if (!accountNodes.containsKey(account.getId())) {
+          PublisherAccountNode accountNode = new PublisherAccountNode();
+          accountNode.account = account;
+          accountNode.adClients = new ArrayList<PublisherAdClientNode>();
+          accountNode.errors = newErrorList();
+          accountNodes.put(account.getId(), accountNode);
+        }
+      }
+    }
+    snapshot.publisherAccounts = new ArrayList<PublisherAccountNode>(accountNodes.values());
+
+    // The channels of each host ad client, and the ad clients of each publisher account.
+    futures.clear();
+    for (final HostAdClientNode hostAdClientNode : snapshot.hostAdClients) {
+      final String adClientId = hostAdClientNode.adClient.getId();
+      futures.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          try {
+            hostAdClientNode.customChannels.addAll(listCustomChannels(adClientId));
+          } catch (IOException e) {
+            hostAdClientNode.errors.add("customChannels: " + e.getMessage());
+          }
+          return null;
+        }
+      }));
+      futures.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          try {
+            hostAdClientNode.urlChannels.addAll(listUrlChannels(adClientId));
+          } catch (IOException e) {
+            hostAdClientNode.errors.add("urlChannels: " + e.getMessage());
+          }
+          return null;
+        }
+      }));
+    }
+    for (final PublisherAccountNode accountNode : snapshot.publisherAccounts) {
+      futures.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          try {
+            for (AdClient adClient : listPublisherAdClients(accountNode.account.getId())) {
+              PublisherAdClientNode adClientNode = new PublisherAdClientNode();
+              adClientNode.adClient = adClient;
+              adClientNode.adUnits = new ArrayList<AdUnit>();
+              adClientNode.errors = newErrorList();
+              accountNode.adClients.add(adClientNode);
+            }
+          } catch (IOException e) {
+            accountNode.errors.add("adClients: " + e.getMessage());
+          }
+          return null;
+        }
+      }));
+    }
+    awaitAll(futures);
+
+    // The ad units of each publisher ad client.
+    futures.clear();
+    for (PublisherAccountNode accountNode : snapshot.publisherAccounts) {
+      final String accountId = accountNode.account.getId();
+      for (final PublisherAdClientNode adClientNode : accountNode.adClients) {
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            try {
+              adClientNode.adUnits.addAll(
+                  listAdUnits(accountId, adClientNode.adClient.getId()));
+            } catch (IOException e) {
+              adClientNode.errors.add("adUnits: " + e.getMessage());
+            }
+            return null;
+          }
+        }));
+      }
+    }
+    awaitAll(futures);
+    return snapshot;
+  }
+
+  private static List<String> newErrorList() {
+    // The lists of a node may be requested on separate threads.
+    return Collections.synchronizedList(new ArrayList<String>());
+  }
+
+  /** Waits for all tasks, rethrowing the first failure that is not an API error. */
+  private static void awaitAll(List<Future<?>> futures) throws Exception {
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof Exception) {
+          throw (Exception) cause;
+        }
+        throw (Error) cause;
+      }
+    }
+  }
+
+  private List<AdClient> listHostAdClients() throws IOException, InterruptedException {
+    List<AdClient> items = new ArrayList<AdClient>();
+    String pageToken = null;
+    do {
+      budget.acquire();
+      AdClients page = service.adclients().list()
+          .setMaxResults(maxPageSize)
+          .setPageToken(pageToken)
+          .execute();
+      if (page.getItems() != null) {
+        items.addAll(page.getItems());
+      }
+      pageToken = page.getNextPageToken();
+    } while (pageToken != null);
+    return items;
+  }
+
+  private List<CustomChannel> listCustomChannels(String adClientId)
+      throws IOException, InterruptedException {
+    List<CustomChannel> items = new ArrayList<CustomChannel>();
+    String pageToken = null;
+    do {
+      budget.acquire();
+      CustomChannels page = service.customchannels().list(adClientId)
+          .setMaxResults(maxPageSize)
+          .setPageToken(pageToken)
+          .execute();
+      if (page.getItems() != null) {
+        items.addAll(page.getItems());
+      }
+      pageToken = page.getNextPageToken();
+    } while (pageToken != null);
+    return items;
+  }
+
+  private List<UrlChannel> listUrlChannels(String adClientId)
+      throws IOException, InterruptedException {
+    List<UrlChannel> items = new ArrayList<UrlChannel>();
+    String pageToken = null;
+    do {
+      budget.acquire();
+      UrlChannels page = service.urlchannels().list(adClientId)
+          .setMaxResults(maxPageSize)
+          .setPageToken(pageToken)
+          .execute();
+      if (page.getItems() != null) {
+        items.addAll(page.getItems());
+      }
+      pageToken = page.getNextPageToken();
+    } while (pageToken != null);
+    return items;
+  }
+
+  private List<Account> listAccounts(List<String> adClientIds)
+      throws IOException, InterruptedException {
+    budget.acquire();
+    Accounts accounts = service.accounts().list(adClientIds).execute();
+    return accounts.getItems() != null ? accounts.getItems() : Collections.<Account>emptyList();
+  }
+
+  private List<AdClient> listPublisherAdClients(String accountId)
+      throws IOException, InterruptedException {
+    List<AdClient> items = new ArrayList<AdClient>();
+    String pageToken = null;
+    do {
+      budget.acquire();
+      AdClients page = service.accounts().adclients().list(accountId)
+          .setMaxResults(maxPageSize)
+          .setPageToken(pageToken)
+          .execute();
+      if (page.getItems() != null) {
+        items.addAll(page.getItems());
+      }
+      pageToken = page.getNextPageToken();
+    } while (pageToken != null);
+    return items;
+  }
+
+  private List<AdUnit> listAdUnits(String accountId, String adClientId)
+      throws IOException, InterruptedException {
+    List<AdUnit> items = new ArrayList<AdUnit>();
+    String pageToken = null;
+    do {
+      budget.acquire();
+      AdUnits page = service.accounts().adunits().list(accountId, adClientId)
+          .setMaxResults(maxPageSize)
+          .setPageToken(pageToken)
+          .execute();
+      if (page.getItems() != null) {
+        items.addAll(page.getItems());
+      }
+      pageToken = page.getNextPageToken();
+    } while (pageToken != null);
+    return items;
+  }
+
+  /**
+   * Writes the snapshot to a temporary file first, so that a failed write leaves the previous
+   * snapshot in place.
+   */
+  private static void writeSnapshot(AdSenseHost service, Snapshot snapshot, File snapshotFile)
+      throws IOException {
+    File tempFile = new File(snapshotFile.getPath() + ".tmp");
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile));
+    try {
+      JsonGenerator generator = service.getJsonFactory().createJsonGenerator(out, Charsets.UTF_8);
+      generator.enablePrettyPrint();
+      generator.serialize(snapshot);
+      generator.flush();
+    } finally {
+      out.close();
+    }
+    if (!tempFile.renameTo(snapshotFile)
+        && !(snapshotFile.delete() && tempFile.renameTo(snapshotFile))) {
+      throw new IOException("Unable to replace " + snapshotFile);
+    }
+  }
+
+  /** Spaces the starts of requests evenly, to at most a given number per second. */
+  private static final class RequestBudget {
+    private final long intervalNanos;
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private long nextStartNanos = System.nanoTime();
+
+    RequestBudget(double requestsPerSecond) {
+      if (requestsPerSecond <= 0) {
+        throw new IllegalArgumentException("requestsPerSecond must be positive");
+      }
+      intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond);
+    }
+
+    /** Waits until the next request may start. */
+    void acquire() throws InterruptedException {
+      long waitNanos;
+      synchronized (this) {
+        long now = System.nanoTime();
+        long start = Math.max(now, nextStartNanos);
+        nextStartNanos = start + intervalNanos;
+        waitNanos = start - now;
+      }
+      requestCount.incrementAndGet();
+      TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+
+    int getRequestCount() {
+      return requestCount.get();
+    }
+  }
+}
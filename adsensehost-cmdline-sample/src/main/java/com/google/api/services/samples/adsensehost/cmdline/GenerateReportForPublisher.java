@@ -21,7 +21,6 @@ import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.List;
 
 /**
  * This example retrieves a report for the specified publisher ad client.
@@ -80,20 +79,15 @@ public class GenerateReportForPublisher {
     Report response = request.execute();
 
     if ((response.getRows() != null) && !response.getRows().isEmpty()) {
-      // Display headers.
-      for (Report.Headers header : response.getHeaders()) {
-        System.out.printf("%25s", header.getName());
-      }
-      System.out.println();
+      ColumnarReport report = ColumnarReport.fromResponse(response);
 
       // Display results.
-      for (List<String> row : response.getRows()) {
-        for (String column : row) {
-          System.out.printf("%25s", column);
-        }
-        System.out.println();
-        }
+      report.display();
+      System.out.println();
 
+      // Roll up the metrics from the report's columns, without reparsing any values.
+      System.out.printf("Total clicks: %d, total earnings: %.2f\n",
+          (long) report.sum("CLICKS"), report.sum("EARNINGS"));
       System.out.println();
     } else {
       System.out.println("No rows returned.");
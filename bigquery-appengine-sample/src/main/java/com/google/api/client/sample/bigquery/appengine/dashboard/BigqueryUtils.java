@@ -2,6 +2,9 @@
 
 package com.google.api.client.sample.bigquery.appengine.dashboard;
 
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpRequestInitializer;
 import com.google.api.client.util.Preconditions;
 import com.google.api.services.bigquery.Bigquery;
 import com.google.api.services.bigquery.model.Job;
@@ -9,10 +12,9 @@ import com.google.api.services.bigquery.model.JobConfiguration;
 import com.google.api.services.bigquery.model.JobConfigurationQuery;
 import com.google.api.services.bigquery.model.JobReference;
 import com.google.api.services.bigquery.model.Table;
-import com.google.api.services.bigquery.model.TableDataList;
 import com.google.api.services.bigquery.model.TableFieldSchema;
 import com.google.api.services.bigquery.model.TableReference;
-import com.google.api.services.bigquery.model.TableRow;
+import com.google.appengine.api.ThreadManager;
 import com.google.appengine.api.taskqueue.Queue;
 import com.google.appengine.api.taskqueue.QueueFactory;
 import com.google.appengine.api.taskqueue.RetryOptions;
@@ -20,8 +22,11 @@ import com.google.appengine.api.taskqueue.TaskOptions;
 import com.google.common.base.Joiner;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
+import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
 import java.util.logging.Logger;
 
 import javax.servlet.http.HttpServletResponse;
@@ -37,46 +42,92 @@ public class BigqueryUtils {
   static final String projectId =
       System.getProperty("com.google.api.client.sample.bigquery.appengine.dashboard.projectId");
 
+  /** Rows requested per {@code tabledata().list()} page. */
+  private static final long TABLE_DATA_PAGE_SIZE = 10000;
+
   private final String userId;
   final Bigquery bigquery;
   private Job job;
+  private Table destinationTable;
 
   public BigqueryUtils(String userId) throws IOException {
     this(userId, null);
   }
 
-  public BigqueryUtils(String userId, final String jobId) throws IOException {
+  public BigqueryUtils(String userId, String jobId) throws IOException {
     this.userId = userId;
 
     bigquery = ServiceUtils.loadBigqueryClient(userId);
 
     if (jobId != null) {
-      job = tryToDo(new Callable<Job>() {
-        @Override
-        public Job call() throws Exception {
-          return bigquery.jobs().get(projectId, jobId).execute();
-        }
-      });
-
-      if (job == null) {
-        throw new SampleDashboardException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-            "Wasn't able to get a job for jobId " + jobId);
-      }
+      loadJob(jobId);
     }
   }
 
-  public void beginQuery() throws SampleDashboardException {
-    final Job queryJob = makeJob(buildExampleQuery());
-
-    job = tryToDo(new Callable<Job>() {
+  /**
+   * Fetches the job with the given ID, whose status and results the other methods then report.
+   */
+  public void loadJob(final String jobId) throws SampleDashboardException {
+    job = tryToDo(bigquery, userId, new Callable<Job>() {
       @Override
       public Job call() throws Exception {
-        return bigquery.jobs().insert(projectId, queryJob).execute();
+        return bigquery.jobs().get(projectId, jobId).execute();
       }
     });
 
-    Preconditions.checkNotNull(job);
-    enqueueWaitingTask();
+    if (job == null) {
+      throw new SampleDashboardException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+          "Wasn't able to get a job for jobId " + jobId);
+    }
+  }
+
+  /**
+   * Begins the example query and enqueues a task to wait for it, or, if an identical query is
+   * already running (see {@link QueryResultCache}), enqueues a task to wait for the chart that its
+   * job's owner shares. In the incremental mode, the query only computes the partitions that may
+   * have changed (see {@link NatalityAggregates}).
+   */
+  public void beginQuery() throws SampleDashboardException {
+    String query = NatalityAggregates.isEnabled()
+        ? NatalityAggregates.buildQuery(new NatalityAggregates().getRefreshFromYear())
+        : buildExampleQuery();
+    String cacheKey = getExampleQueryCacheKey();
+    QueryResultCache cache = QueryResultCache.getInstance();
+
+    String runningJobId = cache.findOrReserveRunningJob(cacheKey);
+    if (runningJobId != null) {
+      // The job and its results can only be read by the user who started it, whose task shares
+      // the chart when the job is done. The ID of a job that is still being submitted isn't
+      // known, so the task waits for whichever job that submission starts.
+      boolean submitting = runningJobId.equals(QueryResultCache.JOB_BEING_SUBMITTED);
+      log.info("Waiting for the chart of "
+          + (submitting ? "the job being submitted" : "running job " + runningJobId));
+      enqueueWaitingTask(runningJobId, true, 0, System.currentTimeMillis(),
+          JobWaiter.delayMillis(1));
+    } else {
+      try {
+        job = insertQueryJob(bigquery, userId, query);
+      } finally {
+        if (job == null) {
+          cache.removeRunningJob(cacheKey, null);
+        }
+      }
+      Preconditions.checkNotNull(job);
+      cache.putRunningJob(cacheKey, job.getJobReference().getJobId());
+
+      // The task long-polls for the job, so it can start right away.
+      enqueueWaitingTask(job.getJobReference().getJobId(), false, 0, System.currentTimeMillis(),
+          0);
+    }
+  }
+
+  /**
+   * Returns a waiter for the job with the given ID.
+   *
+   * @param polls the number of polls already made for the job
+   */
+  JobWaiter newJobWaiter(String jobId, int polls) {
+    return new JobWaiter(bigquery, userId, projectId, jobId, polls);
   }
 
   public boolean jobSucceeded() {
@@ -101,17 +152,7 @@ public class BigqueryUtils {
 
   public List<TableFieldSchema> getSchemaFieldNames() throws SampleDashboardException {
     if (job != null) {
-      final TableReference tableReference = job.getConfiguration().getQuery().getDestinationTable();
-
-      Table table = tryToDo(new Callable<Table>() {
-        @Override
-        public Table call() throws IOException {
-          return bigquery.tables().get(tableReference.getProjectId(), tableReference.getDatasetId(),
-              tableReference.getTableId()).execute();
-        }
-      });
-
-      Preconditions.checkNotNull(table);
+      Table table = getDestinationTable();
       Preconditions.checkNotNull(table.getSchema());
       Preconditions.checkNotNull(table.getSchema().getFields());
       return table.getSchema().getFields();
@@ -119,53 +160,103 @@ public class BigqueryUtils {
     return null;
   }
 
-  public List<TableRow> getTableData() throws SampleDashboardException {
+  /**
+   * Returns an iterator over all the rows of the job's results, with up to
+   * {@code maxPagesInFlight} pages fetched ahead on request threads. The caller must close it.
+   */
+  public TableRowIterator getTableRows(int maxPagesInFlight) throws SampleDashboardException {
     if (job != null) {
+      Table table = getDestinationTable();
+      long totalRows = table.getNumRows() != null ? table.getNumRows().longValue() : -1;
+      // App Engine only allows threads created by its request thread factory.
+      return new TableRowIterator(bigquery, userId, table.getTableReference(),
+          TABLE_DATA_PAGE_SIZE, totalRows, maxPagesInFlight, Executors.newFixedThreadPool(
+              maxPagesInFlight, ThreadManager.currentRequestThreadFactory()));
+    }
+    return null;
+  }
+
+  private Table getDestinationTable() throws SampleDashboardException {
+    if (destinationTable == null) {
       final TableReference tableReference = job.getConfiguration().getQuery().getDestinationTable();
 
-      TableDataList tableDataList = tryToDo(new Callable<TableDataList>() {
+      destinationTable = tryToDo(bigquery, userId, new Callable<Table>() {
         @Override
-        public TableDataList call() throws IOException {
-          return bigquery.tabledata().list(tableReference.getProjectId(),
-              tableReference.getDatasetId(), tableReference.getTableId()).execute();
+        public Table call() throws IOException {
+          return bigquery.tables().get(tableReference.getProjectId(), tableReference.getDatasetId(),
+              tableReference.getTableId()).execute();
         }
       });
 
-      Preconditions.checkNotNull(tableDataList);
-      Preconditions.checkNotNull(tableDataList.getRows());
-      return tableDataList.getRows();
+      Preconditions.checkNotNull(destinationTable);
+      if (destinationTable.getTableReference() == null) {
+        destinationTable.setTableReference(tableReference);
+      }
     }
-    return null;
+    return destinationTable;
   }
 
   /**
    * Constructs a task with necessary parameters and options and puts it in App Engine's default
-   * task queue.
+   * task queue. The number of polls so far and the time the wait began are passed along, so the
+   * waiting can be backed off and measured across tasks.
+   *
+   * @param shared whether the job is another user's, in which case the task waits for the chart
+   *        its owner shares in {@link QueryResultCache} instead of polling the job
    */
-  public void enqueueWaitingTask() {
+  public void enqueueWaitingTask(String jobId, boolean shared, int polls, long waitStartMillis,
+      long countdownMillis) {
     TaskOptions options = TaskOptions.Builder.withDefaults();
-    options.param("jobId", job.getJobReference().getJobId());
+    options.param("jobId", jobId);
+    options.param("shared", String.valueOf(shared));
     options.param("userId", userId);
+    options.param("polls", String.valueOf(polls));
+    options.param("waitStart", String.valueOf(waitStartMillis));
     options.url("/task");
-    options.countdownMillis(1000);
+    options.countdownMillis(countdownMillis);
     options.retryOptions(RetryOptions.Builder.withTaskRetryLimit(0));
 
     Queue queue = QueueFactory.getDefaultQueue();
     queue.add(options);
   }
 
-  public static String buildExampleQuery() {
-    String[] west = {"WA", "OR", "CA", "AK", "HI", "ID", "MT", "WY", "NV", "UT", "CO", "AZ", "NM"};
-    String[] south = {"OK", "TX", "AR", "LA", "TN", "MS", "AL", "KY", "GA", "FL", "SC", "NC", "VA",
-                "WV", "MD", "DC", "DE"};
-    String[] midwest = {"ND", "SD", "NE", "KS", "MN", "IA", "MO", "WI", "IL", "IN", "MI", "OH"};
-    String[] northeast = {"NY", "PA", "NJ", "CT", "RI", "MA", "VT", "NH", "ME"};
+  /**
+   * Returns the {@link QueryResultCache} key of the example query. The incremental mode runs other
+   * queries, whose results are merged differently, so its charts are kept apart.
+   */
+  public static String getExampleQueryCacheKey() {
+    String key = QueryResultCache.keyFor(buildExampleQuery());
+    return NatalityAggregates.isEnabled() ? "incremental:" + key : key;
+  }
 
+  private static final String[] WEST =
+      {"WA", "OR", "CA", "AK", "HI", "ID", "MT", "WY", "NV", "UT", "CO", "AZ", "NM"};
+  private static final String[] SOUTH = {"OK", "TX", "AR", "LA", "TN", "MS", "AL", "KY", "GA", "FL",
+      "SC", "NC", "VA", "WV", "MD", "DC", "DE"};
+  private static final String[] MIDWEST =
+      {"ND", "SD", "NE", "KS", "MN", "IA", "MO", "WI", "IL", "IN", "MI", "OH"};
+  private static final String[] NORTHEAST = {"NY", "PA", "NJ", "CT", "RI", "MA", "VT", "NH", "ME"};
+
+  /** Returns the U.S. Census region of a state, as {@link #buildExampleQuery()} assigns it. */
+  public static String regionOf(String state) {
+    if (Arrays.asList(WEST).contains(state)) {
+      return "West";
+    } else if (Arrays.asList(SOUTH).contains(state)) {
+      return "South";
+    } else if (Arrays.asList(MIDWEST).contains(state)) {
+      return "Midwest";
+    } else if (Arrays.asList(NORTHEAST).contains(state)) {
+      return "Northeast";
+    }
+    return "None";
+  }
+
+  public static String buildExampleQuery() {
     Joiner joiner = Joiner.on("', '");
 
-    String query = "SELECT IF (state IN ('" + joiner.join(west) + "'), 'West', \n\t"
-        + "IF (state IN ('" + joiner.join(south) + "'), 'South', \n\t" + "IF (state IN ('"
-        + joiner.join(midwest) + "'), 'Midwest', \n\t" + "IF (state IN ('" + joiner.join(northeast)
+    String query = "SELECT IF (state IN ('" + joiner.join(WEST) + "'), 'West', \n\t"
+        + "IF (state IN ('" + joiner.join(SOUTH) + "'), 'South', \n\t" + "IF (state IN ('"
+        + joiner.join(MIDWEST) + "'), 'Midwest', \n\t" + "IF (state IN ('" + joiner.join(NORTHEAST)
         + "'), 'Northeast', 'None')))) "
         + "as region, \naverage_mother_age, \naverage_father_age, \nstate, \nyear \n"
         + "FROM (SELECT year, \n\t\tstate, \n\t\tSUM(mother_age)/COUNT(mother_age) as "
@@ -176,10 +267,34 @@ public class BigqueryUtils {
     return query;
   }
 
+  /**
+   * Starts a job for the given query. The job ID is chosen here rather than by the service, so a
+   * retried insert can't start the query twice.
+   */
+  static Job insertQueryJob(final Bigquery bigquery, String userId, String query)
+      throws SampleDashboardException {
+    final Job queryJob = makeJob(query);
+    final String jobId = queryJob.getJobReference().getJobId();
+    return tryToDo(bigquery, userId, new Callable<Job>() {
+      @Override
+      public Job call() throws Exception {
+        try {
+          return bigquery.jobs().insert(projectId, queryJob).execute();
+        } catch (GoogleJsonResponseException e) {
+          if (e.getStatusCode() != HttpServletResponse.SC_CONFLICT) {
+            throw e;
+          }
+          // An earlier attempt inserted the job, but its response was lost.
+          return bigquery.jobs().get(projectId, jobId).execute();
+        }
+      }
+    });
+  }
+
   /**
    * Instantiates an example job and sets required fields.
    */
-  private Job makeJob(String query) {
+  private static Job makeJob(String query) {
     JobConfigurationQuery jobconfigurationquery = new JobConfigurationQuery();
 
     jobconfigurationquery.setQuery(query);
@@ -190,6 +305,7 @@ public class BigqueryUtils {
 
     JobReference jobreference = new JobReference();
     jobreference.setProjectId(projectId);
+    jobreference.setJobId("dashboard_" + UUID.randomUUID().toString().replace('-', '_'));
 
     Job newJob = new Job();
     newJob.setConfiguration(jobconfiguration);
@@ -199,24 +315,17 @@ public class BigqueryUtils {
   }
 
   /**
-   * Attempts to run the given callback with a number of retries. If the callback responds with
-   * SC_UNAUTHORIZED, the tokens are refreshed.
+   * Attempts to run the given callback, which calls the API through the given client, with the
+   * retries of {@link RetryPolicy#DEFAULT}. If the callback responds with SC_UNAUTHORIZED, the
+   * client's tokens are refreshed, and if that doesn't help, the given user's cached client is
+   * dropped.
    *
    * @throws SampleDashboardException
    */
-  private <T> T tryToDo(Callable<T> callback) throws SampleDashboardException {
-    int retries = 3;
-    int currentTry = 0;
-    SampleDashboardException sdex = null;
-    while (currentTry < retries) {
-      currentTry++;
-      try {
-        return callback.call();
-      } catch (Exception ex) {
-        sdex = new SampleDashboardException(ex);
-        log.warning("Caught exception (" + sdex.getStatusCode() + "): " + ex);
-      }
-    }
-    throw Preconditions.checkNotNull(sdex);
+  static <T> T tryToDo(Bigquery bigquery, String userId, Callable<T> callback)
+      throws SampleDashboardException {
+    HttpRequestInitializer initializer = bigquery.getRequestFactory().getInitializer();
+    Credential credential = initializer instanceof Credential ? (Credential) initializer : null;
+    return RetryPolicy.DEFAULT.call(callback, credential, userId);
   }
 }
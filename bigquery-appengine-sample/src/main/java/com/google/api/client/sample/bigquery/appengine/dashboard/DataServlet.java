@@ -4,96 +4,144 @@ package com.google.api.client.sample.bigquery.appengine.dashboard;
 
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.users.UserServiceFactory;
+import com.google.common.base.Charsets;
 import com.google.gson.stream.JsonWriter;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.util.List;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * This servlet responds to a post request with the data in the datastore for the
+ * This servlet responds to a get or post request with the data in the datastore for the
  * user in the form of json parseable by a DataTable constructor.  Also returns
  * the stored message and whether their query failed.
  *
+ * <p>Results are streamed from the datastore into the response (see {@link MotionChartWriter}),
+ * which is gzipped if the client accepts it. Responses with results carry an ETag derived from
+ * the time of the query, so a get with a matching {@code If-None-Match} is answered with 304 Not
+ * Modified without reading the results.
+ *
  * @author lparkinson@google.com (Laura Parkinson)
  */
 public class DataServlet extends HttpServlet {
 
   private static final long serialVersionUID = 1L;
-  
-  // It's important that the first column be a string and the second a number.
-  // Also, it is expected that these are the same length.
-  private final String[] labels = new String[]
-      {"State", "Year", "Average Mother Age", "Average Father Age", "U.S. Census Region"};
-  private final String[] properties = new String[]
-      {"state", "year", "average_mother_age", "average_father_age", "region"};
-  private final String[] types = new String[] {"string", "number", "number", "number", "string"};
+
+  private static final int BUFFER_SIZE = 8192;
+
+  /**
+   * Attempts to retrieve results for the logged-in user, answering with 304 Not Modified if the
+   * client already has them.
+   */
+  @Override
+  protected void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    writeData(request, response, true);
+  }
 
   /**
-   * Attempts to retrieve results for the logged-in user.  If the datastore contains
-   * results, they are written into the response as JSON.
+   * Attempts to retrieve results for the logged-in user.
    */
   @Override
   protected void doPost(HttpServletRequest request, HttpServletResponse response)
       throws IOException {
-    JsonWriter jsonWriter = new JsonWriter(response.getWriter()).beginObject();
+    writeData(request, response, false);
+  }
+
+  /**
+   * Writes the results for the logged-in user into the response as JSON, from the shared
+   * {@link QueryResultCache} if they are fresh there, and otherwise from the datastore. The cache
+   * is only filled by the task that finished the query (see {@link TaskServlet}).
+   */
+  private void writeData(HttpServletRequest request, HttpServletResponse response,
+      boolean conditional) throws IOException {
     String userId = UserServiceFactory.getUserService().getCurrentUser().getUserId();
     DatastoreUtils datastoreUtils = new DatastoreUtils(userId);
+    String cacheKey = BigqueryUtils.getExampleQueryCacheKey();
+    QueryResultCache cache = QueryResultCache.getInstance();
 
     String jobStatus = datastoreUtils.getUserJobStatus();
+    QueryResultCache.Chart chart = null;
+    Iterator<Entity> results = null;
+    Long lastRunMillis = datastoreUtils.getUserLastRunMillis();
+    String etag = null;
 
     if (("DONE").equalsIgnoreCase(jobStatus)) {
-      List<Entity> results = datastoreUtils.getResults();
-      if (!results.isEmpty()) {
-        writeResultsToMotionChartJson(jsonWriter, results);
+      chart = cache.getChart(cacheKey);
+      long runMillis = lastRunMillis != null ? lastRunMillis : 0;
+      long dataMillis = chart != null ? chart.getQueryMillis() : runMillis;
+      etag = "\"" + Long.toHexString(runMillis) + "-" + Long.toHexString(dataMillis) + "\"";
+      String ifNoneMatch = request.getHeader("If-None-Match");
+      if (conditional && ifNoneMatch != null && ifNoneMatch.contains(etag)) {
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        response.setHeader("ETag", etag);
+        return;
       }
-    }
-
-    jsonWriter.name("failed").value(datastoreUtils.hasUserQueryFailed());
-    jsonWriter.name("message").value(datastoreUtils.getUserMessage());
-    jsonWriter.name("lastRun").value(datastoreUtils.getUserLastRunMessage());
 
-    jsonWriter.endObject().close();
-  }
-
-  /**
-   * Converts the query results retrieved from the datastore to json parsable by javascript
-   * into a DataTable object for use with a motion chart.
-   */
-  private void writeResultsToMotionChartJson(JsonWriter jsonWriter, Iterable<Entity> results)
-      throws IOException {
-    jsonWriter.name("data").beginObject();
-
-    // Write the header.
-    jsonWriter.name("cols").beginArray();
-    for (int i = 0; i < properties.length; i++) {
-      jsonWriter.beginObject()
-          .name("id").value(properties[i])
-          .name("label").value(labels[i])
-          .name("type").value(types[i])
-          .endObject();
-    }
-    jsonWriter.endArray();
-
-    // Write the data.
-    jsonWriter.name("rows").beginArray();
-    for (Entity entity : results) {
-      jsonWriter.beginObject().name("c").beginArray();
-      for (int i = 0; i < properties.length; i++) {
-        String value = "";
-        if (entity.getProperty(properties[i]) != null) {
-          value = String.valueOf(entity.getProperty(properties[i]));
+      if (chart == null) {
+        results = datastoreUtils.getResults().iterator();
+        if (!results.hasNext()) {
+          // Neither the cache nor the datastore has the results, e.g. because the cached results
+          // this user was given have expired.
+          results = null;
+          etag = null;
+          datastoreUtils.putUserInformation(
+              "The results are no longer available. Run the query again, please!",
+              DatastoreUtils.FAILED);
         }
+      }
+    }
 
-        jsonWriter.beginObject().name("v").value(value).endObject();
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    response.setHeader("Cache-Control", "private, no-cache");
+    if (etag != null) {
+      response.setHeader("ETag", etag);
+    }
+    Writer writer = openWriter(request, response);
+    try {
+      // The chart is written first, as is or streamed, followed by the other members.
+      writer.write('{');
+      if (chart != null) {
+        writer.write("\"data\":");
+        writer.write(chart.getJson());
+        writer.write(',');
+      } else if (results != null) {
+        writer.write("\"data\":");
+        new MotionChartWriter(writer).write(results);
+        writer.write(',');
       }
-      jsonWriter.endArray().endObject();
+      StringWriter members = new StringWriter();
+      JsonWriter jsonWriter = new JsonWriter(members).beginObject();
+      jsonWriter.name("failed").value(datastoreUtils.hasUserQueryFailed());
+      jsonWriter.name("message").value(datastoreUtils.getUserMessage());
+      jsonWriter.name("lastRun").value(datastoreUtils.getUserLastRunMessage());
+      jsonWriter.endObject().close();
+      writer.write(members.getBuffer().substring(1));
+    } finally {
+      writer.close();
     }
-    jsonWriter.endArray();
+  }
 
-    jsonWriter.endObject();
+  /** Opens a buffered writer for the response body, gzipped if the client accepts it. */
+  private static Writer openWriter(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    response.addHeader("Vary", "Accept-Encoding");
+    OutputStream out = response.getOutputStream();
+    String acceptEncoding = request.getHeader("Accept-Encoding");
+    if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+      response.setHeader("Content-Encoding", "gzip");
+      out = new GZIPOutputStream(out, BUFFER_SIZE);
+    }
+    return new BufferedWriter(new OutputStreamWriter(out, Charsets.UTF_8), BUFFER_SIZE);
   }
 }
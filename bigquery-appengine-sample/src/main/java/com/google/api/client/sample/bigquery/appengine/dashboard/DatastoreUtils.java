@@ -2,10 +2,12 @@
 
 package com.google.api.client.sample.bigquery.appengine.dashboard;
 
+import com.google.api.client.util.Data;
 import com.google.api.client.util.Preconditions;
 import com.google.api.services.bigquery.model.TableCell;
 import com.google.api.services.bigquery.model.TableFieldSchema;
 import com.google.api.services.bigquery.model.TableRow;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
@@ -14,30 +16,69 @@ import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.Query;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.servlet.http.HttpServletResponse;
 
 /**
  * Utility methods for inserting, accessing, and deleting data in the datastore.
  *
+ * <p>Each run's results are written under their own generation key, a child of the user's entity.
+ * The user entity names the generation that is shown, so new results replace old ones in a
+ * single put once they are complete, and older generations are deleted afterwards at leisure
+ * (see {@link #deleteStaleResults()}). Results written before generations existed are children of
+ * the user's entity itself, and count as generation 0. An ancestor query on the user's entity also
+ * matches the results of every generation, so those of generation 0 are told apart by their parent.
+ *
  * @author lparkinson@google.com (Laura Parkinson)
  */
 public class DatastoreUtils {
 
   public static final String FAILED = "FAILED";
 
+  /** Job status shown while the results are being copied to the datastore. */
+  public static final String COPYING = "COPYING";
+
+  /** Entities written per put; the datastore accepts at most 500 in one call. */
+  public static final int DEFAULT_PUT_BATCH_SIZE = 500;
+
+  /** Puts that may be in flight at once while copying results. */
+  public static final int DEFAULT_PUTS_IN_FLIGHT = 4;
+
+  /** Minimum time between progress updates to the user entity while copying results. */
+  private static final long PROGRESS_INTERVAL_MILLIS = 2000;
+
+  /** Kind of the (never stored) parent keys of each generation of results. */
+  private static final String GENERATION_KIND = "ResultGeneration";
+
+  /** Keys deleted per call when deleting stale results. */
+  private static final int DELETE_BATCH_SIZE = 500;
+
+  /** Deletes that may be in flight at once. */
+  private static final int DELETES_IN_FLIGHT = 4;
+
   private final Key userEntityKey;
   private final String resultKind;
   private final DatastoreService service;
+  private final AsyncDatastoreService asyncService;
   private Entity userEntity;
+  private long writeGeneration;
 
   public DatastoreUtils(String userId) {
     userEntityKey = KeyFactory.createKey("User", userId);
     service = DatastoreServiceFactory.getDatastoreService();
+    asyncService = DatastoreServiceFactory.getAsyncDatastoreService();
     resultKind = userId + "Result";
 
     try {
@@ -68,11 +109,39 @@ public class DatastoreUtils {
   }
 
   /**
-   * Updates the user entity with the current time, creating it if necessary.
+   * Updates the user entity with the current time, creating it if necessary, and makes the results
+   * copied by {@link #copyQueryResultsToDatastore} the ones returned by {@link #getResults()}.
    */
   public void updateSuccessfulQueryTimestamp() {
     createUserIfNull();
     userEntity.setProperty("timestamp", System.currentTimeMillis());
+    if (writeGeneration != 0) {
+      userEntity.setProperty("resultGeneration", writeGeneration);
+    }
+    service.put(userEntity);
+  }
+
+  /**
+   * Marks the user's query as done, with results from {@link QueryResultCache} rather than the
+   * datastore.
+   *
+   * @param queryMillis the time the query that produced the cached results ran
+   */
+  public void useCachedResults(long queryMillis) {
+    createUserIfNull();
+    userEntity.setProperty("jobStatus", "DONE");
+    userEntity.setProperty("message", "Here are your results!");
+    userEntity.setProperty("timestamp", queryMillis);
+    service.put(userEntity);
+  }
+
+  /**
+   * Records how many polls, and how much time, the user's last job needed before it finished.
+   */
+  public void putJobWaitStatistics(int polls, long waitMillis) {
+    createUserIfNull();
+    userEntity.setProperty("jobPolls", polls);
+    userEntity.setProperty("jobWaitMillis", waitMillis);
     service.put(userEntity);
   }
 
@@ -89,15 +158,21 @@ public class DatastoreUtils {
   }
 
   public String getUserLastRunMessage() {
-    String timestamp = getUserEntityProperty("timestamp");
+    Long timestamp = getUserLastRunMillis();
     if (timestamp == null) {
       return "never";
     }
     SimpleDateFormat format = new SimpleDateFormat("k:mm:ss 'on' MMMM d, yyyy zzz");
-    Date date = new Date(Long.valueOf(timestamp));
+    Date date = new Date(timestamp);
     return format.format(date);
   }
 
+  /** Returns the time the user's last successful query ran, or {@code null} if none has. */
+  public Long getUserLastRunMillis() {
+    String timestamp = getUserEntityProperty("timestamp");
+    return timestamp != null ? Long.valueOf(timestamp) : null;
+  }
+
   private String getUserEntityProperty(String propertyName) {
     if (userEntity != null && userEntity.hasProperty(propertyName)) {
       return String.valueOf(userEntity.getProperty(propertyName));
@@ -105,48 +180,201 @@ public class DatastoreUtils {
     return null;
   }
 
-  public List<Entity> getResults() {
-    Query query = new Query(resultKind, userEntityKey);
+  /**
+   * Returns the user's current results. They are fetched in chunks as they are iterated, so they
+   * need not fit in memory.
+   */
+  public Iterable<Entity> getResults() {
+    long generation = getResultGeneration();
+    Query query = new Query(resultKind, generationKey(generation));
+    FetchOptions options = FetchOptions.Builder.withChunkSize(2000);
+    Iterable<Entity> results = service.prepare(query).asIterable(options);
+    if (generation != 0) {
+      return results;
+    }
+    // Skip the results of any newer generation, e.g. of a run still being copied.
+    return Iterables.filter(results, new Predicate<Entity>() {
+      @Override
+      public boolean apply(Entity entity) {
+        return userEntityKey.equals(entity.getKey().getParent());
+      }
+    });
+  }
+
+  /** Returns the generation of the results currently shown to the user. */
+  private long getResultGeneration() {
+    Object generation =
+        userEntity != null ? userEntity.getProperty("resultGeneration") : null;
+    return generation != null ? ((Number) generation).longValue() : 0;
+  }
+
+  private Key generationKey(long generation) {
+    return generation == 0
+        ? userEntityKey : KeyFactory.createKey(userEntityKey, GENERATION_KIND, generation);
+  }
+
+  private static long generationOf(Key resultKey) {
+    Key parent = resultKey.getParent();
+    return GENERATION_KIND.equals(parent.getKind()) ? parent.getId() : 0;
+  }
+
+  /**
+   * Deletes the results of generations older than the one shown to the user, i.e. results that
+   * have been replaced, or that an earlier run left behind. Only keys are queried, and they are
+   * deleted in asynchronous batches with a bounded number in flight. Generations newer than the
+   * shown one may belong to a run still in progress, and are left alone.
+   *
+   * @return the number of results deleted
+   */
+  public long deleteStaleResults() throws SampleDashboardException {
+    long currentGeneration = getResultGeneration();
+    Query query = new Query(resultKind, userEntityKey).setKeysOnly();
     FetchOptions options = FetchOptions.Builder.withChunkSize(2000);
-    return service.prepare(query).asList(options);
+    LinkedList<Future<Void>> deletes = new LinkedList<Future<Void>>();
+    List<Key> batch = new ArrayList<Key>(DELETE_BATCH_SIZE);
+    long deleted = 0;
+    for (Entity entity : service.prepare(query).asIterable(options)) {
+      if (generationOf(entity.getKey()) >= currentGeneration) {
+        continue;
+      }
+      batch.add(entity.getKey());
+      if (batch.size() == DELETE_BATCH_SIZE) {
+        if (deletes.size() == DELETES_IN_FLIGHT) {
+          await(deletes.removeFirst());
+        }
+        deletes.add(asyncService.delete(batch));
+        deleted += batch.size();
+        batch = new ArrayList<Key>(DELETE_BATCH_SIZE);
+      }
+    }
+    if (!batch.isEmpty()) {
+      deletes.add(asyncService.delete(batch));
+      deleted += batch.size();
+    }
+    while (!deletes.isEmpty()) {
+      await(deletes.removeFirst());
+    }
+    return deleted;
+  }
+
+  /**
+   * Copies each row of the given data into an entity of a new generation of the user's results,
+   * using the default batch size and number of puts in flight.
+   *
+   * @return the number of rows copied
+   */
+  public long copyQueryResultsToDatastore(List<TableFieldSchema> fields, TableRowIterator rows)
+      throws SampleDashboardException {
+    return copyQueryResultsToDatastore(fields, rows, DEFAULT_PUT_BATCH_SIZE,
+        DEFAULT_PUTS_IN_FLIGHT);
   }
 
   /**
-   * Removes any existing results for the user from the datastore.
+   * Copies each row of the given data into an entity of a new generation of the user's results,
+   * which {@link #updateSuccessfulQueryTimestamp()} then makes current. Rows are converted and put
+   * in batches of {@code batchSize}, with up to {@code putsInFlight} asynchronous puts
+   * outstanding, so only a few batches are in memory at a time. The number of rows copied so far
+   * is shown in the user's message as it goes.
+   *
+   * @return the number of rows copied
    */
-  public void deleteExistingResults() {
-    ArrayList<Key> keys = new ArrayList<Key>();
-    List<Entity> results = getResults();
-    for (Entity entity : results) {
-      keys.add(entity.getKey());
+  public long copyQueryResultsToDatastore(List<TableFieldSchema> fields, TableRowIterator rows,
+      int batchSize, int putsInFlight) throws SampleDashboardException {
+    Preconditions.checkArgument(batchSize > 0 && putsInFlight > 0);
+    // A new generation, so the results shown meanwhile are untouched. The time keeps it unique
+    // if two runs for the same user overlap.
+    writeGeneration = Math.max(System.currentTimeMillis(), getResultGeneration() + 1);
+    LinkedList<Future<List<Key>>> puts = new LinkedList<Future<List<Key>>>();
+    List<Entity> batch = new ArrayList<Entity>(batchSize);
+    long copied = 0;
+    long lastProgressMillis = System.currentTimeMillis();
+    while (rows.hasNext()) {
+      batch.add(toEntity(fields, rows.next(), generationKey(writeGeneration)));
+      if (batch.size() == batchSize) {
+        if (puts.size() == putsInFlight) {
+          copied += await(puts.removeFirst()).size();
+          if (System.currentTimeMillis() - lastProgressMillis >= PROGRESS_INTERVAL_MILLIS) {
+            putUserInformation("Copying the results of the query (" + copied + " rows so far)",
+                COPYING);
+            lastProgressMillis = System.currentTimeMillis();
+          }
+        }
+        puts.add(asyncService.put(batch));
+        batch = new ArrayList<Entity>(batchSize);
+      }
+    }
+    if (!batch.isEmpty()) {
+      puts.add(asyncService.put(batch));
     }
-    service.delete(keys);
+    while (!puts.isEmpty()) {
+      copied += await(puts.removeFirst()).size();
+    }
+    return copied;
   }
 
   /**
-   * Copies each row of the given data into an entity, then puts all the entities
-   * to the datastore with the user's entity as their ancestor.
+   * Writes the averages of the given partial aggregates as a new generation of the user's
+   * results, with the same properties as the rows of the example query. Like
+   * {@link #copyQueryResultsToDatastore}, it is made current by
+   * {@link #updateSuccessfulQueryTimestamp()}.
+   *
+   * @return the number of results written
    */
-  public void copyQueryResultsToDatastore(List<TableFieldSchema> fields,
-      List<TableRow> rows) {
-    ArrayList<Entity> entities = new ArrayList<Entity>();
-    Iterator<TableRow> rowsIterator = rows.iterator();
-    while (rowsIterator.hasNext()) {
-      Entity entity = new Entity(resultKind, userEntityKey);
+  public long copyAggregatesToDatastore(List<NatalityAggregates.Partial> partials)
+      throws SampleDashboardException {
+    writeGeneration = Math.max(System.currentTimeMillis(), getResultGeneration() + 1);
+    Key parent = generationKey(writeGeneration);
+    List<Entity> entities = new ArrayList<Entity>(partials.size());
+    for (NatalityAggregates.Partial partial : partials) {
+      Entity entity = new Entity(resultKind, parent);
+      entity.setProperty("region", BigqueryUtils.regionOf(partial.getState()));
+      entity.setProperty("average_mother_age", String.valueOf(partial.getAverageMotherAge()));
+      entity.setProperty("average_father_age", String.valueOf(partial.getAverageFatherAge()));
+      entity.setProperty("state", partial.getState());
+      entity.setProperty("year", String.valueOf(partial.getYear()));
+      entities.add(entity);
+    }
+    LinkedList<Future<List<Key>>> puts = new LinkedList<Future<List<Key>>>();
+    for (List<Entity> batch : Lists.partition(entities, DEFAULT_PUT_BATCH_SIZE)) {
+      puts.add(asyncService.put(batch));
+    }
+    long written = 0;
+    while (!puts.isEmpty()) {
+      written += await(puts.removeFirst()).size();
+    }
+    return written;
+  }
 
-      // Copy the row into the entity -- fields become properties.
-      Iterator<TableFieldSchema> fieldsIterator = fields.iterator();
-      Iterator<TableCell> dataIterator = rowsIterator.next().getF().iterator();
+  /**
+   * Copies the row into an entity -- fields become properties.
+   */
+  private Entity toEntity(List<TableFieldSchema> fields, TableRow row, Key parent) {
+    Entity entity = new Entity(resultKind, parent);
+    Iterator<TableFieldSchema> fieldsIterator = fields.iterator();
+    Iterator<TableCell> dataIterator = row.getF().iterator();
 
+    Preconditions.checkState(fieldsIterator.hasNext() == dataIterator.hasNext());
+    while (fieldsIterator.hasNext() && dataIterator.hasNext()) {
+      Object value = dataIterator.next().getV();
+      // A NULL cell is parsed as a sentinel object rather than null.
+      String strValue = !Data.isNull(value) ? String.valueOf(value) : null;
+      entity.setProperty(fieldsIterator.next().getName(), strValue);
       Preconditions.checkState(fieldsIterator.hasNext() == dataIterator.hasNext());
-      while (fieldsIterator.hasNext() && dataIterator.hasNext()) {
-        Object value = dataIterator.next().getV();
-        String strValue = (value != null) ? String.valueOf(value) : null;
-        entity.setProperty(fieldsIterator.next().getName(), strValue);
-        Preconditions.checkState(fieldsIterator.hasNext() == dataIterator.hasNext());
-      }
-      entities.add(entity);
     }
-    service.put(entities);
+    return entity;
+  }
+
+  /** Waits for an asynchronous put or delete and returns its result. */
+  private static <T> T await(Future<T> operation) throws SampleDashboardException {
+    try {
+      return operation.get();
+    } catch (ExecutionException ex) {
+      throw new SampleDashboardException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+          "Unable to write results to the datastore: " + ex.getCause());
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new SampleDashboardException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+          "Interrupted while writing results to the datastore");
+    }
   }
 }
@@ -0,0 +1,114 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.api.client.sample.bigquery.appengine.dashboard;
+
+import com.google.api.services.bigquery.Bigquery;
+import com.google.api.services.bigquery.model.GetQueryResultsResponse;
+import com.google.api.services.bigquery.model.Job;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Waits for a query job to finish with as few requests as possible.
+ *
+ * <p>Each {@link #poll()} is a {@code jobs.getQueryResults} call with {@code timeoutMs} set, which
+ * the service holds open until the job completes or the timeout passes, so a single request
+ * covers many seconds of waiting. Its {@code jobComplete} is all that is read while the job runs;
+ * the job itself is fetched once it is done, for its errors and statistics. When the job is still
+ * not done, {@link #nextDelayMillis} gives the time to wait before the next poll: it doubles with
+ * each poll up to a cap. The response doesn't tell a pending job from a running one, so both are
+ * waited for the same way.
+ */
+class JobWaiter {
+
+  /** How long the service holds each poll open. */
+  static final long LONG_POLL_TIMEOUT_MILLIS = 10000;
+
+  private static final long INITIAL_DELAY_MILLIS = 500;
+  private static final long MAX_DELAY_MILLIS = 10000;
+
+  private final Bigquery bigquery;
+  private final String userId;
+  private final String projectId;
+  private final String jobId;
+  private int polls;
+
+  /**
+   * @param userId the user whose client {@code bigquery} is
+   * @param polls the number of polls already made for this job, e.g. by earlier tasks
+   */
+  JobWaiter(Bigquery bigquery, String userId, String projectId, String jobId, int polls) {
+    this.bigquery = bigquery;
+    this.userId = userId;
+    this.projectId = projectId;
+    this.jobId = jobId;
+    this.polls = polls;
+  }
+
+  /** Returns the number of polls made for this job so far. */
+  int getPolls() {
+    return polls;
+  }
+
+  /**
+   * Waits up to {@link #LONG_POLL_TIMEOUT_MILLIS} for the job to finish and returns whether it
+   * has, successfully or not.
+   *
+   * @throws SampleDashboardException if the job can't be polled, e.g. after the retries of a rate
+   *         limit error ran out
+   */
+  boolean poll() throws SampleDashboardException {
+    polls++;
+    try {
+      GetQueryResultsResponse response = BigqueryUtils.tryToDo(bigquery, userId,
+          new Callable<GetQueryResultsResponse>() {
+            @Override
+            public GetQueryResultsResponse call() throws IOException {
+              return bigquery.jobs().getQueryResults(projectId, jobId)
+                  .setTimeoutMs(LONG_POLL_TIMEOUT_MILLIS)
+                  .setMaxResults(0L)
+                  .setFields("jobComplete")
+                  .execute();
+            }
+          });
+      return Boolean.TRUE.equals(response.getJobComplete());
+    } catch (SampleDashboardException ex) {
+      // A failed job makes getQueryResults respond with the job's error, e.g. 400 for an invalid
+      // query, which jobs.get then reports properly. Errors that RetryPolicy retries got here only
+      // because the retries ran out, so they fail the wait, as do those of the request itself.
+      int status = ex.getStatusCode();
+      if (status == HttpServletResponse.SC_BAD_REQUEST && isDone()) {
+        return true;
+      }
+      throw ex;
+    }
+  }
+
+  /** Returns whether {@code jobs.get} reports the job as done. */
+  private boolean isDone() throws SampleDashboardException {
+    Job job = BigqueryUtils.tryToDo(bigquery, userId, new Callable<Job>() {
+      @Override
+      public Job call() throws IOException {
+        return bigquery.jobs().get(projectId, jobId).setFields("status/state").execute();
+      }
+    });
+    return job.getStatus() != null && "DONE".equals(job.getStatus().getState());
+  }
+
+  /** Returns how long to wait before the next poll of a job that is not done. */
+  long nextDelayMillis() {
+    return delayMillis(polls);
+  }
+
+  /**
+   * Returns how long to wait before the next poll of a job that is not done, after the given
+   * number of polls.
+   */
+  static long delayMillis(int polls) {
+    // Shift by at most 20 so the delay can't overflow before it is capped.
+    return Math.min(MAX_DELAY_MILLIS, INITIAL_DELAY_MILLIS << Math.min(20, Math.max(0, polls - 1)));
+  }
+}
@@ -42,6 +42,14 @@ public class MainServlet extends AbstractAppEngineAuthorizationCodeServlet {
 
   private void runQuery(HttpServletRequest request, HttpServletResponse response, String userId,
       DatastoreUtils datastoreUtils) throws IOException {
+    // Use the results of an identical query that ran recently, if there are any.
+    QueryResultCache.Chart chart =
+        QueryResultCache.getInstance().getChart(BigqueryUtils.getExampleQueryCacheKey());
+    if (chart != null) {
+      datastoreUtils.useCachedResults(chart.getQueryMillis());
+      return;
+    }
+
     // Clear the information from the last run for this user
     datastoreUtils.putUserInformation("Beginning query...", null);
 
@@ -106,7 +114,7 @@ public class MainServlet extends AbstractAppEngineAuthorizationCodeServlet {
 
   @Override
   protected AuthorizationCodeFlow initializeFlow() throws IOException {
-    return ServiceUtils.newFlow();
+    return ServiceUtils.getFlow();
   }
 
   @Override
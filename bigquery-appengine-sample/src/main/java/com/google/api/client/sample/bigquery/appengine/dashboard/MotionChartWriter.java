@@ -0,0 +1,247 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.api.client.sample.bigquery.appengine.dashboard;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Iterator;
+
+/**
+ * Streams result entities into the JSON of a DataTable for the motion chart, one entity at a time,
+ * so a result of any size is written without holding it in memory.
+ *
+ * <p>The column layout is fixed, so the header and the JSON between cells are built once, and each
+ * cell is written straight to the output: strings are escaped in place, and integers are formatted
+ * into a reused buffer. Cells of number columns are written as JSON numbers. The results are stored
+ * as the strings BigQuery returns (see {@link DatastoreUtils#copyQueryResultsToDatastore}), so
+ * numbers are only checked and copied as they are, which is cheaper than formatting stored numbers.
+ */
+class MotionChartWriter {
+
+  /** The type of a DataTable column. */
+  enum ColumnType {
+    STRING("string"), NUMBER("number");
+
+    final String name;
+
+    ColumnType(String name) {
+      this.name = name;
+    }
+  }
+
+  /** A DataTable column and the result property it is read from. */
+  static final class Column {
+    final String property;
+    final String label;
+    final ColumnType type;
+
+    Column(String property, String label, ColumnType type) {
+      this.property = property;
+      this.label = label;
+      this.type = type;
+    }
+  }
+
+  // It's important that the first column be a string and the second a number.
+  static final Column[] COLUMNS = {
+      new Column("state", "State", ColumnType.STRING),
+      new Column("year", "Year", ColumnType.NUMBER),
+      new Column("average_mother_age", "Average Mother Age", ColumnType.NUMBER),
+      new Column("average_father_age", "Average Father Age", ColumnType.NUMBER),
+      new Column("region", "U.S. Census Region", ColumnType.STRING)};
+
+  /** The start of the DataTable, up to the first row. */
+  private static final String HEADER = buildHeader();
+
+  private static final String ROW_START = "{\"c\":[{\"v\":";
+  private static final String NEXT_ROW_START = "," + ROW_START;
+  private static final String CELL_SEPARATOR = "},{\"v\":";
+  private static final String ROW_END = "}]}";
+  private static final String FOOTER = "]}";
+
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private final Writer out;
+  private final char[] digits = new char[20];
+
+  /**
+   * @param out where the DataTable is written; it is flushed but not closed
+   */
+  MotionChartWriter(Writer out) {
+    this.out = out;
+  }
+
+  /**
+   * Writes the results as a DataTable object.
+   *
+   * @return the number of rows written
+   */
+  long write(Iterator<Entity> results) throws IOException {
+    out.write(HEADER);
+    long rows = 0;
+    while (results.hasNext()) {
+      Entity entity = results.next();
+      out.write(rows == 0 ? ROW_START : NEXT_ROW_START);
+      for (int i = 0; i < COLUMNS.length; i++) {
+        if (i > 0) {
+          out.write(CELL_SEPARATOR);
+        }
+        Column column = COLUMNS[i];
+        writeValue(column.type, entity.getProperty(column.property));
+      }
+      out.write(ROW_END);
+      rows++;
+    }
+    out.write(FOOTER);
+    out.flush();
+    return rows;
+  }
+
+  private static String buildHeader() {
+    StringWriter header = new StringWriter();
+    try {
+      JsonWriter jsonWriter = new JsonWriter(header);
+      jsonWriter.beginObject().name("cols").beginArray();
+      for (Column column : COLUMNS) {
+        jsonWriter.beginObject()
+            .name("id").value(column.property)
+            .name("label").value(column.label)
+            .name("type").value(column.type.name)
+            .endObject();
+      }
+      jsonWriter.endArray().name("rows").beginArray().endArray().endObject().close();
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+    // Drop the closing "]}", so rows can follow.
+    return header.toString().substring(0, header.getBuffer().length() - FOOTER.length());
+  }
+
+  private void writeValue(ColumnType type, Object value) throws IOException {
+    if (value == null) {
+      out.write("null");
+    } else if (type == ColumnType.STRING) {
+      writeString(value instanceof String ? (String) value : String.valueOf(value));
+    } else if (value instanceof Long || value instanceof Integer) {
+      writeLong(((Number) value).longValue());
+    } else if (value instanceof Number) {
+      double doubleValue = ((Number) value).doubleValue();
+      if (doubleValue == (long) doubleValue && Math.abs(doubleValue) < 1e15) {
+        writeLong((long) doubleValue);
+      } else if (Double.isNaN(doubleValue) || Double.isInfinite(doubleValue)) {
+        // JSON has no NaN or infinity.
+        out.write("null");
+      } else {
+        out.write(Double.toString(doubleValue));
+      }
+    } else {
+      String string = value.toString();
+      out.write(isJsonNumber(string) ? string : "null");
+    }
+  }
+
+  /** Writes a long without allocating, most significant digit first. */
+  private void writeLong(long value) throws IOException {
+    if (value == Long.MIN_VALUE) {
+      out.write(Long.toString(value));
+      return;
+    }
+    int start = digits.length;
+    long remaining = Math.abs(value);
+    do {
+      digits[--start] = (char) ('0' + remaining % 10);
+      remaining /= 10;
+    } while (remaining != 0);
+    if (value < 0) {
+      out.write('-');
+    }
+    out.write(digits, start, digits.length - start);
+  }
+
+  /** Writes a JSON string, copying runs of characters that need no escaping as they are. */
+  private void writeString(String value) throws IOException {
+    out.write('"');
+    int runStart = 0;
+    int length = value.length();
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      if (c >= 0x20 && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029') {
+        continue;
+      }
+      out.write(value, runStart, i - runStart);
+      runStart = i + 1;
+      switch (c) {
+        case '"':
+          out.write("\\\"");
+          break;
+        case '\\':
+          out.write("\\\\");
+          break;
+        case '\n':
+          out.write("\\n");
+          break;
+        case '\r':
+          out.write("\\r");
+          break;
+        case '\t':
+          out.write("\\t");
+          break;
+        default:
+          out.write("\\u");
+          out.write(HEX_DIGITS[c >> 12 & 0xf]);
+          out.write(HEX_DIGITS[c >> 8 & 0xf]);
+          out.write(HEX_DIGITS[c >> 4 & 0xf]);
+          out.write(HEX_DIGITS[c & 0xf]);
+      }
+    }
+    out.write(value, runStart, length - runStart);
+    out.write('"');
+  }
+
+  /** Returns whether {@code s} is a number as JSON defines it, so it can be written as is. */
+  static boolean isJsonNumber(String s) {
+    int i = 0;
+    int length = s.length();
+    if (i < length && s.charAt(i) == '-') {
+      i++;
+    }
+    int digitsStart = i;
+    while (i < length && isDigit(s.charAt(i))) {
+      i++;
+    }
+    if (i == digitsStart || s.charAt(digitsStart) == '0' && i - digitsStart > 1) {
+      return false;
+    }
+    if (i < length && s.charAt(i) == '.') {
+      int fractionStart = ++i;
+      while (i < length && isDigit(s.charAt(i))) {
+        i++;
+      }
+      if (i == fractionStart) {
+        return false;
+      }
+    }
+    if (i < length && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+      i++;
+      if (i < length && (s.charAt(i) == '+' || s.charAt(i) == '-')) {
+        i++;
+      }
+      int exponentStart = i;
+      while (i < length && isDigit(s.charAt(i))) {
+        i++;
+      }
+      if (i == exponentStart) {
+        return false;
+      }
+    }
+    return i == length;
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+}
@@ -0,0 +1,214 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.api.client.sample.bigquery.appengine.dashboard;
+
+import com.google.api.client.util.Data;
+import com.google.api.services.bigquery.model.TableCell;
+import com.google.api.services.bigquery.model.TableFieldSchema;
+import com.google.api.services.bigquery.model.TableRow;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.common.collect.Lists;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Partial aggregates of the natality query for the incremental refresh mode, which is turned on
+ * by setting the system property {@code ...dashboard.incremental} to {@code true}.
+ *
+ * <p>For each (year, state) partition, the sums and counts of the parents' ages are stored, shared
+ * by all users, rather than the averages, so partitions can be recomputed separately and then
+ * combined into averages that equal those of a full run. The natality table has no modification
+ * times, so a refresh treats the latest stored year, and any later ones, as changed: it queries
+ * only those partitions (see {@link #buildQuery}), and {@link #merge} replaces them in the stored
+ * aggregates. Births whose state is NULL form partitions of their own, as in the full query, whose
+ * state is {@code null}.
+ *
+ * <p>Corrections to the births of earlier years are therefore not picked up: the stored aggregates
+ * of those years stay as they were computed until the {@code NatalityAggregate} entities are
+ * deleted, after which the next refresh recomputes every year, as the first one did.
+ */
+public class NatalityAggregates {
+
+  private static final String KIND = "NatalityAggregate";
+
+  /** Puts per call; the datastore accepts at most 500 entities in one call. */
+  private static final int PUT_BATCH_SIZE = 500;
+
+  private static final String[] QUERY_FIELDS = {"year", "state", "mother_age_sum",
+      "mother_age_count", "father_age_sum", "father_age_count"};
+
+  /** The sums and counts of the parents' ages in one (year, state) partition. */
+  public static final class Partial {
+    private final long year;
+    private final String state;
+    private final long motherAgeSum;
+    private final long motherAgeCount;
+    private final long fatherAgeSum;
+    private final long fatherAgeCount;
+
+    Partial(long year, String state, long motherAgeSum, long motherAgeCount, long fatherAgeSum,
+        long fatherAgeCount) {
+      this.year = year;
+      this.state = state;
+      this.motherAgeSum = motherAgeSum;
+      this.motherAgeCount = motherAgeCount;
+      this.fatherAgeSum = fatherAgeSum;
+      this.fatherAgeCount = fatherAgeCount;
+    }
+
+    public long getYear() {
+      return year;
+    }
+
+    /** Returns the state, or {@code null} for the births whose state is NULL. */
+    public String getState() {
+      return state;
+    }
+
+    /** Returns the average age of the mothers, as the full query computes it. */
+    public double getAverageMotherAge() {
+      return (double) motherAgeSum / motherAgeCount;
+    }
+
+    /** Returns the average age of the fathers, as the full query computes it. */
+    public double getAverageFatherAge() {
+      return (double) fatherAgeSum / fatherAgeCount;
+    }
+
+    /** Returns the aggregate of this partition and another part of it. */
+    Partial plus(Partial other) {
+      return new Partial(year, state, motherAgeSum + other.motherAgeSum,
+          motherAgeCount + other.motherAgeCount, fatherAgeSum + other.fatherAgeSum,
+          fatherAgeCount + other.fatherAgeCount);
+    }
+
+    /** Returns the key name of the partition; the NULL state has an empty name. */
+    String getPartition() {
+      return year + "-" + (state != null ? state : "");
+    }
+  }
+
+  private final DatastoreService service;
+
+  public NatalityAggregates() {
+    this(DatastoreServiceFactory.getDatastoreService());
+  }
+
+  NatalityAggregates(DatastoreService service) {
+    this.service = service;
+  }
+
+  /** Returns whether refreshes recompute only the changed partitions. */
+  public static boolean isEnabled() {
+    return Boolean.getBoolean(
+        "com.google.api.client.sample.bigquery.appengine.dashboard.incremental");
+  }
+
+  /** Returns whether a query result has the schema of {@link #buildQuery}. */
+  public static boolean isAggregateSchema(List<TableFieldSchema> fields) {
+    if (fields == null || fields.size() != QUERY_FIELDS.length) {
+      return false;
+    }
+    for (int i = 0; i < QUERY_FIELDS.length; i++) {
+      if (!QUERY_FIELDS[i].equals(fields.get(i).getName())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the query for the partial aggregates of the given year and the later ones. The rows
+   * are filtered as in {@link BigqueryUtils#buildExampleQuery()}.
+   */
+  public static String buildQuery(long fromYear) {
+    return "SELECT year, \nstate, \nSUM(mother_age) as mother_age_sum, \n"
+        + "COUNT(mother_age) as mother_age_count, \nSUM(father_age) as father_age_sum, \n"
+        + "COUNT(father_age) as father_age_count \n"
+        + "FROM publicdata:samples.natality \nWHERE father_age < 99 AND year >= " + fromYear
+        + " \nGROUP BY year, state;";
+  }
+
+  /**
+   * Returns the first year to recompute: the latest stored year, which may have been incomplete
+   * when it was computed, or 0 if nothing is stored yet. Earlier years are assumed not to change.
+   */
+  public long getRefreshFromYear() {
+    Query query = new Query(KIND).addSort("year", SortDirection.DESCENDING);
+    List<Entity> latest = service.prepare(query).asList(FetchOptions.Builder.withLimit(1));
+    return latest.isEmpty() ? 0 : (Long) latest.get(0).getProperty("year");
+  }
+
+  /**
+   * Reads the partial aggregates of a {@link #buildQuery} result and stores them, replacing the
+   * stored aggregates of the same partitions and keeping all others.
+   *
+   * @return the number of partitions stored
+   */
+  public int merge(List<TableFieldSchema> fields, TableRowIterator rows)
+      throws SampleDashboardException {
+    if (!isAggregateSchema(fields)) {
+      throw new IllegalArgumentException("Not a partial aggregate result: " + fields);
+    }
+    Map<String, Partial> partials = new LinkedHashMap<String, Partial>();
+    while (rows.hasNext()) {
+      Partial partial = toPartial(rows.next());
+      Partial previous = partials.get(partial.getPartition());
+      partials.put(partial.getPartition(), previous != null ? previous.plus(partial) : partial);
+    }
+    List<Entity> entities = new ArrayList<Entity>(partials.size());
+    for (Partial partial : partials.values()) {
+      entities.add(toEntity(partial));
+    }
+    for (List<Entity> batch : Lists.partition(entities, PUT_BATCH_SIZE)) {
+      service.put(batch);
+    }
+    return entities.size();
+  }
+
+  /** Returns the stored aggregates of all partitions. */
+  public List<Partial> loadAll() {
+    List<Partial> partials = new ArrayList<Partial>();
+    for (Entity entity : service.prepare(new Query(KIND)).asIterable(
+        FetchOptions.Builder.withChunkSize(2000))) {
+      partials.add(new Partial((Long) entity.getProperty("year"),
+          (String) entity.getProperty("state"), (Long) entity.getProperty("motherAgeSum"),
+          (Long) entity.getProperty("motherAgeCount"), (Long) entity.getProperty("fatherAgeSum"),
+          (Long) entity.getProperty("fatherAgeCount")));
+    }
+    return partials;
+  }
+
+  private static Partial toPartial(TableRow row) {
+    List<TableCell> cells = row.getF();
+    Object state = cells.get(1).getV();
+    return new Partial(toLong(cells.get(0)), !Data.isNull(state) ? String.valueOf(state) : null,
+        toLong(cells.get(2)), toLong(cells.get(3)), toLong(cells.get(4)), toLong(cells.get(5)));
+  }
+
+  /** Returns the value of a cell, or 0 if it is NULL, which the parser reads as a sentinel. */
+  private static long toLong(TableCell cell) {
+    Object value = cell.getV();
+    return !Data.isNull(value) ? Long.parseLong(String.valueOf(value)) : 0;
+  }
+
+  private static Entity toEntity(Partial partial) {
+    Entity entity = new Entity(KeyFactory.createKey(KIND, partial.getPartition()));
+    entity.setProperty("year", partial.year);
+    entity.setProperty("state", partial.state);
+    entity.setUnindexedProperty("motherAgeSum", partial.motherAgeSum);
+    entity.setUnindexedProperty("motherAgeCount", partial.motherAgeCount);
+    entity.setUnindexedProperty("fatherAgeSum", partial.fatherAgeSum);
+    entity.setUnindexedProperty("fatherAgeCount", partial.fatherAgeCount);
+    return entity;
+  }
+}
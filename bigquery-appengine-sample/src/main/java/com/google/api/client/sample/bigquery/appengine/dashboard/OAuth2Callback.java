@@ -10,6 +10,7 @@ import com.google.appengine.api.users.UserServiceFactory;
 
 import java.io.IOException;
 
+import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -25,7 +26,9 @@ public class OAuth2Callback extends AbstractAppEngineAuthorizationCodeCallbackSe
 
   @Override
   protected void onSuccess(HttpServletRequest req, HttpServletResponse resp, Credential credential)
-      throws IOException {
+      throws ServletException, IOException {
+    // Requests for this user should use the new credential from now on.
+    ServiceUtils.invalidateBigqueryClient(getUserId(req));
     resp.sendRedirect("/");
   }
 
@@ -46,6 +49,6 @@ public class OAuth2Callback extends AbstractAppEngineAuthorizationCodeCallbackSe
 
   @Override
   protected AuthorizationCodeFlow initializeFlow() throws IOException {
-    return ServiceUtils.newFlow();
+    return ServiceUtils.getFlow();
   }
 }
@@ -0,0 +1,198 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.api.client.sample.bigquery.appengine.dashboard;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.hash.Hashing;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of chart JSON shared by all users, keyed by a hash of the normalized query that produced
+ * it, and a registry of the query jobs that are running, so identical queries are neither rerun
+ * while their results are fresh nor started twice at the same time. Only the user who started a
+ * job can read it and its results, so the others who submit the query while it runs wait for
+ * that user to share its chart here.
+ *
+ * <p>Charts are kept in memcache, which is shared by all instances and evicts on its own, and in
+ * a smaller in-instance cache in front of it, bounded by the total length of its charts. An entry
+ * is fresh for {@link #TTL_MILLIS} after its query ran, however long ago it was cached.
+ */
+public class QueryResultCache {
+
+  /** How long the results of a query are used instead of running it again. */
+  public static final long TTL_MILLIS = 60 * 60 * 1000;
+
+  /** Total length of the charts kept in each instance. */
+  private static final long MAX_LOCAL_CHARS = 8 * 1024 * 1024;
+
+  /** Longest chart put in memcache, whose values are limited to 1 MB. */
+  private static final int MAX_SHARED_CHARS = 900 * 1024;
+
+  /** How long a submission may take before others stop waiting for its job ID. */
+  private static final long JOB_RESERVATION_MILLIS = 30 * 1000;
+
+  /** How long a running job is offered to identical submissions. */
+  private static final long RUNNING_JOB_MILLIS = 15 * 60 * 1000;
+
+  /**
+   * Returned by {@link #findOrReserveRunningJob} while an identical query is being submitted, whose
+   * job ID isn't known yet.
+   */
+  public static final String JOB_BEING_SUBMITTED = "";
+
+  private static final QueryResultCache INSTANCE = new QueryResultCache();
+
+  /** A cached chart and the time its query ran. */
+  public static final class Chart implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String json;
+    private final long queryMillis;
+
+    Chart(String json, long queryMillis) {
+      this.json = json;
+      this.queryMillis = queryMillis;
+    }
+
+    /** Returns the chart, as the JSON of a DataTable. */
+    public String getJson() {
+      return json;
+    }
+
+    /** Returns the time the query that produced the chart ran. */
+    public long getQueryMillis() {
+      return queryMillis;
+    }
+
+    boolean isFresh() {
+      return System.currentTimeMillis() - queryMillis < TTL_MILLIS;
+    }
+  }
+
+  private final MemcacheService memcache =
+      MemcacheServiceFactory.getMemcacheService(QueryResultCache.class.getName());
+  private final Cache<String, Chart> localCharts = CacheBuilder.newBuilder()
+      .maximumWeight(MAX_LOCAL_CHARS)
+      .weigher(new Weigher<String, Chart>() {
+        @Override
+        public int weigh(String key, Chart chart) {
+          return chart.getJson().length();
+        }
+      })
+      .expireAfterWrite(TTL_MILLIS, TimeUnit.MILLISECONDS)
+      .build();
+
+  public static QueryResultCache getInstance() {
+    return INSTANCE;
+  }
+
+  private QueryResultCache() {
+  }
+
+  /**
+   * Returns the cache key of a query. Runs of whitespace are treated as one space, so formatting
+   * doesn't matter.
+   */
+  public static String keyFor(String query) {
+    String normalized = query.trim().replaceAll("\\s+", " ");
+    return Hashing.sha256().hashString(normalized, Charsets.UTF_8).toString();
+  }
+
+  /** Returns the fresh chart for the query with the given key, or {@code null}. */
+  public Chart getChart(String key) {
+    Chart chart = localCharts.getIfPresent(key);
+    if (chart == null) {
+      chart = (Chart) memcache.get(chartKey(key));
+      if (chart != null) {
+        localCharts.put(key, chart);
+      }
+    }
+    return chart != null && chart.isFresh() ? chart : null;
+  }
+
+  /**
+   * Caches the chart for the query with the given key, unless it is already stale.
+   *
+   * @param queryMillis the time the query that produced the chart ran
+   */
+  public void putChart(String key, String json, long queryMillis) {
+    Chart chart = new Chart(json, queryMillis);
+    long remainingMillis = queryMillis + TTL_MILLIS - System.currentTimeMillis();
+    if (remainingMillis <= 0) {
+      return;
+    }
+    localCharts.put(key, chart);
+    if (json.length() <= MAX_SHARED_CHARS) {
+      memcache.put(chartKey(key), chart, Expiration.byDeltaMillis((int) remainingMillis));
+    }
+  }
+
+  /**
+   * Returns the ID of a running job for the query with the given key, {@link #JOB_BEING_SUBMITTED}
+   * if an identical query is being submitted, or {@code null} if the caller should start one. In
+   * that case the query is reserved, so identical submissions wait for the caller's job, and the
+   * caller must then either {@link #putRunningJob register} its job or
+   * {@link #removeRunningJob release} the reservation. It never waits, so callers that get a job
+   * wait for its chart in a task.
+   */
+  public String findOrReserveRunningJob(String key) {
+    String jobKey = jobKey(key);
+    while (!memcache.put(jobKey, JOB_BEING_SUBMITTED, Expiration.byDeltaMillis(
+        (int) JOB_RESERVATION_MILLIS), SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+      String jobId = (String) memcache.get(jobKey);
+      if (jobId != null) {
+        return jobId;
+      }
+      // The job finished, or its reservation expired, in the meantime; try to reserve it again.
+    }
+    return null;
+  }
+
+  /**
+   * Returns whether the given job, as returned by {@link #findOrReserveRunningJob}, is still
+   * running for the query with the given key. While a query is being submitted, any job that
+   * submission registers counts.
+   */
+  public boolean isRunning(String key, String jobId) {
+    String current = (String) memcache.get(jobKey(key));
+    return current != null && (jobId.equals(current) || JOB_BEING_SUBMITTED.equals(jobId));
+  }
+
+  /**
+   * Offers a newly started job to identical submissions until its results are shared, or it
+   * fails.
+   */
+  public void putRunningJob(String key, String jobId) {
+    memcache.put(jobKey(key), jobId, Expiration.byDeltaMillis((int) RUNNING_JOB_MILLIS));
+  }
+
+  /**
+   * Stops offering the given job, e.g. because it finished, or releases the reservation if
+   * {@code jobId} is {@code null}.
+   */
+  public void removeRunningJob(String key, String jobId) {
+    String jobKey = jobKey(key);
+    Object current = memcache.get(jobKey);
+    if (current != null && current.equals(jobId != null ? jobId : JOB_BEING_SUBMITTED)) {
+      memcache.delete(jobKey);
+    }
+  }
+
+  private static String chartKey(String key) {
+    return "chart:" + key;
+  }
+
+  private static String jobKey(String key) {
+    return "job:" + key;
+  }
+}
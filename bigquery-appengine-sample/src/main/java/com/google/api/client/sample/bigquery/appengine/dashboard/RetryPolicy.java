@@ -0,0 +1,258 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.api.client.sample.bigquery.appengine.dashboard;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpResponseException;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Runs calls to the BigQuery API, retrying the ones that failed for a reason that may pass.
+ *
+ * <p>Errors are classified (see {@link ErrorClass}). Rate limit, server and network errors are
+ * retried after an exponentially growing delay with random jitter, so clients that failed together
+ * don't retry together, or after the delay the server asks for in {@code Retry-After}. An
+ * authorization error is retried once, right after the access token is refreshed; if it persists,
+ * the user's cached client is dropped. Other client
+ * errors, such as 400 Bad Request or 404 Not Found, are not retried. The number of errors and
+ * retries of each class is counted for the whole instance.
+ */
+class RetryPolicy {
+
+  private static final Logger log = Logger.getLogger(RetryPolicy.class.getName());
+
+  /** Why a call failed. */
+  enum ErrorClass {
+    /** 429, or 403 with a rate limit reason: retried with backoff. */
+    RATE_LIMIT(true),
+    /** 5xx: retried with backoff. */
+    SERVER(true),
+    /** An I/O error without a response, e.g. a timeout: retried with backoff. */
+    NETWORK(true),
+    /** 401: retried once after refreshing the access token. */
+    AUTH(false),
+    /** Any other error: not retried. */
+    CLIENT(false);
+
+    final boolean backOff;
+
+    ErrorClass(boolean backOff) {
+      this.backOff = backOff;
+    }
+  }
+
+  /** The policy used by {@link BigqueryUtils#tryToDo}. */
+  static final RetryPolicy DEFAULT = new RetryPolicy(5, 500, 1000, 16000, 30000);
+
+  private static final Map<ErrorClass, AtomicLong> ERRORS = newCounters();
+  private static final Map<ErrorClass, AtomicLong> RETRIES = newCounters();
+
+  private final int maxAttempts;
+  private final long initialDelayMillis;
+  private final long initialRateLimitDelayMillis;
+  private final long maxDelayMillis;
+  private final long maxElapsedMillis;
+  private final Random random = new Random();
+
+  /**
+   * @param maxAttempts the most times a call is made
+   * @param initialDelayMillis the delay before the first retry after a server or network error;
+   *        it doubles with each retry
+   * @param initialRateLimitDelayMillis the same, after a rate limit error
+   * @param maxDelayMillis the longest delay between attempts, before jitter
+   * @param maxElapsedMillis the time after which a call is no longer retried
+   */
+  RetryPolicy(int maxAttempts, long initialDelayMillis, long initialRateLimitDelayMillis,
+      long maxDelayMillis, long maxElapsedMillis) {
+    this.maxAttempts = maxAttempts;
+    this.initialDelayMillis = initialDelayMillis;
+    this.initialRateLimitDelayMillis = initialRateLimitDelayMillis;
+    this.maxDelayMillis = maxDelayMillis;
+    this.maxElapsedMillis = maxElapsedMillis;
+  }
+
+  /**
+   * Runs the callback until it succeeds or fails in a way that isn't retried.
+   *
+   * @param credential the credential whose token is refreshed after an authorization error, or
+   *        {@code null}
+   * @param userId the user whose cached client is dropped if authorization keeps failing, or
+   *        {@code null}
+   */
+  <T> T call(Callable<T> callback, Credential credential, String userId)
+      throws SampleDashboardException {
+    long start = System.currentTimeMillis();
+    boolean refreshed = false;
+    for (int attempt = 1;; attempt++) {
+      Exception failure;
+      try {
+        return callback.call();
+      } catch (Exception ex) {
+        failure = ex;
+      }
+
+      ErrorClass errorClass = classify(failure);
+      ERRORS.get(errorClass).incrementAndGet();
+      SampleDashboardException sdex = new SampleDashboardException(failure);
+      log.warning("Caught " + errorClass + " exception (" + sdex.getStatusCode() + ") on attempt "
+          + attempt + ": " + failure);
+      if (attempt >= maxAttempts) {
+        throw giveUp(errorClass, sdex, userId);
+      }
+
+      if (errorClass == ErrorClass.AUTH) {
+        if (refreshed || credential == null || !refreshToken(credential)) {
+          throw giveUp(errorClass, sdex, userId);
+        }
+        refreshed = true;
+      } else if (errorClass.backOff) {
+        long delay = getDelayMillis(errorClass, attempt, failure);
+        if (System.currentTimeMillis() + delay - start > maxElapsedMillis) {
+          throw sdex;
+        }
+        sleep(delay);
+      } else {
+        throw sdex;
+      }
+      RETRIES.get(errorClass).incrementAndGet();
+    }
+  }
+
+  /** Returns the class of an error thrown by a call to the API. */
+  static ErrorClass classify(Exception ex) {
+    if (ex instanceof HttpResponseException) {
+      int status = ((HttpResponseException) ex).getStatusCode();
+      if (status == 429 || status == HttpServletResponse.SC_FORBIDDEN && isRateLimit(ex)) {
+        return ErrorClass.RATE_LIMIT;
+      } else if (status >= 500) {
+        return ErrorClass.SERVER;
+      } else if (status == HttpServletResponse.SC_UNAUTHORIZED) {
+        return ErrorClass.AUTH;
+      }
+      return ErrorClass.CLIENT;
+    }
+    return ex instanceof IOException ? ErrorClass.NETWORK : ErrorClass.CLIENT;
+  }
+
+  private static boolean isRateLimit(Exception ex) {
+    if (!(ex instanceof GoogleJsonResponseException)) {
+      return false;
+    }
+    GoogleJsonError details = ((GoogleJsonResponseException) ex).getDetails();
+    if (details == null || details.getErrors() == null) {
+      return false;
+    }
+    for (GoogleJsonError.ErrorInfo error : details.getErrors()) {
+      String reason = error.getReason();
+      if ("rateLimitExceeded".equals(reason) || "userRateLimitExceeded".equals(reason)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns how long to wait before the next attempt: the server's {@code Retry-After} if it sent
+   * one, and otherwise an exponential delay, of which a random half is jitter.
+   */
+  long getDelayMillis(ErrorClass errorClass, int attempt, Exception ex) {
+    long retryAfter = getRetryAfterMillis(ex);
+    if (retryAfter >= 0) {
+      return retryAfter;
+    }
+    long initial =
+        errorClass == ErrorClass.RATE_LIMIT ? initialRateLimitDelayMillis : initialDelayMillis;
+    // Shift by at most 20 so the delay can't overflow before it is capped.
+    long delay = Math.min(maxDelayMillis, initial << Math.min(20, attempt - 1));
+    synchronized (random) {
+      return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+    }
+  }
+
+  /** Returns the delay asked for by the response's {@code Retry-After} header, or -1. */
+  private static long getRetryAfterMillis(Exception ex) {
+    if (!(ex instanceof HttpResponseException)) {
+      return -1;
+    }
+    String retryAfter = ((HttpResponseException) ex).getHeaders().getRetryAfter();
+    if (retryAfter == null) {
+      return -1;
+    }
+    retryAfter = retryAfter.trim();
+    try {
+      return Math.max(0, Long.parseLong(retryAfter) * 1000);
+    } catch (NumberFormatException e) {
+      // It may be an HTTP date instead.
+    }
+    try {
+      SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+      return Math.max(0, format.parse(retryAfter).getTime() - System.currentTimeMillis());
+    } catch (ParseException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Returns the exception to throw for a call that is not retried again. After an authorization
+   * error the user's cached client is dropped, so the next request builds one from the credential
+   * stored by then, e.g. after the user authorized again.
+   */
+  private static SampleDashboardException giveUp(ErrorClass errorClass,
+      SampleDashboardException sdex, String userId) {
+    if (errorClass == ErrorClass.AUTH && userId != null) {
+      ServiceUtils.invalidateBigqueryClient(userId);
+    }
+    return sdex;
+  }
+
+  private static boolean refreshToken(Credential credential) {
+    try {
+      return credential.refreshToken();
+    } catch (IOException e) {
+      log.warning("Unable to refresh the access token: " + e);
+      return false;
+    }
+  }
+
+  private static void sleep(long millis) throws SampleDashboardException {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SampleDashboardException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+          "Interrupted while waiting to retry");
+    }
+  }
+
+  /** Returns the number of errors of the given class so far, retried or not. */
+  static long getErrorCount(ErrorClass errorClass) {
+    return ERRORS.get(errorClass).get();
+  }
+
+  /** Returns the number of retries after errors of the given class so far. */
+  static long getRetryCount(ErrorClass errorClass) {
+    return RETRIES.get(errorClass).get();
+  }
+
+  private static Map<ErrorClass, AtomicLong> newCounters() {
+    Map<ErrorClass, AtomicLong> counters = new EnumMap<ErrorClass, AtomicLong>(ErrorClass.class);
+    for (ErrorClass errorClass : ErrorClass.values()) {
+      counters.put(errorClass, new AtomicLong());
+    }
+    return counters;
+  }
+}
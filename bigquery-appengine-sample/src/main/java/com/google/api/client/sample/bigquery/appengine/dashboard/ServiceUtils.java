@@ -27,10 +27,15 @@ import com.google.api.client.util.Preconditions;
 import com.google.api.client.util.store.DataStoreFactory;
 import com.google.api.services.bigquery.Bigquery;
 import com.google.api.services.bigquery.BigqueryScopes;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -42,8 +47,8 @@ import javax.servlet.http.HttpServletRequest;
  */
 class ServiceUtils {
 
-  /** Global instance of the HTTP transport. */
-  static final HttpTransport HTTP_TRANSPORT = new UrlFetchTransport();
+  /** Global instance of the HTTP transport; see {@link #setHttpTransport}. */
+  private static volatile HttpTransport httpTransport = new UrlFetchTransport();
 
   /** Global instance of the JSON factory. */
   static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
@@ -55,9 +60,54 @@ class ServiceUtils {
   private static final AppEngineDataStoreFactory DATA_STORE_FACTORY =
       AppEngineDataStoreFactory.getDefaultInstance();
 
+  /**
+   * System property with the root URL of the BigQuery API, to use a stand-in such as the
+   * {@code FakeBigqueryServer} of the load test; the real API is used if it isn't set.
+   */
+  static final String ROOT_URL_PROPERTY =
+      "com.google.api.client.sample.bigquery.appengine.dashboard.rootUrl";
+
+  /** Users whose Bigquery clients are kept by each instance. */
+  private static final int MAX_CACHED_CLIENTS = 100;
+
+  /** How long an unused Bigquery client is kept. */
+  private static final long CLIENT_IDLE_MINUTES = 30;
+
   private static GoogleClientSecrets clientSecrets = null;
 
-  static GoogleClientSecrets getClientCredential() throws IOException {
+  private static GoogleAuthorizationCodeFlow flow = null;
+
+  /**
+   * Bigquery clients by user ID, so requests for a user don't read their credential from the
+   * datastore and build a client each time. The credential refreshes its own access token, and
+   * stores it through the flow, so a cached client stays usable until the user's authorization is
+   * revoked; see {@link #invalidateBigqueryClient}.
+   */
+  private static final Cache<String, Bigquery> CLIENTS = CacheBuilder.newBuilder()
+      .maximumSize(MAX_CACHED_CLIENTS)
+      .expireAfterAccess(CLIENT_IDLE_MINUTES, TimeUnit.MINUTES)
+      .build();
+
+  /**
+   * Uses the given client secrets instead of the ones in {@code client_secrets.json}, e.g. for a
+   * load test against stand-in services.
+   */
+  static synchronized void setClientCredential(GoogleClientSecrets secrets) {
+    clientSecrets = secrets;
+    flow = null;
+  }
+
+  /**
+   * Sends requests with the given transport instead of URL fetch, e.g. for a load test outside
+   * App Engine. Clients built before are dropped.
+   */
+  static synchronized void setHttpTransport(HttpTransport transport) {
+    httpTransport = transport;
+    flow = null;
+    CLIENTS.invalidateAll();
+  }
+
+  static synchronized GoogleClientSecrets getClientCredential() throws IOException {
     if (clientSecrets == null) {
       clientSecrets = GoogleClientSecrets.load(JSON_FACTORY,
           new InputStreamReader(ServiceUtils.class.getResourceAsStream("/client_secrets.json")));
@@ -76,22 +126,65 @@ class ServiceUtils {
   }
 
   static void deleteCredentials(String userId) throws IOException {
-    GoogleAuthorizationCodeFlow flow = newFlow();
+    invalidateBigqueryClient(userId);
+    GoogleAuthorizationCodeFlow flow = getFlow();
     Credential credential = flow.loadCredential(userId);
     if (credential != null) {
       flow.getCredentialDataStore().delete(userId);
     }
   }
 
-  static GoogleAuthorizationCodeFlow newFlow() throws IOException {
-    return new GoogleAuthorizationCodeFlow.Builder(HTTP_TRANSPORT, JSON_FACTORY,
-        getClientCredential(), Collections.singleton(BigqueryScopes.BIGQUERY)).setDataStoreFactory(
-        DATA_STORE_FACTORY).setAccessType("offline").build();
+  /** Returns the authorization code flow, which is shared by all requests. */
+  static synchronized GoogleAuthorizationCodeFlow getFlow() throws IOException {
+    if (flow == null) {
+      flow = new GoogleAuthorizationCodeFlow.Builder(httpTransport, JSON_FACTORY,
+          getClientCredential(), Collections.singleton(BigqueryScopes.BIGQUERY))
+          .setDataStoreFactory(DATA_STORE_FACTORY).setAccessType("offline").build();
+    }
+    return flow;
   }
 
-  static Bigquery loadBigqueryClient(String userId) throws IOException {
-    Credential credential = newFlow().loadCredential(userId);
-    return new Bigquery.Builder(HTTP_TRANSPORT, JSON_FACTORY, credential).build();
+  /**
+   * Returns the Bigquery client of the given user, from the cache if possible. A user without a
+   * credential gets a client that isn't cached, whose requests fail as unauthorized.
+   */
+  static Bigquery loadBigqueryClient(final String userId) throws IOException {
+    Bigquery bigquery = CLIENTS.getIfPresent(userId);
+    if (bigquery != null) {
+      return bigquery;
+    }
+    final Credential credential = getFlow().loadCredential(userId);
+    if (credential == null) {
+      return newBigqueryClient(null);
+    }
+    try {
+      // Another request may have cached a client in the meantime; then that one is used.
+      return CLIENTS.get(userId, new Callable<Bigquery>() {
+        @Override
+        public Bigquery call() {
+          return newBigqueryClient(credential);
+        }
+      });
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+  }
+
+  private static Bigquery newBigqueryClient(Credential credential) {
+    Bigquery.Builder builder = new Bigquery.Builder(httpTransport, JSON_FACTORY, credential);
+    String rootUrl = System.getProperty(ROOT_URL_PROPERTY);
+    if (rootUrl != null) {
+      builder.setRootUrl(rootUrl);
+    }
+    return builder.build();
+  }
+
+  /**
+   * Drops the cached Bigquery client of the given user, e.g. because a request was unauthorized or
+   * the user authorized again, so the next one is built from the stored credential.
+   */
+  static void invalidateBigqueryClient(String userId) {
+    CLIENTS.invalidate(userId);
   }
 
   private ServiceUtils() {
@@ -0,0 +1,194 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.api.client.sample.bigquery.appengine.dashboard;
+
+import com.google.api.services.bigquery.Bigquery;
+import com.google.api.services.bigquery.model.TableDataList;
+import com.google.api.services.bigquery.model.TableReference;
+import com.google.api.services.bigquery.model.TableRow;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Iterates over all the rows of a table, one page of {@code tabledata().list()} at a time, so a
+ * result of any size can be read without holding more than a few pages in memory.
+ *
+ * <p>Pages are fetched on the given executor ahead of the one being consumed. If the table's row
+ * count is known and more than one page may be in flight, pages are requested by
+ * {@code startIndex} and fetched in parallel; otherwise each page's {@code pageToken} is followed,
+ * and the next page is fetched while the current one is consumed. Rows are returned in table order
+ * either way.
+ *
+ * <p>The service may return fewer rows than requested, for instance when a page would exceed its
+ * response size limit, so in parallel mode a short page is followed by a request for the rows it
+ * is missing, ahead of the pages already in flight.
+ *
+ * <p>{@link #close()} must be called when done, to stop any prefetch still running.
+ */
+public class TableRowIterator {
+
+  private final Bigquery bigquery;
+  private final String userId;
+  private final TableReference table;
+  private final long pageSize;
+  private final long totalRows;
+  private final int maxPagesInFlight;
+  private final ExecutorService executor;
+  private final LinkedList<Page> pages = new LinkedList<Page>();
+  private Iterator<TableRow> currentPage = Collections.<TableRow>emptyList().iterator();
+  private long nextStartIndex;
+
+  /**
+   * @param userId the user whose client {@code bigquery} is
+   * @param totalRows the number of rows in the table, or -1 if not known
+   * @param maxPagesInFlight how many pages may be fetched ahead of the one being consumed; more
+   *        than one requires {@code totalRows}
+   */
+  TableRowIterator(Bigquery bigquery, String userId, TableReference table, long pageSize,
+      long totalRows, int maxPagesInFlight, ExecutorService executor) {
+    this.bigquery = bigquery;
+    this.userId = userId;
+    this.table = table;
+    this.pageSize = pageSize;
+    this.totalRows = totalRows;
+    this.maxPagesInFlight = totalRows >= 0 ? maxPagesInFlight : 1;
+    this.executor = executor;
+    if (isParallel()) {
+      fetchAhead();
+    } else {
+      pages.add(new Page(fetch(null, pageSize, null), -1, -1));
+    }
+  }
+
+  public boolean hasNext() throws SampleDashboardException {
+    while (!currentPage.hasNext()) {
+      if (pages.isEmpty()) {
+        return false;
+      }
+      Page pending = pages.removeFirst();
+      TableDataList page = await(pending.rows);
+      if (isParallel()) {
+        fetchGap(pending, page);
+        fetchAhead();
+      } else if (page.getPageToken() != null) {
+        pages.add(new Page(fetch(null, pageSize, page.getPageToken()), -1, -1));
+      }
+      if (page.getRows() != null) {
+        currentPage = page.getRows().iterator();
+      }
+    }
+    return true;
+  }
+
+  public TableRow next() throws SampleDashboardException {
+    if (!hasNext()) {
+      throw new IllegalStateException("No more rows in " + table.getTableId());
+    }
+    return currentPage.next();
+  }
+
+  /** Stops fetching pages. */
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  private boolean isParallel() {
+    return maxPagesInFlight > 1;
+  }
+
+  /** Keeps up to {@code maxPagesInFlight} pages requested by start index. */
+  private void fetchAhead() {
+    while (pages.size() < maxPagesInFlight && nextStartIndex < totalRows) {
+      long rowCount = Math.min(pageSize, totalRows - nextStartIndex);
+      pages.add(new Page(fetch(BigInteger.valueOf(nextStartIndex), rowCount, null),
+          nextStartIndex, rowCount));
+      nextStartIndex += rowCount;
+    }
+  }
+
+  /**
+   * Requests the rows missing from a short page before any other page, asking for no more than
+   * the missing rows so the request doesn't overlap the next page.
+   */
+  private void fetchGap(Page pending, TableDataList page) throws SampleDashboardException {
+    long received = page.getRows() != null ? page.getRows().size() : 0;
+    if (received >= pending.rowCount) {
+      return;
+    }
+    if (received == 0) {
+      throw new SampleDashboardException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+          "Got no rows of " + table.getTableId() + " from index " + pending.startIndex + ", "
+          + "expected " + pending.rowCount);
+    }
+    long gapStartIndex = pending.startIndex + received;
+    long gapRowCount = pending.rowCount - received;
+    pages.addFirst(new Page(fetch(BigInteger.valueOf(gapStartIndex), gapRowCount, null),
+        gapStartIndex, gapRowCount));
+  }
+
+  private Future<TableDataList> fetch(
+      final BigInteger startIndex, final long maxResults, final String pageToken) {
+    return executor.submit(new Callable<TableDataList>() {
+      @Override
+      public TableDataList call() throws SampleDashboardException {
+        return BigqueryUtils.tryToDo(bigquery, userId, new Callable<TableDataList>() {
+          @Override
+          public TableDataList call() throws IOException {
+            return bigquery.tabledata()
+                .list(table.getProjectId(), table.getDatasetId(), table.getTableId())
+                .setMaxResults(maxResults)
+                .setStartIndex(startIndex)
+                .setPageToken(pageToken)
+                .execute();
+          }
+        });
+      }
+    });
+  }
+
+  private TableDataList await(Future<TableDataList> page) throws SampleDashboardException {
+    try {
+      return page.get();
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof SampleDashboardException) {
+        throw (SampleDashboardException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new SampleDashboardException((Exception) cause);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new SampleDashboardException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+          "Interrupted while reading " + table.getTableId());
+    }
+  }
+
+  /** A requested page, with the rows it was requested for in parallel mode. */
+  private static class Page {
+
+    final Future<TableDataList> rows;
+    final long startIndex;
+    final long rowCount;
+
+    /**
+     * @param startIndex the index of the first row requested, or -1 when following page tokens
+     * @param rowCount the number of rows requested, or -1 when following page tokens
+     */
+    Page(Future<TableDataList> rows, long startIndex, long rowCount) {
+      this.rows = rows;
+      this.startIndex = startIndex;
+      this.rowCount = rowCount;
+    }
+  }
+}
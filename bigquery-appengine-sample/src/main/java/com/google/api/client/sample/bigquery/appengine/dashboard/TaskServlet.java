@@ -2,7 +2,13 @@
 
 package com.google.api.client.sample.bigquery.appengine.dashboard;
 
+import com.google.api.services.bigquery.model.TableFieldSchema;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+
 import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
 import java.util.logging.Logger;
 
 import javax.servlet.http.HttpServlet;
@@ -11,13 +17,20 @@ import javax.servlet.http.HttpServletResponse;
 
 /**
  * This servlet receives a post request when the task that was waiting for the query to finish comes
- * out of the App Engine task queue. It gets the status of the query from Bigquery and:
+ * out of the App Engine task queue. It waits for the query for a while (see {@link JobWaiter}) and:
  * <ul>
- * <li>copies the results to the datastore if the query has finished successfully</li>
- * <li>enqueues another task to wait if the query is running/pending</li>
+ * <li>copies the results to the datastore if the query has finished successfully, and shares
+ * them in {@link QueryResultCache}</li>
+ * <li>enqueues another task to wait, with a growing delay, if the query is running/pending</li>
  * <li>handles query failure</li>
  * </ul>
  *
+ * The users who submitted the same query while it ran can't read its job, so their tasks wait for
+ * the shared results instead, and run the query themselves if it finishes without sharing any.
+ *
+ * Once new results are shown, a separate task deletes the ones they replaced (see
+ * {@link DatastoreUtils#deleteStaleResults()}), so that doesn't delay them.
+ *
  * <b>Note:</b> Because of the auth-constraint defined in web.xml, this can only be called by App
  * Engine, and not by users.
  *
@@ -28,54 +41,248 @@ public class TaskServlet extends HttpServlet {
   private static final long serialVersionUID = 1L;
   private static final Logger log = Logger.getLogger(TaskServlet.class.getName());
 
+  /** Result pages fetched ahead of the one being copied to the datastore. */
+  private static final int PAGES_IN_FLIGHT = 4;
+
+  /** Longest chart shared in {@link QueryResultCache}. */
+  private static final int MAX_SHARED_CHART_CHARS = 4 * 1024 * 1024;
+
   @Override
   protected void doPost(HttpServletRequest request, HttpServletResponse response)
       throws IOException {
     String userId = request.getParameter("userId");
     String jobId = request.getParameter("jobId");
+    int polls = parseOrDefault(request.getParameter("polls"), 0);
+    long waitStartMillis = parseOrDefault(request.getParameter("waitStart"),
+        System.currentTimeMillis());
 
     DatastoreUtils datastoreUtils = new DatastoreUtils(userId);
+    if (Boolean.parseBoolean(request.getParameter("cleanup"))) {
+      deleteStaleResults(userId, datastoreUtils, response);
+      return;
+    }
+    if (Boolean.parseBoolean(request.getParameter("shared"))) {
+      waitForSharedChart(userId, jobId, polls, waitStartMillis, datastoreUtils);
+      return;
+    }
+
     String message;
     String status = DatastoreUtils.FAILED;
+    boolean resultsCopied = false;
 
     try {
-      BigqueryUtils bigqueryUtils = new BigqueryUtils(userId, jobId);
+      BigqueryUtils bigqueryUtils = new BigqueryUtils(userId);
+      JobWaiter waiter = bigqueryUtils.newJobWaiter(jobId, polls);
 
       // If the job is done, handle it; otherwise, enqueue another task to wait for it.
-      if (bigqueryUtils.jobIsDone()) {
-        // Delete any previous results for this user.
-        datastoreUtils.deleteExistingResults();
-
-        // If the job succeeded, copy the results to the datastore.
-        if (bigqueryUtils.jobSucceeded()) {
-          datastoreUtils.copyQueryResultsToDatastore(
-              bigqueryUtils.getSchemaFieldNames(), bigqueryUtils.getTableData());
+      if (waiter.poll()) {
+        long waitMillis = System.currentTimeMillis() - waitStartMillis;
+        log.info("Job " + jobId + " finished after " + waiter.getPolls() + " polls and "
+            + waitMillis + " ms");
+        datastoreUtils.putJobWaitStatistics(waiter.getPolls(), waitMillis);
+        String cacheKey = BigqueryUtils.getExampleQueryCacheKey();
+        try {
+          bigqueryUtils.loadJob(jobId);
+          message = handleFinishedJob(bigqueryUtils, datastoreUtils, cacheKey);
+          if (bigqueryUtils.jobSucceeded()) {
+            status = bigqueryUtils.getJobStatus();
+            resultsCopied = true;
+          }
+        } finally {
+          // The users waiting for the shared chart now either have it, or run the query themselves.
+          QueryResultCache.getInstance().removeRunningJob(cacheKey, jobId);
+        }
+      } else {
+        // If it's not done, keep waiting for it.
+        bigqueryUtils.enqueueWaitingTask(jobId, false, waiter.getPolls(), waitStartMillis,
+            waiter.nextDelayMillis());
+        message = "Waiting for the results of the query (running)";
+        status = "RUNNING";
+      }
+    } catch (SampleDashboardException ex) {
+      message = getFailureMessage(userId, ex);
+    }
 
-          message = "Here are your results!";
-          status = bigqueryUtils.getJobStatus();
+    // Update the datastore with the new message and status.
+    datastoreUtils.putUserInformation(message, status);
+    if (resultsCopied) {
+      enqueueCleanupTask(userId);
+    }
+  }
 
-          datastoreUtils.updateSuccessfulQueryTimestamp();
+  /**
+   * Copies the results of a finished job to the datastore if it succeeded, and shares them.
+   *
+   * @return the message for the user
+   */
+  private static String handleFinishedJob(BigqueryUtils bigqueryUtils,
+      DatastoreUtils datastoreUtils, String cacheKey)
+      throws SampleDashboardException, IOException {
+    // If the job succeeded, copy the results to the datastore. The results of an incremental
+    // refresh are merged into the stored aggregates first, which then give the results.
+    if (bigqueryUtils.jobSucceeded()) {
+      List<TableFieldSchema> fields = bigqueryUtils.getSchemaFieldNames();
+      TableRowIterator rows = bigqueryUtils.getTableRows(PAGES_IN_FLIGHT);
+      try {
+        if (NatalityAggregates.isAggregateSchema(fields)) {
+          NatalityAggregates aggregates = new NatalityAggregates();
+          aggregates.merge(fields, rows);
+          datastoreUtils.copyAggregatesToDatastore(aggregates.loadAll());
         } else {
-          message = bigqueryUtils.getJobErrorMessage();
+          datastoreUtils.copyQueryResultsToDatastore(fields, rows);
         }
+      } finally {
+        rows.close();
+      }
+
+      datastoreUtils.updateSuccessfulQueryTimestamp();
+      shareChart(datastoreUtils, cacheKey);
+      return "Here are your results!";
+    }
+    return bigqueryUtils.getJobErrorMessage();
+  }
+
+  /**
+   * Shares the user's new results in {@link QueryResultCache}, with the users who submitted the
+   * same query while it ran and with those who submit it while the results are fresh.
+   */
+  private static void shareChart(DatastoreUtils datastoreUtils, String cacheKey)
+      throws IOException {
+    ChartBuffer chart = new ChartBuffer(MAX_SHARED_CHART_CHARS);
+    new MotionChartWriter(chart).write(datastoreUtils.getResults().iterator());
+    if (chart.getJson() != null) {
+      QueryResultCache.getInstance().putChart(
+          cacheKey, chart.getJson(), datastoreUtils.getUserLastRunMillis());
+    } else {
+      log.info("The chart is too large to share");
+    }
+  }
+
+  /**
+   * Waits for the chart of another user's job, which that user's task shares once it has copied
+   * the results. If the job is no longer running and there is no chart, e.g. because the job
+   * failed or the chart was too large to share, the user runs the query themselves.
+   */
+  private static void waitForSharedChart(String userId, String jobId, int polls,
+      long waitStartMillis, DatastoreUtils datastoreUtils) throws IOException {
+    QueryResultCache cache = QueryResultCache.getInstance();
+    String cacheKey = BigqueryUtils.getExampleQueryCacheKey();
+    // The job is checked first: its owner shares the chart before it stops offering the job.
+    boolean running = cache.isRunning(cacheKey, jobId);
+    QueryResultCache.Chart chart = cache.getChart(cacheKey);
+    if (chart != null) {
+      datastoreUtils.useCachedResults(chart.getQueryMillis());
+      return;
+    }
+
+    String message;
+    String status = DatastoreUtils.FAILED;
+    try {
+      BigqueryUtils bigqueryUtils = new BigqueryUtils(userId);
+      if (running) {
+        bigqueryUtils.enqueueWaitingTask(jobId, true, polls + 1, waitStartMillis,
+            JobWaiter.delayMillis(polls + 1));
+        message = "Waiting for the results of the query (running)";
+        status = "RUNNING";
       } else {
-        // If it's not done, keep waiting for it.
-        String jobStatus = bigqueryUtils.getJobStatus();
-        bigqueryUtils.enqueueWaitingTask();
-        message = "Waiting for the results of the query (" + jobStatus.toLowerCase() + ")";
-        status = jobStatus;
+        log.info("Job " + jobId + " finished without a shared chart; running the query again");
+        bigqueryUtils.beginQuery();
+        message = "Began running your query";
+        status = bigqueryUtils.getJobStatus();
       }
     } catch (SampleDashboardException ex) {
-      if (ex.getStatusCode() == HttpServletResponse.SC_UNAUTHORIZED) {
-        ServiceUtils.deleteCredentials(userId);
-        message = "There was a problem running the query with your credentials. Refresh, please!";
-      } else {
-        message = "Encountered an exception (" + ex.getStatusCode() + "): " + ex.getMessage();
-        log.severe(message);
+      message = getFailureMessage(userId, ex);
+    }
+    datastoreUtils.putUserInformation(message, status);
+  }
+
+  /**
+   * Puts a task in App Engine's default task queue that deletes the results replaced by the ones
+   * the user was just shown. Unlike the waiting tasks, it is retried if it fails.
+   */
+  private static void enqueueCleanupTask(String userId) {
+    TaskOptions options = TaskOptions.Builder.withDefaults();
+    options.param("cleanup", "true");
+    options.param("userId", userId);
+    options.url("/task");
+    QueueFactory.getDefaultQueue().add(options);
+  }
+
+  /** Deletes the user's stale results, failing the task so it is retried if that fails. */
+  private static void deleteStaleResults(String userId, DatastoreUtils datastoreUtils,
+      HttpServletResponse response) throws IOException {
+    try {
+      long deleted = datastoreUtils.deleteStaleResults();
+      log.info("Deleted " + deleted + " stale results of " + userId);
+    } catch (SampleDashboardException ex) {
+      log.warning("Unable to delete stale results: " + ex.getMessage());
+      response.sendError(ex.getStatusCode(), ex.getMessage());
+    }
+  }
+
+  /** Returns the message for a failed request, deleting the user's credentials if rejected. */
+  private static String getFailureMessage(String userId, SampleDashboardException ex)
+      throws IOException {
+    if (ex.getStatusCode() == HttpServletResponse.SC_UNAUTHORIZED) {
+      ServiceUtils.deleteCredentials(userId);
+      return "There was a problem running the query with your credentials. Refresh, please!";
+    }
+    String message =
+        "Encountered an exception (" + ex.getStatusCode() + "): " + ex.getMessage();
+    log.severe(message);
+    return message;
+  }
+
+  private static int parseOrDefault(String value, int defaultValue) {
+    return value != null ? Integer.parseInt(value) : defaultValue;
+  }
+
+  private static long parseOrDefault(String value, long defaultValue) {
+    return value != null ? Long.parseLong(value) : defaultValue;
+  }
+
+  /** Collects a chart, unless it has more than a given number of characters. */
+  private static final class ChartBuffer extends Writer {
+
+    private final int maxChars;
+    private StringBuilder json = new StringBuilder();
+
+    ChartBuffer(int maxChars) {
+      this.maxChars = maxChars;
+    }
+
+    /** Returns the chart, or {@code null} if it was too long. */
+    String getJson() {
+      return json != null ? json.toString() : null;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+      if (reserve(len)) {
+        json.append(cbuf, off, len);
       }
     }
 
-    // Update the datastore with the new message and status.
-    datastoreUtils.putUserInformation(message, status);
+    @Override
+    public void write(String str, int off, int len) {
+      if (reserve(len)) {
+        json.append(str, off, off + len);
+      }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private boolean reserve(int len) {
+      if (json != null && json.length() + len > maxChars) {
+        json = null;
+      }
+      return json != null;
+    }
   }
 }
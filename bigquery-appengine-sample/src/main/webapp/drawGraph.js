@@ -1,9 +1,9 @@
 // Copyright 2011 Google Inc. All Rights Reserved.
 
 /**
- * @fileoverview This script posts to the data servlet with a request for data
+ * @fileoverview This script requests data from the data servlet
  * to display until either the servlet responds with data or responds that it
- * failed. The servlet responds to each post with a message, which the script
+ * failed. The servlet responds to each request with a message, which the script
  * displays to the user and data if it exists, which the script draws as a
  * motion chart.
  *
@@ -35,7 +35,7 @@ function doOnLoad() {
 }
 
 function postCheck() {
-  $.post('/data', function(dataObject) {
+  $.get('/data', function(dataObject) {
     $('#message').html(dataObject.message);
 
     if (!dataObject.data && !dataObject.failed) {
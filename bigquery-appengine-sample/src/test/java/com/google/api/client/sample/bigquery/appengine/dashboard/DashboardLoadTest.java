@@ -0,0 +1,433 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.api.client.sample.bigquery.appengine.dashboard;
+
+import com.google.api.client.auth.oauth2.TokenResponse;
+import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.appengine.api.taskqueue.dev.LocalTaskQueue;
+import com.google.appengine.api.taskqueue.dev.QueueStateInfo;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.apphosting.api.ApiProxy;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.Servlet;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Runs the whole dashboard flow for a number of concurrent users against local stand-ins for its
+ * services, and reports the throughput and latency percentiles of each kind of request.
+ *
+ * <p>The datastore, memcache and task queue services are those of the App Engine local testing
+ * helper, and BigQuery is a {@link FakeBigqueryServer}, reached with {@link NetHttpTransport}
+ * rather than URL fetch, whose local service doesn't run on Java 9 and later. Each user has a
+ * stored credential and, at the same time as the others, loads the page ({@link MainServlet},
+ * which starts the query), then polls {@link DataServlet} until it answers with the results or a
+ * failure. Tasks are taken from the local task queue when they are due and run on
+ * {@link TaskServlet} by a pool of threads, as App Engine would. Identical queries share one job
+ * and cached results (see {@link QueryResultCache}), so most users are served without a job of
+ * their own.
+ *
+ * <p>Usage: {@code DashboardLoadTest [users] [rowsPerResult] [requestLatencyMillis] [jobMillis]}
+ */
+public class DashboardLoadTest {
+
+  /** How often each user polls for the results; more often than drawGraph.js, for finer times. */
+  private static final long DATA_POLL_MILLIS = 500;
+
+  /** How long a user waits for the results before the run is counted as failed. */
+  private static final long USER_TIMEOUT_MILLIS = 5 * 60 * 1000;
+
+  private static final long TASK_POLL_MILLIS = 50;
+  private static final int TASK_THREADS = 10;
+  private static final String USER_ID_KEY =
+      "com.google.appengine.api.users.UserService.user_id_key";
+  private static final String REQUEST_THREAD_FACTORY_KEY =
+      "com.google.appengine.api.ThreadManager.REQUEST_THREAD_FACTORY";
+
+  private final MainServlet mainServlet = new MainServlet();
+  private final DataServlet dataServlet = new DataServlet();
+  private final TaskServlet taskServlet = new TaskServlet();
+  private final ApiProxy.Environment baseEnvironment;
+  private final int rowsPerResult;
+
+  private final List<Long> mainMillis = Collections.synchronizedList(new ArrayList<Long>());
+  private final List<Long> dataMillis = Collections.synchronizedList(new ArrayList<Long>());
+  private final List<Long> taskMillis = Collections.synchronizedList(new ArrayList<Long>());
+  private final List<Long> endToEndMillis = Collections.synchronizedList(new ArrayList<Long>());
+  private final AtomicInteger failedUsers = new AtomicInteger();
+  private final AtomicInteger failedTasks = new AtomicInteger();
+
+  DashboardLoadTest(ApiProxy.Environment baseEnvironment, int rowsPerResult) {
+    this.baseEnvironment = baseEnvironment;
+    this.rowsPerResult = rowsPerResult;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int users = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+    int rowsPerResult = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+    long requestLatencyMillis = args.length > 2 ? Long.parseLong(args[2]) : 20;
+    long jobMillis = args.length > 3 ? Long.parseLong(args[3]) : 3000;
+
+    FakeBigqueryServer bigquery = new FakeBigqueryServer(
+        requestLatencyMillis, jobMillis / 3, jobMillis * 2 / 3, rowsPerResult);
+    // BigqueryUtils reads the project ID when it is loaded, so this must come first.
+    System.setProperty(
+        "com.google.api.client.sample.bigquery.appengine.dashboard.projectId", "load-test");
+    System.setProperty(ServiceUtils.ROOT_URL_PROPERTY, bigquery.getRootUrl());
+    LocalServiceTestHelper helper = new LocalServiceTestHelper(
+        new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig(),
+        new LocalTaskQueueTestConfig().setDisableAutoTaskExecution(true));
+    helper.setUp();
+    try {
+      ServiceUtils.setHttpTransport(new NetHttpTransport());
+      ServiceUtils.setClientCredential(new GoogleClientSecrets().setInstalled(
+          new GoogleClientSecrets.Details().setClientId("load-test").setClientSecret("load-test")));
+      DashboardLoadTest test =
+          new DashboardLoadTest(ApiProxy.getCurrentEnvironment(), rowsPerResult);
+      long elapsedMillis = test.run(users);
+      test.report(users, elapsedMillis);
+      System.out.printf("BigQuery: %d requests, %d jobs%n", bigquery.getRequestCount(),
+          bigquery.getJobCount());
+    } finally {
+      helper.tearDown();
+      bigquery.stop();
+    }
+  }
+
+  /**
+   * Runs the flow for the given number of users at once and waits for them to finish.
+   *
+   * @return the time it took, in milliseconds
+   */
+  long run(int users) throws Exception {
+    for (int i = 0; i < users; i++) {
+      ServiceUtils.getFlow().createAndStoreCredential(new TokenResponse()
+          .setAccessToken("load-test-token-" + i).setExpiresInSeconds(86400L), userId(i));
+    }
+
+    ExecutorService userThreads = Executors.newFixedThreadPool(users);
+    ExecutorService taskThreads = Executors.newFixedThreadPool(TASK_THREADS);
+    final CountDownLatch done = new CountDownLatch(users);
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < users; i++) {
+      final int user = i;
+      userThreads.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            ApiProxy.setEnvironmentForCurrentThread(newEnvironment(user));
+            runUser();
+          } catch (Exception e) {
+            failedUsers.incrementAndGet();
+            System.err.println("User " + user + " failed: " + e);
+          } finally {
+            done.countDown();
+          }
+        }
+      });
+    }
+    while (!done.await(TASK_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+      dispatchDueTasks(taskThreads);
+    }
+    long elapsedMillis = System.currentTimeMillis() - start;
+    userThreads.shutdown();
+    taskThreads.shutdown();
+    taskThreads.awaitTermination(1, TimeUnit.MINUTES);
+    return elapsedMillis;
+  }
+
+  /** Loads the page, then polls for the results until they come or the query fails. */
+  private void runUser() throws Exception {
+    long start = System.currentTimeMillis();
+    FakeResponse page =
+        call(mainServlet, "GET", Collections.<String, String>emptyMap(), mainMillis);
+    if (page.status != HttpServletResponse.SC_OK) {
+      throw new IllegalStateException("Page load answered with " + page.status);
+    }
+    while (System.currentTimeMillis() - start < USER_TIMEOUT_MILLIS) {
+      FakeResponse response = call(dataServlet, "GET",
+          Collections.singletonMap("Accept-Encoding", "gzip"), dataMillis);
+      JsonObject json = new JsonParser().parse(response.getBody()).getAsJsonObject();
+      if (json.get("failed").getAsBoolean()) {
+        throw new IllegalStateException(json.get("message").getAsString());
+      }
+      if (json.has("data")) {
+        int rows = json.getAsJsonObject("data").getAsJsonArray("rows").size();
+        if (rows != rowsPerResult) {
+          throw new IllegalStateException("Got " + rows + " of " + rowsPerResult + " rows");
+        }
+        endToEndMillis.add(System.currentTimeMillis() - start);
+        return;
+      }
+      Thread.sleep(DATA_POLL_MILLIS);
+    }
+    throw new IllegalStateException("Timed out waiting for the results");
+  }
+
+  /** Takes the tasks that are due off the default queue, and runs them on the task threads. */
+  private void dispatchDueTasks(ExecutorService taskThreads) {
+    LocalTaskQueue taskQueue = LocalTaskQueueTestConfig.getLocalTaskQueue();
+    QueueStateInfo queue = taskQueue.getQueueStateInfo().get("default");
+    if (queue == null) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    for (QueueStateInfo.TaskStateInfo task : queue.getTaskInfo()) {
+      if (task.getEtaMillis() > now || !taskQueue.deleteTask("default", task.getTaskName())) {
+        continue;
+      }
+      final Map<String, String> parameters = parseForm(task.getBody());
+      taskThreads.execute(new Runnable() {
+        @Override
+        public void run() {
+          ApiProxy.setEnvironmentForCurrentThread(newEnvironment(-1));
+          try {
+            call(taskServlet, "POST", parameters, taskMillis);
+          } catch (Exception e) {
+            failedTasks.incrementAndGet();
+            System.err.println("Task failed: " + e);
+          }
+        }
+      });
+    }
+  }
+
+  /** Sends a request to a servlet, and records how long it took. */
+  private static FakeResponse call(Servlet servlet, String method, Map<String, String> values,
+      List<Long> latencies) throws IOException, ServletException {
+    FakeResponse response = new FakeResponse();
+    long start = System.nanoTime();
+    servlet.service(newRequest(method, values), response.asResponse());
+    latencies.add((System.nanoTime() - start) / 1000000);
+    return response;
+  }
+
+  /**
+   * Returns a request environment for the given user, or for a task if {@code user} is negative.
+   * It is the one of the testing helper, with the user's identity and a thread factory that passes
+   * the environment on to the threads of the request.
+   */
+  private ApiProxy.Environment newEnvironment(int user) {
+    final String email = user >= 0 ? "user" + user + "@example.com" : null;
+    final ConcurrentMap<String, Object> attributes = Maps.newConcurrentMap();
+    attributes.putAll(baseEnvironment.getAttributes());
+    if (user >= 0) {
+      attributes.put(USER_ID_KEY, userId(user));
+    }
+    final ApiProxy.Environment[] environment = new ApiProxy.Environment[1];
+    attributes.put(REQUEST_THREAD_FACTORY_KEY, new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable r) {
+        return new Thread(new Runnable() {
+          @Override
+          public void run() {
+            ApiProxy.setEnvironmentForCurrentThread(environment[0]);
+            r.run();
+          }
+        });
+      }
+    });
+    environment[0] = (ApiProxy.Environment) Proxy.newProxyInstance(
+        DashboardLoadTest.class.getClassLoader(), new Class<?>[] {ApiProxy.Environment.class},
+        new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("getEmail")) {
+              return email;
+            } else if (name.equals("isLoggedIn")) {
+              return email != null;
+            } else if (name.equals("isAdmin")) {
+              return email == null;
+            } else if (name.equals("getAuthDomain")) {
+              return "gmail.com";
+            } else if (name.equals("getAttributes")) {
+              return attributes;
+            }
+            try {
+              return method.invoke(baseEnvironment, args);
+            } catch (InvocationTargetException e) {
+              throw e.getCause();
+            }
+          }
+        });
+    return environment[0];
+  }
+
+  private static String userId(int user) {
+    return "load-test-user-" + user;
+  }
+
+  private static Map<String, String> parseForm(String body) {
+    Map<String, String> parameters = Maps.newHashMap();
+    try {
+      for (String parameter : body.split("&")) {
+        int equals = parameter.indexOf('=');
+        if (equals > 0) {
+          parameters.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"),
+              URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+        }
+      }
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+    return parameters;
+  }
+
+  /**
+   * Returns a request with the given method. Its headers and parameters are both looked up in
+   * {@code values}; everything else is empty.
+   */
+  private static HttpServletRequest newRequest(final String method,
+      final Map<String, String> values) {
+    return (HttpServletRequest) Proxy.newProxyInstance(DashboardLoadTest.class.getClassLoader(),
+        new Class<?>[] {HttpServletRequest.class}, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method invoked, Object[] args) {
+            String name = invoked.getName();
+            if (name.equals("getMethod")) {
+              return method;
+            } else if (name.equals("getHeader") || name.equals("getParameter")) {
+              return values.get(args[0]);
+            } else if (name.equals("getRequestURL")) {
+              return new StringBuffer("http://localhost/");
+            } else if (name.equals("getProtocol")) {
+              return "HTTP/1.1";
+            }
+            return defaultValue(invoked.getReturnType());
+          }
+        });
+  }
+
+  private static Object defaultValue(Class<?> type) {
+    if (type == boolean.class) {
+      return false;
+    } else if (type == int.class) {
+      return -1;
+    } else if (type == long.class) {
+      return -1L;
+    }
+    return null;
+  }
+
+  /** The status, headers and body of a servlet's response. */
+  private static final class FakeResponse {
+    int status = HttpServletResponse.SC_OK;
+    final Map<String, String> headers = Maps.newHashMap();
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    HttpServletResponse asResponse() {
+      final ServletOutputStream out = new ServletOutputStream() {
+        @Override
+        public void write(int b) {
+          body.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+          body.write(b, off, len);
+        }
+      };
+      final PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, Charsets.UTF_8));
+      return (HttpServletResponse) Proxy.newProxyInstance(DashboardLoadTest.class.getClassLoader(),
+          new Class<?>[] {HttpServletResponse.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+              String name = method.getName();
+              if (name.equals("setStatus") || name.equals("sendError")) {
+                status = (Integer) args[0];
+              } else if (name.equals("sendRedirect")) {
+                status = HttpServletResponse.SC_MOVED_TEMPORARILY;
+              } else if (name.equals("setHeader") || name.equals("addHeader")) {
+                headers.put((String) args[0], (String) args[1]);
+              } else if (name.equals("getOutputStream")) {
+                return out;
+              } else if (name.equals("getWriter")) {
+                return writer;
+              } else if (name.equals("flushBuffer")) {
+                writer.flush();
+              }
+              return defaultValue(method.getReturnType());
+            }
+          });
+    }
+
+    /** Returns the body as text, unzipped if it was gzipped. */
+    String getBody() throws IOException {
+      byte[] bytes = body.toByteArray();
+      if ("gzip".equals(headers.get("Content-Encoding"))) {
+        bytes = ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(bytes)));
+      }
+      return new String(bytes, Charsets.UTF_8);
+    }
+  }
+
+  private void report(int users, long elapsedMillis) {
+    int completed = endToEndMillis.size();
+    System.out.printf("%d users in %d ms: %d got their results, %d failed; %d tasks failed%n",
+        users, elapsedMillis, completed, failedUsers.get(), failedTasks.get());
+    System.out.printf("Throughput: %.2f users/s, %.1f requests/s%n",
+        completed * 1000.0 / elapsedMillis,
+        (mainMillis.size() + dataMillis.size() + taskMillis.size()) * 1000.0 / elapsedMillis);
+    System.out.printf("%-12s %8s %8s %8s %8s %8s%n", "", "count", "p50", "p90", "p99", "max");
+    printPercentiles("main", mainMillis);
+    printPercentiles("data", dataMillis);
+    printPercentiles("task", taskMillis);
+    printPercentiles("end to end", endToEndMillis);
+  }
+
+  private static void printPercentiles(String name, List<Long> millis) {
+    List<Long> sorted;
+    synchronized (millis) {
+      sorted = new ArrayList<Long>(millis);
+    }
+    if (sorted.isEmpty()) {
+      System.out.printf("%-12s %8d%n", name, 0);
+      return;
+    }
+    Collections.sort(sorted);
+    System.out.printf("%-12s %8d %8d %8d %8d %8d ms%n", name, sorted.size(),
+        percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99),
+        sorted.get(sorted.size() - 1));
+  }
+
+  /** Returns the given percentile of sorted values, by the nearest-rank method. */
+  private static long percentile(List<Long> sorted, int percent) {
+    int rank = (int) Math.ceil(percent / 100.0 * sorted.size());
+    return sorted.get(Math.max(0, rank - 1));
+  }
+}
@@ -0,0 +1,451 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.api.client.sample.bigquery.appengine.dashboard;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.Data;
+import com.google.api.services.bigquery.model.GetQueryResultsResponse;
+import com.google.api.services.bigquery.model.Job;
+import com.google.api.services.bigquery.model.JobConfiguration;
+import com.google.api.services.bigquery.model.JobConfigurationQuery;
+import com.google.api.services.bigquery.model.JobReference;
+import com.google.api.services.bigquery.model.JobStatus;
+import com.google.api.services.bigquery.model.Table;
+import com.google.api.services.bigquery.model.TableCell;
+import com.google.api.services.bigquery.model.TableDataList;
+import com.google.api.services.bigquery.model.TableFieldSchema;
+import com.google.api.services.bigquery.model.TableReference;
+import com.google.api.services.bigquery.model.TableRow;
+import com.google.api.services.bigquery.model.TableSchema;
+import com.google.common.collect.Maps;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * In-process stand-in for the parts of the BigQuery API the dashboard uses, so it can be run
+ * without live services (see {@link DashboardLoadTest}).
+ *
+ * <p>Supported: query {@code jobs.insert} (with or without a job ID), {@code jobs.get},
+ * {@code jobs.getQueryResults} (held open up to {@code timeoutMs}, without rows),
+ * {@code tables.get} and {@code tabledata.list} (with {@code startIndex} or {@code pageToken}, and
+ * at most {@value #MAX_ROWS_PER_PAGE} rows per page). Anything else gets a 501. The first insert
+ * creates its job but is answered with a 503, as if its response was lost, so retried inserts are
+ * exercised. Each job stays pending and then running for configured times before it is done. A job
+ * and its result can only be read with the credentials that inserted it, since on the service other
+ * users can't read them either. Its result has the schema of
+ * {@link BigqueryUtils#buildExampleQuery()}, or of {@link NatalityAggregates#buildQuery} for the
+ * queries of the incremental mode, and rows generated from their index: a configured number of
+ * them, covering one year per 52 rows, one per state and one whose state is NULL. Every request is
+ * delayed by a configured latency first.
+ */
+public class FakeBigqueryServer {
+
+  /** Prefix of the server's thread names, so they can be told apart from client threads. */
+  public static final String THREAD_NAME_PREFIX = "fake-bigquery-";
+
+  private static final String SERVICE_PATH = "/bigquery/v2/projects/";
+  private static final String DATASET_ID = "_fake";
+  private static final long DEFAULT_MAX_RESULTS = 100000;
+
+  /**
+   * Fewer rows than the dashboard asks for, as the service returns when a page would exceed its
+   * response size limit, so that short pages are exercised.
+   */
+  private static final long MAX_ROWS_PER_PAGE = 4000;
+  private static final long FIRST_YEAR = 1969;
+  private static final Pattern FROM_YEAR = Pattern.compile("year >= (\\d+)");
+
+  private static final String[] STATES = {"AK", "AL", "AR", "AZ", "CA", "CO", "CT", "DC", "DE",
+      "FL", "GA", "HI", "IA", "ID", "IL", "IN", "KS", "KY", "LA", "MA", "MD", "ME", "MI", "MN",
+      "MO", "MS", "MT", "NC", "ND", "NE", "NH", "NJ", "NM", "NV", "NY", "OH", "OK", "OR", "PA",
+      "RI", "SC", "SD", "TN", "TX", "UT", "VA", "VT", "WA", "WI", "WV", "WY", null};
+
+  private final JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final ConcurrentMap<String, FakeJob> jobs = Maps.newConcurrentMap();
+  private final AtomicLong nextJobId = new AtomicLong(1);
+  private final AtomicBoolean insertAnswered = new AtomicBoolean();
+  private final AtomicLong requestCount = new AtomicLong();
+  private final long requestLatencyMillis;
+  private final long pendingMillis;
+  private final long runningMillis;
+  private volatile int rowCount;
+
+  /** A query job, and the rows of its result. */
+  private static class FakeJob {
+    final String projectId;
+    final String jobId;
+    /** The Authorization header of the insert; the job can only be read with it. */
+    final String owner;
+    final long createdMillis = System.currentTimeMillis();
+    final boolean aggregates;
+    /** Index of the first row of the full result that this result holds. */
+    final long firstRow;
+    final long rowCount;
+
+    FakeJob(String projectId, String jobId, String owner, boolean aggregates, long firstRow,
+        long rowCount) {
+      this.projectId = projectId;
+      this.jobId = jobId;
+      this.owner = owner;
+      this.aggregates = aggregates;
+      this.firstRow = firstRow;
+      this.rowCount = rowCount;
+    }
+  }
+
+  /**
+   * Starts a server on an ephemeral port of the loopback interface.
+   *
+   * @param requestLatencyMillis delay before each request is handled
+   * @param pendingMillis how long each job is pending
+   * @param runningMillis how long each job is running after that
+   * @param rowCount rows in the result of the example query
+   */
+  public FakeBigqueryServer(long requestLatencyMillis, long pendingMillis, long runningMillis,
+      int rowCount) throws IOException {
+    this.requestLatencyMillis = requestLatencyMillis;
+    this.pendingMillis = pendingMillis;
+    this.runningMillis = runningMillis;
+    this.rowCount = rowCount;
+    // Without TCP_NODELAY, small responses written as headers then body wait on delayed ACKs,
+    // adding ~40 ms to every request.
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    final AtomicInteger threadCount = new AtomicInteger();
+    executor = Executors.newCachedThreadPool(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, THREAD_NAME_PREFIX + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    server.setExecutor(executor);
+    server.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          requestCount.incrementAndGet();
+          Thread.sleep(FakeBigqueryServer.this.requestLatencyMillis);
+          dispatch(exchange);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } catch (IOException e) {
+          sendError(exchange, 500, e.toString());
+        } catch (RuntimeException e) {
+          sendError(exchange, 500, e.toString());
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    server.start();
+  }
+
+  /** Returns the root URL to pass to {@code Bigquery.Builder.setRootUrl}. */
+  public String getRootUrl() {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+  }
+
+  public void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  /** Returns the number of requests received so far. */
+  public long getRequestCount() {
+    return requestCount.get();
+  }
+
+  /** Returns the number of jobs inserted so far. */
+  public long getJobCount() {
+    return jobs.size();
+  }
+
+  /**
+   * Sets the number of rows in the result of the example query, as if more births were recorded,
+   * for the jobs inserted from now on.
+   */
+  public void setRowCount(int rowCount) {
+    this.rowCount = rowCount;
+  }
+
+  private void dispatch(HttpExchange exchange) throws IOException, InterruptedException {
+    String method = exchange.getRequestMethod();
+    String path = exchange.getRequestURI().getRawPath();
+    Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+    List<String> segments = path.startsWith(SERVICE_PATH)
+        ? Arrays.asList(path.substring(SERVICE_PATH.length()).split("/"))
+        : new ArrayList<String>();
+    int size = segments.size();
+    if (size == 2 && segments.get(1).equals("jobs") && method.equals("POST")) {
+      handleInsert(exchange, segments.get(0));
+    } else if (size == 3 && segments.get(1).equals("jobs") && method.equals("GET")) {
+      handleGetJob(exchange, segments.get(2));
+    } else if (size == 3 && segments.get(1).equals("queries") && method.equals("GET")) {
+      handleGetQueryResults(exchange, segments.get(2), query);
+    } else if (size == 5 && segments.get(1).equals("datasets") && method.equals("GET")) {
+      handleGetTable(exchange, segments.get(4));
+    } else if (size == 6 && segments.get(5).equals("data") && method.equals("GET")) {
+      handleListData(exchange, segments.get(4), query);
+    } else {
+      sendError(exchange, 501, method + " " + path);
+    }
+  }
+
+  private void handleInsert(HttpExchange exchange, String projectId) throws IOException {
+    InputStream body = exchange.getRequestBody();
+    if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+      body = new GZIPInputStream(body);
+    }
+    Job request = jsonFactory.fromInputStream(body, Job.class);
+    String sql = request.getConfiguration().getQuery().getQuery();
+    boolean aggregates = sql.contains("mother_age_sum");
+    int totalRows = rowCount;
+    long firstRow = 0;
+    Matcher fromYear = FROM_YEAR.matcher(sql);
+    if (aggregates && fromYear.find()) {
+      long years = Math.max(0, Long.parseLong(fromYear.group(1)) - FIRST_YEAR);
+      firstRow = Math.min(totalRows, years * STATES.length);
+    }
+    JobReference reference = request.getJobReference();
+    String jobId = reference != null && reference.getJobId() != null
+        ? reference.getJobId() : "job_fake_" + nextJobId.getAndIncrement();
+    FakeJob job = new FakeJob(projectId, jobId, getCaller(exchange), aggregates, firstRow,
+        totalRows - firstRow);
+    if (jobs.putIfAbsent(jobId, job) != null) {
+      sendError(exchange, 409, "Already Exists: Job " + projectId + ":" + jobId);
+      return;
+    }
+    if (!insertAnswered.getAndSet(true)) {
+      sendError(exchange, 503, "Backend Error");
+      return;
+    }
+    sendJson(exchange, 200, jsonFactory.toString(toJob(job)));
+  }
+
+  private void handleGetJob(HttpExchange exchange, String jobId) throws IOException {
+    FakeJob job = findJob(exchange, jobId);
+    if (job == null) {
+      sendError(exchange, 404, "Not found: Job " + jobId);
+      return;
+    }
+    sendJson(exchange, 200, jsonFactory.toString(toJob(job)));
+  }
+
+  private void handleGetQueryResults(HttpExchange exchange, String jobId,
+      Map<String, String> query) throws IOException, InterruptedException {
+    FakeJob job = findJob(exchange, jobId);
+    if (job == null) {
+      sendError(exchange, 404, "Not found: Job " + jobId);
+      return;
+    }
+    long timeout = query.containsKey("timeoutMs") ? Long.parseLong(query.get("timeoutMs")) : 0;
+    long doneMillis = job.createdMillis + pendingMillis + runningMillis;
+    long wait = Math.min(timeout, doneMillis - System.currentTimeMillis());
+    if (wait > 0) {
+      Thread.sleep(wait);
+    }
+    GetQueryResultsResponse response = new GetQueryResultsResponse()
+        .setJobReference(new JobReference().setProjectId(job.projectId).setJobId(jobId))
+        .setJobComplete(System.currentTimeMillis() >= doneMillis);
+    sendJson(exchange, 200, jsonFactory.toString(response));
+  }
+
+  private void handleGetTable(HttpExchange exchange, String tableId) throws IOException {
+    FakeJob job = jobForTable(exchange, tableId);
+    if (job == null || !getState(job).equals("DONE")) {
+      sendError(exchange, 404, "Not found: Table " + tableId);
+      return;
+    }
+    Table table = new Table()
+        .setTableReference(toTableReference(job))
+        .setSchema(new TableSchema().setFields(getSchema(job)))
+        .setNumRows(BigInteger.valueOf(job.rowCount));
+    sendJson(exchange, 200, jsonFactory.toString(table));
+  }
+
+  private void handleListData(HttpExchange exchange, String tableId, Map<String, String> query)
+      throws IOException {
+    FakeJob job = jobForTable(exchange, tableId);
+    if (job == null || !getState(job).equals("DONE")) {
+      sendError(exchange, 404, "Not found: Table " + tableId);
+      return;
+    }
+    long maxResults = Math.min(MAX_ROWS_PER_PAGE, query.containsKey("maxResults")
+        ? Long.parseLong(query.get("maxResults")) : DEFAULT_MAX_RESULTS);
+    // The page token is the index of the first row of the page.
+    String start =
+        query.containsKey("pageToken") ? query.get("pageToken") : query.get("startIndex");
+    long first = start != null ? Long.parseLong(start) : 0;
+    long end = Math.min(job.rowCount, first + maxResults);
+    List<TableRow> rows = new ArrayList<TableRow>();
+    for (long i = first; i < end; i++) {
+      rows.add(job.aggregates ? aggregateRow(job.firstRow + i) : exampleRow(job.firstRow + i));
+    }
+    TableDataList page = new TableDataList()
+        .setRows(rows.isEmpty() ? null : rows)
+        .setTotalRows(job.rowCount)
+        .setPageToken(end < job.rowCount ? String.valueOf(end) : null);
+    sendJson(exchange, 200, jsonFactory.toString(page));
+  }
+
+  /** Returns the job with the given ID, or {@code null} if there is none the caller can read. */
+  private FakeJob findJob(HttpExchange exchange, String jobId) {
+    FakeJob job = jobs.get(jobId);
+    return job != null && job.owner.equals(getCaller(exchange)) ? job : null;
+  }
+
+  private FakeJob jobForTable(HttpExchange exchange, String tableId) {
+    return tableId.startsWith("anon_")
+        ? findJob(exchange, tableId.substring("anon_".length())) : null;
+  }
+
+  private static String getCaller(HttpExchange exchange) {
+    String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+    return authorization != null ? authorization : "";
+  }
+
+  private String getState(FakeJob job) {
+    long age = System.currentTimeMillis() - job.createdMillis;
+    return age < pendingMillis ? "PENDING" : age < pendingMillis + runningMillis ? "RUNNING"
+        : "DONE";
+  }
+
+  private Job toJob(FakeJob job) {
+    return new Job()
+        .setJobReference(new JobReference().setProjectId(job.projectId).setJobId(job.jobId))
+        .setStatus(new JobStatus().setState(getState(job)))
+        .setConfiguration(new JobConfiguration().setQuery(
+            new JobConfigurationQuery().setDestinationTable(toTableReference(job))));
+  }
+
+  private static TableReference toTableReference(FakeJob job) {
+    return new TableReference().setProjectId(job.projectId).setDatasetId(DATASET_ID)
+        .setTableId("anon_" + job.jobId);
+  }
+
+  private static List<TableFieldSchema> getSchema(FakeJob job) {
+    List<TableFieldSchema> fields = new ArrayList<TableFieldSchema>();
+    if (job.aggregates) {
+      fields.add(field("year", "INTEGER"));
+      fields.add(field("state", "STRING"));
+      fields.add(field("mother_age_sum", "INTEGER"));
+      fields.add(field("mother_age_count", "INTEGER"));
+      fields.add(field("father_age_sum", "INTEGER"));
+      fields.add(field("father_age_count", "INTEGER"));
+    } else {
+      fields.add(field("region", "STRING"));
+      fields.add(field("average_mother_age", "FLOAT"));
+      fields.add(field("average_father_age", "FLOAT"));
+      fields.add(field("state", "STRING"));
+      fields.add(field("year", "INTEGER"));
+    }
+    return fields;
+  }
+
+  private static TableFieldSchema field(String name, String type) {
+    return new TableFieldSchema().setName(name).setType(type);
+  }
+
+  /**
+   * Returns a row of the example query. Its averages are those of the corresponding row of
+   * {@link #aggregateRow}, so both modes give the same chart.
+   */
+  private static TableRow exampleRow(long index) {
+    String state = STATES[(int) (index % STATES.length)];
+    long births = births(index);
+    return row(BigqueryUtils.regionOf(state),
+        String.valueOf((double) motherAgeSum(index) / births),
+        String.valueOf((double) fatherAgeSum(index) / births), state,
+        String.valueOf(FIRST_YEAR + index / STATES.length));
+  }
+
+  private static TableRow aggregateRow(long index) {
+    long births = births(index);
+    return row(String.valueOf(FIRST_YEAR + index / STATES.length),
+        STATES[(int) (index % STATES.length)], String.valueOf(motherAgeSum(index)),
+        String.valueOf(births), String.valueOf(fatherAgeSum(index)), String.valueOf(births));
+  }
+
+  private static long births(long index) {
+    return 1000 + index % 977;
+  }
+
+  private static long motherAgeSum(long index) {
+    return births(index) * 24 + index % 5003;
+  }
+
+  private static long fatherAgeSum(long index) {
+    return births(index) * 27 + index % 7001;
+  }
+
+  /** Returns a row of the given values, where {@code null} is sent as a NULL cell. */
+  private static TableRow row(String... values) {
+    List<TableCell> cells = new ArrayList<TableCell>(values.length);
+    for (String value : values) {
+      cells.add(new TableCell().setV(value != null ? value : Data.NULL_STRING));
+    }
+    return new TableRow().setF(cells);
+  }
+
+  private static Map<String, String> parseQuery(String rawQuery)
+      throws UnsupportedEncodingException {
+    Map<String, String> query = Maps.newHashMap();
+    if (rawQuery != null) {
+      for (String parameter : rawQuery.split("&")) {
+        int equals = parameter.indexOf('=');
+        if (equals > 0) {
+          query.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"),
+              URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+        }
+      }
+    }
+    return query;
+  }
+
+  private static void sendJson(HttpExchange exchange, int status, String json)
+      throws IOException {
+    byte[] body = json.getBytes("UTF-8");
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+    exchange.sendResponseHeaders(status, body.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(body);
+    out.close();
+  }
+
+  private void sendError(HttpExchange exchange, int status, String message) throws IOException {
+    Map<String, Object> error = Maps.newLinkedHashMap();
+    error.put("code", status);
+    error.put("message", message);
+    Map<String, Object> body = Maps.newLinkedHashMap();
+    body.put("error", error);
+    sendJson(exchange, status, jsonFactory.toString(body));
+  }
+}
@@ -0,0 +1,180 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.api.client.sample.bigquery.appengine.dashboard;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.apphosting.api.ApiProxy;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measures the time and heap allocation of writing the motion chart JSON of 10k and 100k rows,
+ * with {@link MotionChartWriter} and as {@code DataServlet} used to, with a {@code JsonWriter} and
+ * every cell converted with {@code String.valueOf}. {@code MotionChartWriter} is also measured with
+ * entities holding numbers rather than the strings that are stored. The entities are built
+ * beforehand and the output goes to a null writer, so only the writing is measured.
+ *
+ * <p>Usage: {@code MotionChartWriterBenchmark [iterations]}
+ */
+public class MotionChartWriterBenchmark {
+
+  private static final String[] STATES = {"CA", "NY", "TX", "WA", "OH"};
+  private static final String[] REGIONS = {"West", "Northeast", "South", "West", "Midwest"};
+
+  public static void main(String[] args) throws IOException {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+    setUpEnvironment();
+    for (int rows : new int[] {10000, 100000}) {
+      List<Entity> typed = newEntities(rows, true);
+      List<Entity> strings = newEntities(rows, false);
+      // Warm up, so class loading and JIT compilation are not counted.
+      for (int i = 0; i < 5; i++) {
+        writeStreaming(typed);
+        writeLegacy(strings);
+      }
+      System.out.println(rows + " rows:");
+      report("legacy, string values", strings, false, iterations);
+      report("streaming, string values", strings, true, iterations);
+      report("streaming, number values", typed, true, iterations);
+    }
+  }
+
+  private static void report(String name, List<Entity> entities, boolean streaming,
+      int iterations) throws IOException {
+    long before = allocatedBytes();
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      if (streaming) {
+        writeStreaming(entities);
+      } else {
+        writeLegacy(entities);
+      }
+    }
+    long nanos = System.nanoTime() - start;
+    long allocated = allocatedBytes() - before;
+    System.out.printf("  %-26s %8.2f ms %10.1f KB allocated%n", name,
+        nanos / 1e6 / iterations, allocated / 1024.0 / iterations);
+  }
+
+  private static void writeStreaming(List<Entity> entities) throws IOException {
+    new MotionChartWriter(new NullWriter()).write(entities.iterator());
+  }
+
+  /** Writes the chart as {@code DataServlet} did before {@link MotionChartWriter}. */
+  private static void writeLegacy(List<Entity> entities) throws IOException {
+    String[] labels = new String[]
+        {"State", "Year", "Average Mother Age", "Average Father Age", "U.S. Census Region"};
+    String[] properties = new String[]
+        {"state", "year", "average_mother_age", "average_father_age", "region"};
+    String[] types = new String[] {"string", "number", "number", "number", "string"};
+    Writer out = new NullWriter();
+    JsonWriter jsonWriter = new JsonWriter(out).beginObject();
+    jsonWriter.name("data").beginObject();
+    jsonWriter.name("cols").beginArray();
+    for (int i = 0; i < properties.length; i++) {
+      jsonWriter.beginObject()
+          .name("id").value(properties[i])
+          .name("label").value(labels[i])
+          .name("type").value(types[i])
+          .endObject();
+    }
+    jsonWriter.endArray();
+    jsonWriter.name("rows").beginArray();
+    for (Entity entity : entities) {
+      jsonWriter.beginObject().name("c").beginArray();
+      for (int i = 0; i < properties.length; i++) {
+        String value = "";
+        if (entity.getProperty(properties[i]) != null) {
+          value = String.valueOf(entity.getProperty(properties[i]));
+        }
+        jsonWriter.beginObject().name("v").value(value).endObject();
+      }
+      jsonWriter.endArray().endObject();
+    }
+    jsonWriter.endArray();
+    jsonWriter.endObject();
+    jsonWriter.endObject().close();
+  }
+
+  private static List<Entity> newEntities(int rows, boolean typed) {
+    List<Entity> entities = new ArrayList<Entity>(rows);
+    for (int i = 0; i < rows; i++) {
+      Entity entity = new Entity("BenchmarkResult");
+      int state = i % STATES.length;
+      long year = 1969 + i / STATES.length % 40;
+      double motherAge = 24 + (i % 97) / 10.0;
+      double fatherAge = 27 + (i % 89) / 10.0;
+      entity.setProperty("state", STATES[state]);
+      entity.setProperty("region", REGIONS[state]);
+      entity.setProperty("year", typed ? (Object) year : String.valueOf(year));
+      entity.setProperty("average_mother_age",
+          typed ? (Object) motherAge : String.valueOf(motherAge));
+      entity.setProperty("average_father_age",
+          typed ? (Object) fatherAge : String.valueOf(fatherAge));
+      entities.add(entity);
+    }
+    return entities;
+  }
+
+  /**
+   * Registers a stand-in for the App Engine environment, which entity keys need for the
+   * application ID.
+   */
+  private static void setUpEnvironment() {
+    ApiProxy.setEnvironmentForCurrentThread((ApiProxy.Environment) Proxy.newProxyInstance(
+        MotionChartWriterBenchmark.class.getClassLoader(),
+        new Class<?>[] {ApiProxy.Environment.class}, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            Class<?> type = method.getReturnType();
+            if (type == String.class) {
+              return method.getName().equals("getAppId") ? "benchmark" : "";
+            } else if (type == boolean.class) {
+              return false;
+            } else if (type == long.class) {
+              return Long.MAX_VALUE;
+            } else if (type == java.util.Map.class) {
+              return Collections.emptyMap();
+            }
+            return null;
+          }
+        }));
+  }
+
+  /** Discards everything written to it. */
+  private static final class NullWriter extends Writer {
+    @Override
+    public void write(int c) {
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  private static long allocatedBytes() {
+    return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+}
@@ -0,0 +1,152 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.api.client.sample.bigquery.appengine.dashboard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.bigquery.Bigquery;
+import com.google.api.services.bigquery.model.Job;
+import com.google.api.services.bigquery.model.Table;
+import com.google.api.services.bigquery.model.TableReference;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+
+/**
+ * Tests that the incremental refresh mode (see {@link NatalityAggregates}) gives the same results
+ * as the full query, against a {@link FakeBigqueryServer}.
+ *
+ * <p>The aggregates are computed while the latest year is only partly recorded, then more births
+ * are recorded and the aggregates are refreshed, which recomputes that year and adds the later
+ * ones. Each mode then copies its results to the datastore of the App Engine local testing helper,
+ * as {@link TaskServlet} does, and the region and averages of every (year, state) partition must
+ * be the same in both, including the partitions whose state is NULL.
+ */
+public class NatalityAggregatesTest {
+
+  private static final long PAGE_SIZE = 10000;
+  private static final int PAGES_IN_FLIGHT = 4;
+  private static final int ROWS_BEFORE = 1000;
+  private static final int ROWS_AFTER = 2500;
+
+  private FakeBigqueryServer server;
+  private LocalServiceTestHelper helper;
+  private Bigquery bigquery;
+
+  @Before
+  public void setUp() throws IOException {
+    server = new FakeBigqueryServer(0, 0, 0, ROWS_BEFORE);
+    // BigqueryUtils reads the project ID when it is loaded, so this must come first.
+    System.setProperty(
+        "com.google.api.client.sample.bigquery.appengine.dashboard.projectId", "test");
+    helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+    helper.setUp();
+    bigquery = new Bigquery.Builder(
+        new NetHttpTransport(), JacksonFactory.getDefaultInstance(), null)
+        .setRootUrl(server.getRootUrl())
+        .setApplicationName("natality-aggregates-test")
+        .build();
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+    server.stop();
+  }
+
+  @Test
+  public void testIncrementalRefreshMatchesFullQuery() throws Exception {
+    NatalityAggregates aggregates = new NatalityAggregates();
+    assertEquals(0, refresh(aggregates));
+    server.setRowCount(ROWS_AFTER);
+    long latestYear = aggregates.getRefreshFromYear();
+    assertEquals(latestYear, refresh(aggregates));
+    DatastoreUtils incremental = new DatastoreUtils("incremental");
+    incremental.copyAggregatesToDatastore(aggregates.loadAll());
+    incremental.updateSuccessfulQueryTimestamp();
+
+    DatastoreUtils full = new DatastoreUtils("full");
+    Table table = runQuery(BigqueryUtils.buildExampleQuery());
+    TableRowIterator rows = readRows(table);
+    try {
+      full.copyQueryResultsToDatastore(table.getSchema().getFields(), rows);
+    } finally {
+      rows.close();
+    }
+    full.updateSuccessfulQueryTimestamp();
+
+    Map<String, String> expected = getPartitions(full);
+    assertEquals(ROWS_AFTER, expected.size());
+    assertTrue(expected.containsKey(partitionOf(1969, null)));
+    assertEquals(expected, getPartitions(incremental));
+  }
+
+  /**
+   * Runs the query of the incremental mode and merges its result into the stored aggregates.
+   *
+   * @return the first year recomputed
+   */
+  private long refresh(NatalityAggregates aggregates) throws SampleDashboardException {
+    long fromYear = aggregates.getRefreshFromYear();
+    Table table = runQuery(NatalityAggregates.buildQuery(fromYear));
+    TableRowIterator rows = readRows(table);
+    try {
+      aggregates.merge(table.getSchema().getFields(), rows);
+    } finally {
+      rows.close();
+    }
+    return fromYear;
+  }
+
+  /** Runs a query, which the fake finishes at once, and returns its destination table. */
+  private Table runQuery(String query) throws SampleDashboardException {
+    Job job = BigqueryUtils.insertQueryJob(bigquery, null, query);
+    final TableReference reference = job.getConfiguration().getQuery().getDestinationTable();
+    return BigqueryUtils.tryToDo(bigquery, null, new Callable<Table>() {
+      @Override
+      public Table call() throws IOException {
+        return bigquery.tables().get(reference.getProjectId(), reference.getDatasetId(),
+            reference.getTableId()).execute();
+      }
+    });
+  }
+
+  private TableRowIterator readRows(Table table) {
+    return new TableRowIterator(bigquery, null, table.getTableReference(), PAGE_SIZE,
+        table.getNumRows().longValue(), PAGES_IN_FLIGHT,
+        Executors.newFixedThreadPool(PAGES_IN_FLIGHT));
+  }
+
+  /** Returns the region and averages of each partition of a user's results. */
+  private static Map<String, String> getPartitions(DatastoreUtils datastoreUtils) {
+    Map<String, String> partitions = new TreeMap<String, String>();
+    for (Entity entity : datastoreUtils.getResults()) {
+      String partition = partitionOf(Long.parseLong((String) entity.getProperty("year")),
+          (String) entity.getProperty("state"));
+      String previous = partitions.put(partition, entity.getProperty("region") + " "
+          + entity.getProperty("average_mother_age") + " "
+          + entity.getProperty("average_father_age"));
+      if (previous != null) {
+        throw new IllegalStateException("More than one result for " + partition);
+      }
+    }
+    return partitions;
+  }
+
+  private static String partitionOf(long year, String state) {
+    return year + " " + (state != null ? state : "NULL");
+  }
+}
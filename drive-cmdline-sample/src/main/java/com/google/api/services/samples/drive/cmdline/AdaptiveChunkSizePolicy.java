@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.drive.cmdline;
+
+import com.google.api.client.googleapis.media.MediaHttpUploader;
+import com.google.api.client.googleapis.media.MediaHttpUploaderProgressListener;
+import com.google.api.client.util.Preconditions;
+
+import java.io.IOException;
+
+/**
+ * Progress listener that tunes the chunk size of a resumable upload while it runs.
+ *
+ * <p>Every chunk costs a round-trip on top of its transfer time, so a fixed small chunk wastes
+ * most of a high-latency link. The round-trip time is taken from the upload initiation request,
+ * and the throughput from how long each chunk took beyond that. The next chunk is then sized so
+ * that its round-trip is at most a tenth of its transfer time, growing or shrinking by at most a
+ * factor of two per chunk, within the configured bounds and in multiples of
+ * {@link MediaHttpUploader#MINIMUM_CHUNK_SIZE}.
+ *
+ * <p>The chunk size is only changed when the media length is known (e.g. a
+ * {@link MappedFileContent}); for streams of unknown length the uploader allocates its chunk buffer
+ * once, so the configured chunk size is kept. The optional delegate listener is notified after the
+ * size of the next chunk has been chosen, so it sees it as {@link MediaHttpUploader#getChunkSize}.
+ *
+ * <p>Each upload needs its own instance.
+ */
+public class AdaptiveChunkSizePolicy implements MediaHttpUploaderProgressListener {
+
+  /** Default upper bound on the chunk size. */
+  public static final int DEFAULT_MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+
+  /** Transfer time of a chunk, as a multiple of the round-trip time, that the policy aims for. */
+  private static final int TARGET_ROUND_TRIPS_PER_CHUNK = 9;
+
+  /** Weight of the latest chunk in the throughput estimate. */
+  private static final double THROUGHPUT_SMOOTHING = 0.5;
+
+  private final int minChunkSize;
+  private final int maxChunkSize;
+  private final MediaHttpUploaderProgressListener delegate;
+
+  private boolean adaptive;
+  private long initiationStartNanos;
+  private long roundTripNanos = -1;
+  private double bytesPerNano;
+  private long lastNanos;
+  private long lastBytesUploaded;
+
+  /**
+   * Policy with chunk sizes between {@link MediaHttpUploader#MINIMUM_CHUNK_SIZE} and
+   * {@link #DEFAULT_MAX_CHUNK_SIZE}.
+   */
+  public AdaptiveChunkSizePolicy() {
+    this(MediaHttpUploader.MINIMUM_CHUNK_SIZE, DEFAULT_MAX_CHUNK_SIZE, null);
+  }
+
+  /**
+   * @param minChunkSize smallest chunk size, a positive multiple of
+   *        {@link MediaHttpUploader#MINIMUM_CHUNK_SIZE}
+   * @param maxChunkSize largest chunk size, a multiple of
+   *        {@link MediaHttpUploader#MINIMUM_CHUNK_SIZE} no smaller than {@code minChunkSize}
+   * @param delegate listener notified of every progress change, or {@code null}
+   */
+  public AdaptiveChunkSizePolicy(int minChunkSize, int maxChunkSize,
+      MediaHttpUploaderProgressListener delegate) {
+    Preconditions.checkArgument(minChunkSize > 0
+        && minChunkSize % MediaHttpUploader.MINIMUM_CHUNK_SIZE == 0,
+        "minChunkSize must be a positive multiple of %s", MediaHttpUploader.MINIMUM_CHUNK_SIZE);
+    Preconditions.checkArgument(maxChunkSize >= minChunkSize
+        && maxChunkSize % MediaHttpUploader.MINIMUM_CHUNK_SIZE == 0,
+        "maxChunkSize must be a multiple of %s no smaller than minChunkSize",
+        MediaHttpUploader.MINIMUM_CHUNK_SIZE);
+    this.minChunkSize = minChunkSize;
+    this.maxChunkSize = maxChunkSize;
+    this.delegate = delegate;
+  }
+
+  @Override
+  public void progressChanged(MediaHttpUploader uploader) throws IOException {
+    long now = System.nanoTime();
+    switch (uploader.getUploadState()) {
+      case INITIATION_STARTED:
+        initiationStartNanos = now;
+        break;
+      case INITIATION_COMPLETE:
+        roundTripNanos = Math.max(1, now - initiationStartNanos);
+        lastNanos = now;
+        lastBytesUploaded = uploader.getNumBytesUploaded();
+        adaptive = uploader.getMediaContent().getLength() >= 0;
+        if (adaptive) {
+          uploader.setChunkSize(clamp(uploader.getChunkSize()));
+        }
+        break;
+      case MEDIA_IN_PROGRESS:
+        if (adaptive) {
+          adjust(uploader, now);
+        }
+        break;
+      default:
+        break;
+    }
+    if (delegate != null) {
+      delegate.progressChanged(uploader);
+    }
+  }
+
+  /** Returns the round-trip time measured on upload initiation, or -1 before it is known. */
+  public long getRoundTripNanos() {
+    return roundTripNanos;
+  }
+
+  /** Returns the estimated throughput in bytes per second, or 0 before the first chunk. */
+  public long getBytesPerSecond() {
+    return (long) (bytesPerNano * 1e9);
+  }
+
+  private void adjust(MediaHttpUploader uploader, long now) {
+    long bytes = uploader.getNumBytesUploaded() - lastBytesUploaded;
+    long elapsed = now - lastNanos;
+    lastNanos = now;
+    lastBytesUploaded = uploader.getNumBytesUploaded();
+    if (bytes <= 0 || elapsed <= 0) {
+      return;
+    }
+    // The round-trip is part of every chunk; only the rest of the time moves data. If the
+    // round-trip has since dropped below the initiation one, the chunk time bounds it.
+    roundTripNanos = Math.min(roundTripNanos, elapsed);
+    long transferNanos = Math.max(elapsed - roundTripNanos, elapsed / 10);
+    double sample = (double) bytes / transferNanos;
+    bytesPerNano = bytesPerNano == 0
+        ? sample : THROUGHPUT_SMOOTHING * sample + (1 - THROUGHPUT_SMOOTHING) * bytesPerNano;
+
+    long target = (long) (bytesPerNano * roundTripNanos * TARGET_ROUND_TRIPS_PER_CHUNK);
+    int current = uploader.getChunkSize();
+    target = Math.max(current / 2, Math.min(2L * current, target));
+    uploader.setChunkSize(clamp(target));
+  }
+
+  /** Clamps a size to the bounds, rounded down to a multiple of the minimum chunk size. */
+  private int clamp(long size) {
+    long bounded = Math.max(minChunkSize, Math.min(maxChunkSize, size));
+    return (int) (bounded - bounded % MediaHttpUploader.MINIMUM_CHUNK_SIZE);
+  }
+}
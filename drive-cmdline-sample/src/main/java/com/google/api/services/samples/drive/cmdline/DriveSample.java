@@ -22,7 +22,6 @@ import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
 import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
 import com.google.api.client.googleapis.media.MediaHttpDownloader;
 import com.google.api.client.googleapis.media.MediaHttpUploader;
-import com.google.api.client.http.FileContent;
 import com.google.api.client.http.GenericUrl;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.JsonFactory;
@@ -65,6 +64,10 @@ public class DriveSample {
   private static final String DIR_FOR_DOWNLOADS = "Enter Download Directory";
   private static final java.io.File UPLOAD_FILE = new java.io.File(UPLOAD_FILE_PATH);
 
+  /** Bounds of the chunk size chosen by {@link AdaptiveChunkSizePolicy} for resumable uploads. */
+  private static final int MIN_UPLOAD_CHUNK_SIZE = MediaHttpUploader.MINIMUM_CHUNK_SIZE;
+  private static final int MAX_UPLOAD_CHUNK_SIZE = 32 * 1024 * 1024;
+
   /** Directory to store user credentials. */
   private static final java.io.File DATA_STORE_DIR =
       new java.io.File(System.getProperty("user.home"), ".store/drive_sample");
@@ -151,12 +154,18 @@ public class DriveSample {
     File fileMetadata = new File();
     fileMetadata.setTitle(UPLOAD_FILE.getName());
 
-    FileContent mediaContent = new FileContent("image/jpeg", UPLOAD_FILE);
+    MappedFileContent mediaContent = new MappedFileContent("image/jpeg", UPLOAD_FILE);
 
     Drive.Files.Insert insert = drive.files().insert(fileMetadata, mediaContent);
     MediaHttpUploader uploader = insert.getMediaHttpUploader();
     uploader.setDirectUploadEnabled(useDirectUpload);
-    uploader.setProgressListener(new FileUploadProgressListener());
+    if (useDirectUpload) {
+      uploader.setProgressListener(new FileUploadProgressListener());
+    } else {
+      // Let the chunk size follow the link instead of the fixed default.
+      uploader.setProgressListener(new AdaptiveChunkSizePolicy(MIN_UPLOAD_CHUNK_SIZE,
+          MAX_UPLOAD_CHUNK_SIZE, new FileUploadProgressListener()));
+    }
     return insert.execute();
   }
 
@@ -38,7 +38,8 @@ public class FileUploadProgressListener implements MediaHttpUploaderProgressList
         break;
       case MEDIA_IN_PROGRESS:
         View.header2("Upload is In Progress: "
-            + NumberFormat.getPercentInstance().format(uploader.getProgress()));
+            + NumberFormat.getPercentInstance().format(uploader.getProgress())
+            + " (next chunk: " + uploader.getChunkSize() / 1024 + " KB)");
         break;
       case MEDIA_COMPLETE:
         View.header2("Upload is Complete!");
@@ -14,7 +14,12 @@
 
 package com.google.api.services.samples.storage.cmdline;
 
+import com.google.api.services.samples.storage.util.ObjectHashes;
+import com.google.common.hash.Hashing;
+
 import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Random;
 
 
@@ -28,18 +33,41 @@ public class Helpers {
    *
    * <p>Using a buffer instead of just filling from java.util.Random because the latter causes
    * noticeable lag in stream reading, which detracts from upload speed. This class takes all that
-   * cost in the constructor.
+   * cost in the constructor, and reads are block copies out of the buffer.
+   *
+   * <p>The data is deterministic for a given seed, so a receiver can regenerate it, or compare
+   * against {@link #getMd5Hash()} and {@link #getCrc32c()}. A {@code compressibility} above 0
+   * zeroes that fraction of each block, so gzip has something to compress.
    */
   public static class RandomDataBlockInputStream extends InputStream {
 
-    private long byteCountRemaining;
+    private final long size;
     private final byte[] buffer;
+    private long position;
+    private String md5Hash;
+    private String crc32c;
 
+    /** Incompressible data from a random seed. */
     public RandomDataBlockInputStream(long size, int blockSize) {
-      byteCountRemaining = size;
-      final Random random = new Random();
+      this(size, blockSize, new Random().nextLong(), 0);
+    }
+
+    /**
+     * @param size number of bytes in the stream
+     * @param blockSize size of the random block repeated to make up the stream
+     * @param seed seed for the random block
+     * @param compressibility fraction of each block that is zeros, from 0 (incompressible) to 1
+     */
+    public RandomDataBlockInputStream(long size, int blockSize, long seed,
+        double compressibility) {
+      if (size < 0 || blockSize <= 0 || compressibility < 0 || compressibility > 1) {
+        throw new IllegalArgumentException();
+      }
+      this.size = size;
       buffer = new byte[blockSize];
-      random.nextBytes(buffer);
+      byte[] randomBytes = new byte[(int) Math.round(blockSize * (1 - compressibility))];
+      new Random(seed).nextBytes(randomBytes);
+      System.arraycopy(randomBytes, 0, buffer, 0, randomBytes.length);
     }
 
     /*
@@ -49,7 +77,10 @@ public class Helpers {
      */
     @Override
     public int read() {
-      throw new AssertionError("Not implemented; too slow.");
+      if (position == size) {
+        return -1;
+      }
+      return buffer[(int) (position++ % buffer.length)] & 0xff;
     }
 
     /*
@@ -65,16 +96,79 @@ public class Helpers {
         throw new IndexOutOfBoundsException();
       } else if (len == 0) {
         return 0;
-      } else if (byteCountRemaining == 0) {
+      } else if (position == size) {
         return -1;
       }
-      int actualLen = len > byteCountRemaining ? (int) byteCountRemaining : len;
-      for (int i = off; i < actualLen; i++) {
-        b[i] = buffer[i % buffer.length];
+      int actualLen = (int) Math.min(len, size - position);
+      int blockOffset = (int) (position % buffer.length);
+      for (int copied = 0; copied < actualLen;) {
+        int count = Math.min(actualLen - copied, buffer.length - blockOffset);
+        System.arraycopy(buffer, blockOffset, b, off + copied, count);
+        copied += count;
+        blockOffset = 0;
       }
-      byteCountRemaining -= actualLen;
+      position += actualLen;
       return actualLen;
     }
+
+    @Override
+    public long skip(long n) {
+      long skipped = Math.max(0, Math.min(n, size - position));
+      position += skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return (int) Math.min(Integer.MAX_VALUE, size - position);
+    }
+
+    /**
+     * Returns the MD5 of the whole stream, encoded as in {@code StorageObject.getMd5Hash()}. MD5
+     * can't be combined from parts, so the first call hashes all the data (without consuming this
+     * stream).
+     */
+    public String getMd5Hash() {
+      if (md5Hash == null) {
+        MessageDigest md5;
+        try {
+          md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+          throw new AssertionError(e);
+        }
+        for (long remaining = size; remaining > 0; remaining -= buffer.length) {
+          md5.update(buffer, 0, (int) Math.min(buffer.length, remaining));
+        }
+        md5Hash = ObjectHashes.encodeMd5(md5.digest());
+      }
+      return md5Hash;
+    }
+
+    /**
+     * Returns the CRC32C of the whole stream, encoded as in {@code StorageObject.getCrc32c()}.
+     * This is combined from the CRC32C of the block, so it is cheap even for large streams.
+     */
+    public String getCrc32c() {
+      if (crc32c == null) {
+        long blocks = size / buffer.length;
+        int tail = (int) (size % buffer.length);
+        // Combine whole blocks by repeated doubling, then the partial block at the end.
+        int crc = 0;
+        int blocksCrc = Hashing.crc32c().hashBytes(buffer).asInt();
+        long blocksLength = buffer.length;
+        for (long n = blocks; n > 0; n >>= 1) {
+          if ((n & 1) != 0) {
+            crc = ObjectHashes.combineCrc32c(crc, blocksCrc, blocksLength);
+          }
+          blocksCrc = ObjectHashes.combineCrc32c(blocksCrc, blocksCrc, blocksLength);
+          blocksLength *= 2;
+        }
+        crc = ObjectHashes.combineCrc32c(crc, Hashing.crc32c().hashBytes(buffer, 0, tail).asInt(),
+            tail);
+        crc32c = ObjectHashes.encodeCrc32c(crc);
+      }
+      return crc32c;
+    }
   }
   
 }
@@ -24,26 +24,19 @@ import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.services.samples.storage.examples.BucketsGetExample;
 import com.google.api.services.samples.storage.examples.BucketsInsertExample;
-import com.google.api.services.samples.storage.examples.ObjectsDownloadExample;
 import com.google.api.services.samples.storage.examples.ObjectsGetMetadataExample;
 import com.google.api.services.samples.storage.examples.ObjectsListExample;
 import com.google.api.services.samples.storage.examples.ObjectsUploadExample;
 import com.google.api.services.samples.storage.util.CredentialsProvider;
+import com.google.api.services.samples.storage.util.ObjectHasher;
+import com.google.api.services.samples.storage.util.ObjectHashes;
 import com.google.api.services.storage.Storage;
 import com.google.api.services.storage.model.Bucket;
 import com.google.api.services.storage.model.StorageObject;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.hash.Hashing;
-import com.google.common.hash.HashingOutputStream;
-import com.google.common.io.BaseEncoding;
-import com.google.common.primitives.Ints;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.nio.ByteBuffer;
-import java.security.DigestOutputStream;
-import java.security.MessageDigest;
 
 
 /**
@@ -96,37 +89,17 @@ public class StorageSample {
           .setMetadata(ImmutableMap.of("key1", "value1", "key2", "value2"))
           .setCacheControl("max-age=3600, must-revalidate")
           .setContentDisposition("attachment");
-      object = ObjectsUploadExample.uploadWithMetadata(storage, object, data);
+      // The MD5 and CRC32C are computed as the data is streamed and compared with the ones of
+      // the created object, so there is no need to download it again to verify it.
+      ObjectHasher hasher = new ObjectHasher();
+      object = ObjectsUploadExample.uploadWithMetadata(storage, object, hasher.wrap(data));
       View.show(object);
-      System.out.println("md5Hash: " + object.getMd5Hash());
-      System.out.println("crc32c: " + object.getCrc32c() + ", decoded to " + 
-          ByteBuffer.wrap(BaseEncoding.base64().decode(object.getCrc32c())).getInt());
-
-      View.header1("Getting object data of uploaded object, calculate hashes/crcs.");
-      OutputStream nullOutputStream = new OutputStream() {
-        // Throws away the bytes.
-        @Override public void write(int b) throws IOException {}
-        @Override public void write(byte b[], int off, int len) {}
-      };
-      DigestOutputStream md5DigestOutputStream = new DigestOutputStream(
-          nullOutputStream, MessageDigest.getInstance("MD5"));
-      HashingOutputStream crc32cHashingOutputStream = new HashingOutputStream(Hashing.crc32c(),
-          md5DigestOutputStream);
-      ObjectsDownloadExample.downloadToOutputStream(storage, settings.getBucket(),
-          settings.getPrefix() + "myobject", crc32cHashingOutputStream);
-      String calculatedMD5 = BaseEncoding.base64().encode(
-          md5DigestOutputStream.getMessageDigest().digest());
-      System.out.println("md5Hash: " + calculatedMD5 + " "
-          + (object.getMd5Hash().equals(calculatedMD5)
+      System.out.println("md5Hash: " + hasher.getMd5Hash() + " "
+          + (hasher.getMd5Hash().equals(object.getMd5Hash())
           ? "(MATCHES)" : "(MISMATCHES; data altered in transit)"));
-      int calculatedCrc32c = crc32cHashingOutputStream.hash().asInt();
-      String calculatedEncodedCrc32c = BaseEncoding.base64().encode(
-          Ints.toByteArray(calculatedCrc32c));
-      // NOTE: Don't compare HashCode.asBytes() directly, as that encodes the crc32c in
-      // little-endien. One would have to reverse the bytes first.
-      System.out.println("crc32c: " + calculatedEncodedCrc32c + ", decoded to "
-          + crc32cHashingOutputStream.hash().asInt() + " "
-          + (object.getCrc32c().equals(calculatedEncodedCrc32c)
+      System.out.println("crc32c: " + hasher.getCrc32c() + ", decoded to "
+          + ObjectHashes.decodeCrc32c(hasher.getCrc32c()) + " "
+          + (hasher.getCrc32c().equals(object.getCrc32c())
           ? "(MATCHES)" : "(MISMATCHES; data altered in transit)"));
       
       // success!
@@ -16,16 +16,37 @@ package com.google.api.services.samples.storage.examples;
 
 import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.googleapis.media.MediaHttpDownloader;
+import com.google.api.client.http.HttpResponse;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.services.samples.storage.util.CredentialsProvider;
+import com.google.api.services.samples.storage.util.ObjectHasher;
+import com.google.api.services.samples.storage.util.ObjectHashes;
 import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingOutputStream;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 /** Example of downloading a GCS object. */
@@ -49,6 +70,50 @@ public class ObjectsDownloadExample {
     getObject.getMediaHttpDownloader().setDirectDownloadEnabled(!IS_APP_ENGINE);
     getObject.executeMediaAndDownloadTo(data); 
   }
+
+  /**
+   * Like {@link #downloadToOutputStream}, but computes the MD5 and CRC32C of the data while it is
+   * written and checks them against the hashes in the response's {@code x-goog-hash} header, so no
+   * separate metadata request is needed. If the response has no such header, the hashes are taken
+   * from the metadata of the generation that was downloaded instead.
+   *
+   * @throws IOException if a hash does not match, i.e. the data was altered in transit, or if
+   *     there is no hash to check the data against
+   */
+  public static void downloadToOutputStreamAndVerify(Storage storage, String bucketName,
+      String objectName, OutputStream data) throws IOException {
+    Storage.Objects.Get getObject = storage.objects().get(bucketName, objectName);
+    HttpResponse response = getObject.executeMedia();
+    ObjectHasher hasher = new ObjectHasher();
+    response.download(hasher.wrap(data));
+    String md5Hash = null;
+    String crc32c = null;
+    List<String> hashHeaders = response.getHeaders().getHeaderStringValues("x-goog-hash");
+    for (String hashHeader : hashHeaders) {
+      // Each value is a comma-separated list like "crc32c=n03x6A==,md5=Ojk9c3dhfxgoKVVHYwFbHQ==".
+      for (String hash : hashHeader.split(",")) {
+        hash = hash.trim();
+        if (hash.startsWith("md5=")) {
+          md5Hash = hash.substring("md5=".length());
+        } else if (hash.startsWith("crc32c=")) {
+          crc32c = hash.substring("crc32c=".length());
+        }
+      }
+    }
+    if (md5Hash == null && crc32c == null) {
+      String generation = response.getHeaders().getFirstHeaderStringValue("x-goog-generation");
+      StorageObject object = storage.objects().get(bucketName, objectName)
+          .setGeneration(generation == null ? null : Long.valueOf(generation))
+          .setFields("md5Hash,crc32c")
+          .execute();
+      md5Hash = object.getMd5Hash();
+      crc32c = object.getCrc32c();
+      if (md5Hash == null && crc32c == null) {
+        throw new IOException("No hash to verify " + objectName + " against");
+      }
+    }
+    hasher.verify(objectName, md5Hash, crc32c);
+  }
   
   /**
    * This shows how to download a portion of an object. Especially useful for
@@ -58,12 +123,154 @@ public class ObjectsDownloadExample {
   public static void downloadRangeToOutputStream(Storage storage, String bucketName,
       String objectName, long firstBytePos, long lastBytePos, OutputStream data)
       throws IOException {
-    Storage.Objects.Get getObject = storage.objects().get(bucketName, objectName);
-    // Remove cast after https://github.com/google/google-api-java-client/issues/937 is addressed.
-    getObject.getMediaHttpDownloader().setDirectDownloadEnabled(!IS_APP_ENGINE)
-        .setContentRange(firstBytePos, (int) lastBytePos);
+    downloadRangeToOutputStream(storage, bucketName, objectName, null, firstBytePos, lastBytePos,
+        data);
+  }
+
+  /**
+   * Like {@link #downloadRangeToOutputStream(Storage, String, String, long, long, OutputStream)},
+   * but reads the given object generation if it is not {@code null}.
+   */
+  public static void downloadRangeToOutputStream(Storage storage, String bucketName,
+      String objectName, Long generation, long firstBytePos, long lastBytePos, OutputStream data)
+      throws IOException {
+    Storage.Objects.Get getObject = storage.objects().get(bucketName, objectName)
+        .setGeneration(generation);
+    MediaHttpDownloader downloader = getObject.getMediaHttpDownloader();
+    downloader.setDirectDownloadEnabled(!IS_APP_ENGINE);
+    if (downloader.isDirectDownloadEnabled()) {
+      // MediaHttpDownloader.setContentRange() takes the last byte position as an int (see
+      // https://github.com/google/google-api-java-client/issues/937), which breaks past 2 GB, so
+      // set the Range header directly instead.
+      getObject.getRequestHeaders().setRange("bytes=" + firstBytePos + "-" + lastBytePos);
+    } else {
+      // In chunked mode the downloader sets the Range header of every chunk itself, so the range
+      // must go through setContentRange(), and is limited to the first 2 GB.
+      Preconditions.checkArgument(lastBytePos <= Integer.MAX_VALUE,
+          "chunked downloads can't read past 2 GB; enable direct download");
+      downloader.setContentRange(firstBytePos, (int) lastBytePos);
+    }
     getObject.executeMediaAndDownloadTo(data);
   }
+
+  /**
+   * Downloads an object to a file by fetching fixed-size ranges concurrently (at most
+   * {@code parallelism} at a time). Each range is written straight to its position in the
+   * pre-sized file, so ranges may complete in any order.
+   *
+   * <p>A range that fails is retried on its own, up to {@code maxAttempts} times in total. The
+   * CRC32C of each range is computed while it is written, and the combined value is checked
+   * against the object metadata. All ranges read the same object generation, so the object being
+   * overwritten mid-download can't produce a mix of old and new data.
+   */
+  public static StorageObject downloadParallel(final Storage storage, String bucketName,
+      String objectName, File destination, long rangeSize, int parallelism, final int maxAttempts)
+      throws IOException {
+    Preconditions.checkArgument(rangeSize > 0, "rangeSize must be positive");
+    Preconditions.checkArgument(parallelism > 0, "parallelism must be positive");
+    Preconditions.checkArgument(maxAttempts > 0, "maxAttempts must be positive");
+    final StorageObject object = storage.objects().get(bucketName, objectName).execute();
+    long size = object.getSize().longValue();
+
+    RandomAccessFile file = new RandomAccessFile(destination, "rw");
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    try {
+      file.setLength(size);
+      final FileChannel channel = file.getChannel();
+      List<Future<Integer>> futures = Lists.newArrayList();
+      for (long offset = 0; offset < size; offset += rangeSize) {
+        final long firstBytePos = offset;
+        final long lastBytePos = Math.min(offset + rangeSize, size) - 1;
+        futures.add(executor.submit(new Callable<Integer>() {
+          @Override
+          public Integer call() throws IOException {
+            return downloadRangeToChannel(storage, object, firstBytePos, lastBytePos, channel,
+                maxAttempts);
+          }
+        }));
+      }
+
+      // Ranges are submitted in order, so the combined crc32c can be built in the same order.
+      int crc32c = 0;
+      long offset = 0;
+      for (Future<Integer> future : futures) {
+        try {
+          long length = Math.min(rangeSize, size - offset);
+          crc32c = ObjectHashes.combineCrc32c(crc32c, future.get(), length);
+          offset += length;
+        } catch (ExecutionException e) {
+          for (Future<Integer> other : futures) {
+            other.cancel(true);
+          }
+          Throwable cause = e.getCause();
+          throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (CancellationException e) {
+          throw new InterruptedIOException("Download of " + objectName + " was cancelled");
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while downloading " + objectName);
+        }
+      }
+      String calculatedCrc32c = ObjectHashes.encodeCrc32c(crc32c);
+      if (object.getCrc32c() != null && !object.getCrc32c().equals(calculatedCrc32c)) {
+        throw new IOException("crc32c mismatch for " + objectName + ": calculated "
+            + calculatedCrc32c + ", object metadata has " + object.getCrc32c());
+      }
+      return object;
+    } finally {
+      executor.shutdownNow();
+      file.close();
+    }
+  }
+
+  /** Downloads one range into the channel at its position, returning the range's CRC32C. */
+  private static int downloadRangeToChannel(Storage storage, StorageObject object,
+      long firstBytePos, long lastBytePos, FileChannel channel, int maxAttempts)
+      throws IOException {
+    for (int attempt = 1;; attempt++) {
+      HashingOutputStream out = new HashingOutputStream(Hashing.crc32c(),
+          new PositionalOutputStream(channel, firstBytePos));
+      try {
+        downloadRangeToOutputStream(storage, object.getBucket(), object.getName(),
+            object.getGeneration(), firstBytePos, lastBytePos, out);
+        return out.hash().asInt();
+      } catch (IOException e) {
+        if (attempt >= maxAttempts || Thread.currentThread().isInterrupted()) {
+          throw e;
+        }
+        System.err.println("Retrying range " + firstBytePos + "-" + lastBytePos + ": "
+            + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Writes to a {@link FileChannel} starting at a fixed position, without touching the channel's
+   * own position, so several of these can write to the same channel concurrently.
+   */
+  private static class PositionalOutputStream extends OutputStream {
+
+    private final FileChannel channel;
+    private long position;
+
+    PositionalOutputStream(FileChannel channel, long position) {
+      this.channel = channel;
+      this.position = position;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+      while (buffer.hasRemaining()) {
+        position += channel.write(buffer, position);
+      }
+    }
+  }
      
   public static void main(String[] args) throws Exception {
     HttpTransport httpTransport = GoogleNetHttpTransport.newTrustedTransport();
@@ -23,11 +23,19 @@ import com.google.api.services.samples.storage.util.CredentialsProvider;
 import com.google.api.services.storage.Storage;
 import com.google.api.services.storage.model.Objects;
 import com.google.api.services.storage.model.StorageObject;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 /** Example of listing objects in a GCS bucket. */
@@ -50,6 +58,124 @@ public class ObjectsListExample {
     } while (objects.getNextPageToken() != null);
     return Iterables.concat(pagedList);
   }
+
+  /** Receives objects from {@link #listConcurrently}; called from several threads at once. */
+  public interface ObjectConsumer {
+    void accept(StorageObject object) throws IOException;
+  }
+
+  /**
+   * Lists the objects under {@code prefix}, paging through several parts of the keyspace at once
+   * and handing each object to {@code consumer} as soon as its page arrives, instead of building
+   * the whole list in memory.
+   *
+   * <p>The keyspace is split using {@code delimiter}: each listing returns the objects directly
+   * under its prefix plus the next level of prefixes, and each of those is listed as its own shard
+   * on a pool of {@code parallelism} threads. With a {@code null} delimiter there is a single
+   * shard. Objects arrive in no particular order.
+   *
+   * @param itemFields object fields to request, e.g. {@code "name,size,crc32c"}, or {@code null}
+   *     for all of them
+   * @return the number of objects listed
+   */
+  public static long listConcurrently(Storage storage, String bucketName, String prefix,
+      String delimiter, String itemFields, int parallelism, ObjectConsumer consumer)
+      throws IOException {
+    Preconditions.checkArgument(parallelism > 0, "parallelism must be positive");
+    ConcurrentLister lister = new ConcurrentLister(storage, bucketName, delimiter,
+        itemFields == null ? null : "nextPageToken,prefixes,items(" + itemFields + ")",
+        Executors.newFixedThreadPool(parallelism), consumer);
+    return lister.list(prefix);
+  }
+
+  /** Lists shards on an executor, tracking how many are in flight to know when it is done. */
+  private static class ConcurrentLister {
+
+    private final Storage storage;
+    private final String bucketName;
+    private final String delimiter;
+    private final String fields;
+    private final ExecutorService executor;
+    private final ObjectConsumer consumer;
+    private final AtomicInteger pendingShards = new AtomicInteger();
+    private final AtomicLong objectCount = new AtomicLong();
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    ConcurrentLister(Storage storage, String bucketName, String delimiter, String fields,
+        ExecutorService executor, ObjectConsumer consumer) {
+      this.storage = storage;
+      this.bucketName = bucketName;
+      this.delimiter = delimiter;
+      this.fields = fields;
+      this.executor = executor;
+      this.consumer = consumer;
+    }
+
+    long list(String prefix) throws IOException {
+      try {
+        submit(prefix);
+        done.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while listing " + bucketName);
+      } finally {
+        executor.shutdownNow();
+      }
+      Throwable t = failure.get();
+      if (t instanceof IOException) {
+        throw (IOException) t;
+      } else if (t != null) {
+        throw new IOException(t);
+      }
+      return objectCount.get();
+    }
+
+    private void submit(final String prefix) {
+      pendingShards.incrementAndGet();
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            if (failure.get() == null) {
+              listShard(prefix);
+            }
+          } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+            done.countDown();
+          } finally {
+            if (pendingShards.decrementAndGet() == 0) {
+              done.countDown();
+            }
+          }
+        }
+      });
+    }
+
+    private void listShard(String prefix) throws IOException {
+      Storage.Objects.List listObjects = storage.objects().list(bucketName)
+          .setPrefix(prefix)
+          .setDelimiter(delimiter)
+          .setFields(fields);
+      Objects objects;
+      do {
+        objects = listObjects.execute();
+        // Start on the next level of the keyspace before consuming this page.
+        if (objects.getPrefixes() != null) {
+          for (String subPrefix : objects.getPrefixes()) {
+            submit(subPrefix);
+          }
+        }
+        if (objects.getItems() != null) {
+          for (StorageObject object : objects.getItems()) {
+            consumer.accept(object);
+          }
+          objectCount.addAndGet(objects.getItems().size());
+        }
+        listObjects.setPageToken(objects.getNextPageToken());
+      } while (objects.getNextPageToken() != null && failure.get() == null);
+    }
+  }
   
   public static void main(String[] args) throws Exception {
     HttpTransport httpTransport = GoogleNetHttpTransport.newTrustedTransport();
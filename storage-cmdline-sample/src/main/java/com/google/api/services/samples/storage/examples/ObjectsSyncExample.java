@@ -0,0 +1,395 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.storage.examples;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.samples.storage.util.AdaptiveChunkSizePolicy;
+import com.google.api.services.samples.storage.util.CredentialsProvider;
+import com.google.api.services.samples.storage.util.MappedFileContent;
+import com.google.api.services.samples.storage.util.SyncManifest;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Example of syncing a local directory tree with the objects under a bucket prefix, rsync-style.
+ *
+ * <p>Files and objects are matched by relative path and compared by size and then CRC32C, and only
+ * the ones that differ are transferred, in one direction. Local CRC32Cs are kept in a
+ * {@link SyncManifest}, so a repeat run only hashes the files that changed since the previous one.
+ * Nothing is deleted on either side.
+ *
+ * <p>The bucket is listed with {@link ObjectsListExample#listConcurrently}. Comparisons and
+ * transfers then run on a pool of {@code parallelism} threads, with at most twice that many queued,
+ * so memory stays bounded however many files there are. A failed file is reported and the others
+ * carry on.
+ */
+public class ObjectsSyncExample {
+
+  private static final String BUCKET_NAME = "*** bucket name ***";
+  private static final String PREFIX = "*** object name prefix, e.g. backup/ ***";
+  private static final String DIRECTORY = "*** local directory ***";
+  private static final String MANIFEST_FILE = "*** manifest file, outside the directory ***";
+
+  /** Files up to this size are uploaded in a single request instead of a resumable upload. */
+  private static final long DIRECT_UPLOAD_THRESHOLD = 8 * 1024 * 1024;
+
+  /** Objects larger than this are downloaded in parallel ranges of this size. */
+  private static final long PARALLEL_DOWNLOAD_RANGE_SIZE = 64 * 1024 * 1024;
+  private static final int PARALLEL_DOWNLOAD_PARALLELISM = 4;
+  private static final int PARALLEL_DOWNLOAD_ATTEMPTS = 3;
+
+  /** Which side is the source of the sync. */
+  public enum Direction {
+    /** Upload local files that are missing or different in the bucket. */
+    UPLOAD,
+    /** Download objects that are missing or different in the local directory. */
+    DOWNLOAD
+  }
+
+  /** Counts of what a sync did. */
+  public static class SyncResult {
+    private final AtomicLong transferred = new AtomicLong();
+    private final AtomicLong transferredBytes = new AtomicLong();
+    private final AtomicLong unchanged = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /** Returns the number of files uploaded or downloaded. */
+    public long getTransferred() {
+      return transferred.get();
+    }
+
+    /** Returns the number of bytes uploaded or downloaded. */
+    public long getTransferredBytes() {
+      return transferredBytes.get();
+    }
+
+    /** Returns the number of files that were already in sync. */
+    public long getUnchanged() {
+      return unchanged.get();
+    }
+
+    /** Returns the number of files that could not be synced. */
+    public long getFailed() {
+      return failed.get();
+    }
+
+    @Override
+    public String toString() {
+      return "transferred: " + getTransferred() + " (" + getTransferredBytes() + " bytes)"
+          + ", unchanged: " + getUnchanged() + ", failed: " + getFailed();
+    }
+  }
+
+  /** Size and CRC32C of an object, kept instead of the whole {@link StorageObject}. */
+  private static final class RemoteObject {
+    final long size;
+    final String crc32c;
+
+    RemoteObject(long size, String crc32c) {
+      this.size = size;
+      this.crc32c = crc32c;
+    }
+  }
+
+  /**
+   * Syncs {@code directory} with the objects whose names start with {@code prefix}; a file's
+   * object name is the prefix followed by its path relative to the directory, with {@code /}
+   * separators.
+   *
+   * @param manifestFile where the local CRC32C cache is kept between runs; created if missing
+   */
+  public static SyncResult sync(Storage storage, File directory, String bucketName, String prefix,
+      Direction direction, int parallelism, File manifestFile) throws IOException {
+    Preconditions.checkArgument(parallelism > 0, "parallelism must be positive");
+    if (!directory.isDirectory() && !(direction == Direction.DOWNLOAD && directory.mkdirs())) {
+      throw new IOException("Not a directory: " + directory);
+    }
+    SyncManifest manifest = SyncManifest.load(manifestFile);
+    Map<String, RemoteObject> remote = listRemote(storage, bucketName, prefix, parallelism);
+    Map<String, File> local = Maps.newHashMap();
+    listLocal(directory, "", local);
+
+    Syncer syncer = new Syncer(storage, bucketName, prefix, manifest, parallelism);
+    try {
+      if (direction == Direction.UPLOAD) {
+        for (Map.Entry<String, File> entry : local.entrySet()) {
+          syncer.upload(entry.getKey(), entry.getValue(), remote.get(entry.getKey()));
+        }
+      } else {
+        for (Map.Entry<String, RemoteObject> entry : remote.entrySet()) {
+          String path = entry.getKey();
+          if (isSafePath(path)) {
+            syncer.download(path, new File(directory, path), entry.getValue());
+          }
+        }
+      }
+      syncer.awaitCompletion();
+    } finally {
+      syncer.shutdown();
+    }
+
+    Set<String> paths = Sets.newHashSet(local.keySet());
+    paths.addAll(syncer.downloadedPaths);
+    manifest.retainAll(paths);
+    manifest.save(manifestFile);
+    return syncer.result;
+  }
+
+  /** Lists the objects under the prefix, keyed by name relative to the prefix. */
+  private static Map<String, RemoteObject> listRemote(Storage storage, String bucketName,
+      final String prefix, int parallelism) throws IOException {
+    final ConcurrentMap<String, RemoteObject> remote = Maps.newConcurrentMap();
+    ObjectsListExample.listConcurrently(storage, bucketName, prefix, "/", "name,size,crc32c",
+        parallelism, new ObjectsListExample.ObjectConsumer() {
+          @Override
+          public void accept(StorageObject object) {
+            String path = object.getName().substring(prefix.length());
+            // Names ending in "/" are folder placeholders, not files.
+            if (path.length() > 0 && !path.endsWith("/")) {
+              remote.put(path, new RemoteObject(object.getSize().longValue(),
+                  object.getCrc32c()));
+            }
+          }
+        });
+    return remote;
+  }
+
+  /** Adds the files under {@code directory} to {@code files}, keyed by relative path. */
+  private static void listLocal(File directory, String relativePath, Map<String, File> files)
+      throws IOException {
+    File[] children = directory.listFiles();
+    if (children == null) {
+      throw new IOException("Unable to list " + directory);
+    }
+    for (File child : children) {
+      String path = relativePath + child.getName();
+      if (child.isDirectory()) {
+        listLocal(child, path + "/", files);
+      } else if (child.isFile()) {
+        files.put(path, child);
+      }
+    }
+  }
+
+  /** Rejects object names that would be written outside the directory. */
+  private static boolean isSafePath(String path) {
+    for (String segment : path.split("/")) {
+      if (segment.length() == 0 || segment.equals(".") || segment.equals("..")) {
+        System.err.println("Skipping object with unsupported name: " + path);
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Runs comparisons and transfers on a pool, blocking the caller when too many are queued. */
+  private static class Syncer {
+
+    private final Storage storage;
+    private final String bucketName;
+    private final String prefix;
+    private final SyncManifest manifest;
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final int maxPermits;
+    private final SyncResult result = new SyncResult();
+    private final Set<String> downloadedPaths =
+        Sets.newSetFromMap(Maps.<String, Boolean>newConcurrentMap());
+
+    Syncer(Storage storage, String bucketName, String prefix, SyncManifest manifest,
+        int parallelism) {
+      this.storage = storage;
+      this.bucketName = bucketName;
+      this.prefix = prefix;
+      this.manifest = manifest;
+      this.executor = Executors.newFixedThreadPool(parallelism);
+      this.maxPermits = 2 * parallelism;
+      this.permits = new Semaphore(maxPermits);
+    }
+
+    void upload(final String path, final File file, final RemoteObject remote)
+        throws InterruptedIOException {
+      submit(path, new Task() {
+        @Override
+        public void run() throws IOException {
+          String crc32c = manifest.getCrc32c(path, file);
+          if (remote != null && remote.size == file.length() && crc32c.equals(remote.crc32c)) {
+            result.unchanged.incrementAndGet();
+            return;
+          }
+          uploadFile(path, file, crc32c);
+          result.transferred.incrementAndGet();
+          result.transferredBytes.addAndGet(file.length());
+        }
+      });
+    }
+
+    void download(final String path, final File file, final RemoteObject remote)
+        throws InterruptedIOException {
+      submit(path, new Task() {
+        @Override
+        public void run() throws IOException {
+          // Only hash local files whose size already matches.
+          if (file.isFile() && file.length() == remote.size
+              && manifest.getCrc32c(path, file).equals(remote.crc32c)) {
+            result.unchanged.incrementAndGet();
+            return;
+          }
+          downloadFile(path, file, remote);
+          downloadedPaths.add(path);
+          result.transferred.incrementAndGet();
+          result.transferredBytes.addAndGet(remote.size);
+        }
+      });
+    }
+
+    private void uploadFile(String path, File file, String crc32c) throws IOException {
+      // With the CRC32C in the metadata, the service rejects the upload if the data it received
+      // doesn't match, e.g. because the file changed after it was hashed.
+      StorageObject object = new StorageObject()
+          .setBucket(bucketName)
+          .setName(prefix + path)
+          .setCrc32c(crc32c);
+      StorageObject created;
+      if (file.length() <= DIRECT_UPLOAD_THRESHOLD) {
+        Storage.Objects.Insert insertObject = storage.objects().insert(bucketName, object,
+            new MappedFileContent("application/octet-stream", file));
+        insertObject.getMediaHttpUploader().setDirectUploadEnabled(true);
+        insertObject.setDisableGZipContent(true);
+        created = insertObject.execute();
+      } else {
+        created = ObjectsUploadExample.uploadWithMetadata(storage, object, file,
+            new AdaptiveChunkSizePolicy());
+      }
+      if (!crc32c.equals(created.getCrc32c())) {
+        throw new IOException("crc32c mismatch for " + path + ": calculated " + crc32c
+            + ", uploaded " + created.getCrc32c());
+      }
+    }
+
+    private void downloadFile(String path, File file, RemoteObject remote) throws IOException {
+      File parent = file.getParentFile();
+      if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+        throw new IOException("Unable to create directory " + parent);
+      }
+      // Download next to the file and rename it into place, so an interrupted download never
+      // leaves a partial file that a later run might take for the real one.
+      File temp = new File(parent, "." + file.getName() + ".sync");
+      try {
+        if (remote.size > PARALLEL_DOWNLOAD_RANGE_SIZE) {
+          // Checks the combined CRC32C of the ranges against the object's.
+          ObjectsDownloadExample.downloadParallel(storage, bucketName, prefix + path, temp,
+              PARALLEL_DOWNLOAD_RANGE_SIZE, PARALLEL_DOWNLOAD_PARALLELISM,
+              PARALLEL_DOWNLOAD_ATTEMPTS);
+        } else {
+          OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+          try {
+            ObjectsDownloadExample.downloadToOutputStreamAndVerify(storage, bucketName,
+                prefix + path, out);
+          } finally {
+            out.close();
+          }
+        }
+        if (file.exists() && !file.delete() || !temp.renameTo(file)) {
+          throw new IOException("Unable to replace " + file);
+        }
+      } finally {
+        temp.delete();
+      }
+      manifest.put(path, file, remote.crc32c);
+    }
+
+    private void submit(final String path, final Task task) throws InterruptedIOException {
+      try {
+        permits.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while syncing " + path);
+      }
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            task.run();
+          } catch (Throwable t) {
+            result.failed.incrementAndGet();
+            System.err.println("Unable to sync " + path + ": " + t.getMessage());
+          } finally {
+            permits.release();
+          }
+        }
+      });
+    }
+
+    /** Waits until every submitted task has finished. */
+    void awaitCompletion() throws InterruptedIOException {
+      try {
+        permits.acquire(maxPermits);
+        permits.release(maxPermits);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while syncing " + bucketName);
+      }
+    }
+
+    void shutdown() {
+      executor.shutdownNow();
+      try {
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /** A comparison and, if needed, transfer of one file. */
+  private interface Task {
+    void run() throws IOException;
+  }
+
+  public static void main(String[] args) throws Exception {
+    HttpTransport httpTransport = GoogleNetHttpTransport.newTrustedTransport();
+    JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
+    Credential credential = CredentialsProvider.authorize(httpTransport, jsonFactory);
+    Storage storage = new Storage.Builder(httpTransport, jsonFactory, credential)
+        .setApplicationName("Google-ObjectsSyncExample/1.0").build();
+    Direction direction = args.length > 0 ? Direction.valueOf(args[0]) : Direction.UPLOAD;
+    SyncResult result = sync(storage, new File(DIRECTORY), BUCKET_NAME, PREFIX, direction, 16,
+        new File(MANIFEST_FILE));
+    System.out.println(result);
+  }
+}
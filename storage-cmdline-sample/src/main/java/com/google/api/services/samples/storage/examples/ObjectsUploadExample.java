@@ -16,21 +16,42 @@ package com.google.api.services.samples.storage.examples;
 
 import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.googleapis.media.MediaHttpUploader;
+import com.google.api.client.http.AbstractInputStreamContent;
+import com.google.api.client.http.HttpStatusCodes;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.http.InputStreamContent;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.samples.storage.util.AdaptiveChunkSizePolicy;
 import com.google.api.services.samples.storage.util.CredentialsProvider;
+import com.google.api.services.samples.storage.util.MappedFileContent;
+import com.google.api.services.samples.storage.util.ObjectHasher;
+import com.google.api.services.samples.storage.util.ObjectHashes;
 import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.ComposeRequest;
 import com.google.api.services.storage.model.StorageObject;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 
 /** Example of uploading data to create a GCS object. */
@@ -40,38 +61,263 @@ public class ObjectsUploadExample {
   private static final String OBJECT_NAME = "*** object name ***";
   private static final String FILE_NAME = "*** upload file name ***";  
 
+  /** Maximum number of source objects GCS accepts in a single compose request. */
+  private static final int MAX_COMPOSE_COMPONENTS = 32;
+
   public static StorageObject uploadSimple(Storage storage, String bucketName, String objectName,
       String data) throws UnsupportedEncodingException, IOException {
     return uploadSimple(storage, bucketName, objectName, new ByteArrayInputStream(
         data.getBytes("UTF-8")), "text/plain");
   }
   
+  /**
+   * Uploads a file. The file is memory-mapped (see {@link MappedFileContent}), so it is not copied
+   * through {@code FileInputStream} buffers, and resumable chunks are retried from the mapping
+   * rather than from a heap copy of each chunk. The chunk size adapts to the link (see
+   * {@link AdaptiveChunkSizePolicy}).
+   */
   public static StorageObject uploadSimple(Storage storage, String bucketName, String objectName,
       File data) throws FileNotFoundException, IOException {
-    return uploadSimple(storage, bucketName, objectName, new FileInputStream(data),
-        "application/octet-stream");
+    return uploadWithMetadata(storage, new StorageObject().setBucket(bucketName)
+        .setName(objectName).setContentType("application/octet-stream"), data,
+        new AdaptiveChunkSizePolicy());
   }
 
   public static StorageObject uploadSimple(Storage storage, String bucketName, String objectName,
       InputStream data, String contentType) throws IOException {
-    InputStreamContent mediaContent = new InputStreamContent(contentType, data);
+    return uploadSimple(storage, bucketName, objectName, new InputStreamContent(contentType, data));
+  }
+
+  private static StorageObject uploadSimple(Storage storage, String bucketName, String objectName,
+      AbstractInputStreamContent mediaContent) throws IOException {
     Storage.Objects.Insert insertObject = storage.objects().insert(bucketName, null, mediaContent)
         .setName(objectName);
     // The media uploader gzips content by default, and alters the Content-Encoding accordingly.
     // GCS dutifully stores content as-uploaded. This line disables the media uploader behavior,
-    // so the service stores exactly what is in the InputStream, without transformation.
-    insertObject.getMediaHttpUploader().setDisableGZipContent(true);
+    // so the service stores exactly what is in the InputStream, without transformation. It has to
+    // be set on the request: the request's setting overrides the media uploader's own.
+    insertObject.setDisableGZipContent(true);
     return insertObject.execute();
   }
   
   public static StorageObject uploadWithMetadata(Storage storage, StorageObject object,
       InputStream data) throws IOException {
+    return uploadWithMetadata(storage, object, data, MediaHttpUploader.DEFAULT_CHUNK_SIZE, false);
+  }
+
+  /**
+   * Like {@link #uploadWithMetadata(Storage, StorageObject, InputStream)}, with the resumable
+   * upload chunk size (a multiple of {@link MediaHttpUploader#MINIMUM_CHUNK_SIZE}) and whether
+   * the media uploader gzips the content (see {@link #uploadSimple(Storage, String, String,
+   * InputStream, String)} for how that affects what GCS stores).
+   */
+  public static StorageObject uploadWithMetadata(Storage storage, StorageObject object,
+      InputStream data, int chunkSize, boolean gzipInTransit) throws IOException {
     InputStreamContent mediaContent = new InputStreamContent(object.getContentType(), data);
     Storage.Objects.Insert insertObject = storage.objects().insert(object.getBucket(), object,
         mediaContent);
-    insertObject.getMediaHttpUploader().setDisableGZipContent(true);
+    insertObject.getMediaHttpUploader().setChunkSize(chunkSize);
+    insertObject.setDisableGZipContent(!gzipInTransit);
     return insertObject.execute();
   }
+
+  /**
+   * Uploads a file as a resumable upload whose chunk size is tuned while it runs by
+   * {@code chunkSizePolicy}, which is also the upload's progress listener. The file is
+   * memory-mapped, so its length is known and chunks are replayed from the mapping on retry.
+   */
+  public static StorageObject uploadWithMetadata(Storage storage, StorageObject object,
+      File data, AdaptiveChunkSizePolicy chunkSizePolicy) throws FileNotFoundException,
+      IOException {
+    if (!data.isFile()) {
+      throw new FileNotFoundException(data.getPath());
+    }
+    Storage.Objects.Insert insertObject = storage.objects().insert(object.getBucket(), object,
+        new MappedFileContent(object.getContentType(), data));
+    insertObject.getMediaHttpUploader().setProgressListener(chunkSizePolicy);
+    insertObject.setDisableGZipContent(true);
+    return insertObject.execute();
+  }
+
+  /**
+   * Like {@link #uploadWithMetadata}, but computes the MD5 and CRC32C of the data while it is
+   * streamed and checks them against the hashes of the created object, instead of downloading the
+   * object again to verify it.
+   *
+   * @throws IOException if a hash does not match, i.e. the data was altered in transit
+   */
+  public static StorageObject uploadWithMetadataAndVerify(Storage storage, StorageObject object,
+      InputStream data) throws IOException {
+    ObjectHasher hasher = new ObjectHasher();
+    StorageObject created = uploadWithMetadata(storage, object, hasher.wrap(data));
+    hasher.verify(created);
+    return created;
+  }
+
+  /**
+   * Uploads a file as a parallel composite upload. The file is split into {@code sliceCount}
+   * slices, which are uploaded concurrently (at most {@code parallelism} at a time) as temporary
+   * component objects. The components are then composed into {@code object} and deleted.
+   *
+   * <p>The slices are views of one memory-mapped file (see {@link MappedFileContent}). Each
+   * component's CRC32C, as computed from its slice, is checked against the one returned by the
+   * service, so a slice corrupted in transit fails the upload before the compose. The CRC32C of
+   * the composed object is then checked against the CRC32Cs of the components combined in order.
+   * GCS composes at most 32 components in one request, so {@code sliceCount} is capped at that.
+   *
+   * <p>The components are deleted whether or not the upload succeeds, including those of slices
+   * still uploading when another fails or the calling thread is interrupted.
+   */
+  public static StorageObject uploadParallelComposite(final Storage storage,
+      StorageObject object, final File data, int sliceCount, int parallelism) throws IOException {
+    Preconditions.checkArgument(sliceCount > 0, "sliceCount must be positive");
+    Preconditions.checkArgument(parallelism > 0, "parallelism must be positive");
+    final String bucketName = object.getBucket();
+    final long length = data.length();
+    int slices = (int) Math.max(1, Math.min(Math.min(sliceCount, MAX_COMPOSE_COMPONENTS), length));
+    long sliceLength = Math.max(1, (length + slices - 1) / slices);
+    String componentPrefix = object.getName() + "_component_" + UUID.randomUUID() + "_";
+
+    final MappedFileContent content = new MappedFileContent("application/octet-stream", data);
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    List<String> componentNames = Lists.newArrayList();
+    try {
+      List<Future<StorageObject>> futures = Lists.newArrayList();
+      for (long offset = 0; offset == 0 || offset < length; offset += sliceLength) {
+        final String componentName = componentPrefix + futures.size();
+        componentNames.add(componentName);
+        final long sliceOffset = offset;
+        final long sliceSize = Math.min(sliceLength, length - offset);
+        futures.add(executor.submit(new Callable<StorageObject>() {
+          @Override
+          public StorageObject call() throws IOException {
+            return uploadSlice(storage, bucketName, componentName,
+                content.slice(sliceOffset, sliceSize));
+          }
+        }));
+      }
+      List<StorageObject> components = Lists.newArrayList();
+      for (Future<StorageObject> future : futures) {
+        try {
+          components.add(future.get());
+        } catch (ExecutionException e) {
+          throw asIOException(e.getCause());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while uploading slices of " + data);
+        }
+      }
+
+      List<ComposeRequest.SourceObjects> sourceObjects = Lists.newArrayList();
+      int expectedCrc32c = 0;
+      for (StorageObject component : components) {
+        sourceObjects.add(new ComposeRequest.SourceObjects()
+            .setName(component.getName())
+            .setGeneration(component.getGeneration()));
+        expectedCrc32c = ObjectHashes.combineCrc32c(expectedCrc32c,
+            ObjectHashes.decodeCrc32c(component.getCrc32c()), component.getSize().longValue());
+      }
+      ComposeRequest composeRequest = new ComposeRequest()
+          .setDestination(object)
+          .setSourceObjects(sourceObjects);
+      StorageObject composed =
+          storage.objects().compose(bucketName, object.getName(), composeRequest).execute();
+      if (!ObjectHashes.encodeCrc32c(expectedCrc32c).equals(composed.getCrc32c())) {
+        throw new IOException("crc32c mismatch for " + composed.getName() + ": combined "
+            + ObjectHashes.encodeCrc32c(expectedCrc32c) + " from the components, composed "
+            + composed.getCrc32c());
+      }
+      return composed;
+    } finally {
+      // Stop the slices still uploading and wait for them, so that none is created after the
+      // components are deleted.
+      executor.shutdownNow();
+      awaitTerminationUninterruptibly(executor);
+      deleteComponents(storage, bucketName, componentNames, parallelism);
+    }
+  }
+
+  private static StorageObject uploadSlice(Storage storage, String bucketName,
+      String componentName, MappedFileContent slice) throws IOException {
+    // Hashing the mapped slice up front reads it from the page cache, not the network, and lets
+    // the uploader replay chunks from the mapping without any stream wrapped around it.
+    ObjectHasher hasher = new ObjectHasher();
+    InputStream in = hasher.wrap(slice.getInputStream());
+    try {
+      ByteStreams.copy(in, ByteStreams.nullOutputStream());
+    } finally {
+      in.close();
+    }
+    Storage.Objects.Insert insertObject = storage.objects().insert(bucketName,
+        new StorageObject().setName(componentName), slice);
+    insertObject.setDisableGZipContent(true);
+    StorageObject component = insertObject.execute();
+    hasher.verify(componentName, null, component.getCrc32c());
+    return component;
+  }
+
+  /**
+   * Deletes the temporary components concurrently, even if the calling thread is interrupted.
+   * Components whose slice was never uploaded are not found, which is fine; other failures are
+   * reported but not thrown.
+   */
+  private static void deleteComponents(final Storage storage, final String bucketName,
+      List<String> componentNames, int parallelism) {
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    try {
+      List<Future<?>> deletes = Lists.newArrayList();
+      for (final String componentName : componentNames) {
+        deletes.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            try {
+              storage.objects().delete(bucketName, componentName).execute();
+            } catch (GoogleJsonResponseException e) {
+              if (e.getStatusCode() != HttpStatusCodes.STATUS_CODE_NOT_FOUND) {
+                throw e;
+              }
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<?> delete : deletes) {
+        try {
+          Uninterruptibles.getUninterruptibly(delete);
+        } catch (ExecutionException e) {
+          System.err.println("Unable to delete component: " + e.getCause().getMessage());
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /** Waits for an executor to terminate, keeping the thread's interrupt status for later. */
+  private static void awaitTerminationUninterruptibly(ExecutorService executor) {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+          return;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private static IOException asIOException(Throwable t) {
+    if (t instanceof IOException) {
+      return (IOException) t;
+    }
+    return new IOException(t);
+  }
   
   public static void main(String[] args) throws Exception {
     HttpTransport httpTransport = GoogleNetHttpTransport.newTrustedTransport();
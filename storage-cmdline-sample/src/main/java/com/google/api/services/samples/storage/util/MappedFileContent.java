@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.storage.util;
+
+import com.google.api.client.http.AbstractInputStreamContent;
+import com.google.common.base.Preconditions;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * File content backed by memory-mapped regions of the file, for use in place of
+ * {@code FileContent} or {@code InputStreamContent} around a {@code FileInputStream}.
+ *
+ * <p>The data is read straight out of the page cache instead of through {@code FileInputStream}
+ * buffers. The input stream supports {@code mark()}/{@code reset()}, so {@code MediaHttpUploader}
+ * replays a failed resumable chunk from the mapping instead of wrapping the stream in a
+ * {@code BufferedInputStream} that holds a copy of every chunk on the heap. {@link #slice} returns
+ * retryable views of parts of the same file, e.g. for uploading components in parallel.
+ *
+ * <p>The file is mapped in windows of at most 64 MB, so files larger than 2 GB are supported.
+ */
+public class MappedFileContent extends AbstractInputStreamContent {
+
+  private static final int MAX_WINDOW_SIZE = 64 * 1024 * 1024;
+
+  /** Size of the buffer used by {@link #writeTo} to copy from the mapping to the stream. */
+  private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+  private final File file;
+  private final long offset;
+  private final long length;
+
+  /** Content of the whole file. */
+  public MappedFileContent(String type, File file) {
+    this(type, file, 0, file.length());
+  }
+
+  /** Content of {@code length} bytes of the file starting at {@code offset}. */
+  public MappedFileContent(String type, File file, long offset, long length) {
+    super(type);
+    Preconditions.checkArgument(offset >= 0 && length >= 0, "negative offset or length");
+    this.file = Preconditions.checkNotNull(file);
+    this.offset = offset;
+    this.length = length;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public long getOffset() {
+    return offset;
+  }
+
+  @Override
+  public long getLength() {
+    return length;
+  }
+
+  @Override
+  public boolean retrySupported() {
+    return true;
+  }
+
+  /**
+   * Returns the content of {@code sliceLength} bytes starting at {@code sliceOffset} within this
+   * content. No data is read or copied.
+   */
+  public MappedFileContent slice(long sliceOffset, long sliceLength) {
+    Preconditions.checkArgument(sliceOffset >= 0 && sliceLength >= 0
+        && sliceOffset + sliceLength <= length, "slice out of range");
+    return new MappedFileContent(getType(), file, offset + sliceOffset, sliceLength);
+  }
+
+  @Override
+  public InputStream getInputStream() throws IOException {
+    return new MappedInputStream();
+  }
+
+  /**
+   * Copies the mapped data to the stream through a single small buffer, instead of the default of
+   * allocating an input stream and a copy buffer per request.
+   */
+  @Override
+  public void writeTo(OutputStream out) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      byte[] buffer = new byte[(int) Math.min(COPY_BUFFER_SIZE, Math.max(1, length))];
+      for (long position = 0; position < length; position += MAX_WINDOW_SIZE) {
+        MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, offset + position,
+            Math.min(MAX_WINDOW_SIZE, length - position));
+        while (window.hasRemaining()) {
+          int count = Math.min(buffer.length, window.remaining());
+          window.get(buffer, 0, count);
+          out.write(buffer, 0, count);
+        }
+      }
+      out.flush();
+    } finally {
+      raf.close();
+    }
+  }
+
+  @Override
+  public MappedFileContent setType(String type) {
+    return (MappedFileContent) super.setType(type);
+  }
+
+  @Override
+  public MappedFileContent setCloseInputStream(boolean closeInputStream) {
+    return (MappedFileContent) super.setCloseInputStream(closeInputStream);
+  }
+
+  /** Reads the content window by window, mapping each window on first use. */
+  private class MappedInputStream extends InputStream {
+
+    private final RandomAccessFile raf;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long position;
+    private long mark;
+
+    MappedInputStream() throws IOException {
+      raf = new RandomAccessFile(file, "r");
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (!ensureWindow()) {
+        return -1;
+      }
+      position++;
+      return window.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      Preconditions.checkPositionIndexes(off, off + len, b.length);
+      if (len == 0) {
+        return 0;
+      }
+      if (!ensureWindow()) {
+        return -1;
+      }
+      int count = Math.min(len, window.remaining());
+      window.get(b, off, count);
+      position += count;
+      return count;
+    }
+
+    @Override
+    public long skip(long n) {
+      long skipped = Math.max(0, Math.min(n, length - position));
+      seek(position + skipped);
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return (int) Math.min(Integer.MAX_VALUE, length - position);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return true;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+      // The whole content stays readable, so the read limit doesn't matter.
+      mark = position;
+    }
+
+    @Override
+    public synchronized void reset() {
+      seek(mark);
+    }
+
+    @Override
+    public void close() throws IOException {
+      window = null;
+      raf.close();
+    }
+
+    private void seek(long newPosition) {
+      position = newPosition;
+      if (window != null) {
+        long windowOffset = position - windowStart;
+        if (windowOffset >= 0 && windowOffset <= window.limit()) {
+          window.position((int) windowOffset);
+        } else {
+          window = null;
+        }
+      }
+    }
+
+    /** Makes sure {@link #window} has data at {@link #position}, unless at the end. */
+    private boolean ensureWindow() throws IOException {
+      if (position >= length) {
+        return false;
+      }
+      if (window == null || !window.hasRemaining()) {
+        windowStart = position;
+        window = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, offset + windowStart,
+            Math.min(MAX_WINDOW_SIZE, length - windowStart));
+      }
+      return true;
+    }
+  }
+}
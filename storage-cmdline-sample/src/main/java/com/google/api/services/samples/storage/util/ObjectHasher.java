@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.storage.util;
+
+import com.google.api.services.storage.model.StorageObject;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes the MD5 and CRC32C of object data while it is streamed to or from GCS, so it can be
+ * checked against the hashes the service reports without reading the data a second time.
+ *
+ * <p>Wrap the stream being uploaded with {@link #wrap(InputStream)}, or the stream being
+ * downloaded to with {@link #wrap(OutputStream)}, and call {@link #verify} once the transfer is
+ * done. The hashes are of the bytes as stored, so this doesn't apply to objects stored with
+ * {@code Content-Encoding: gzip}, which the client decompresses on download.
+ */
+public class ObjectHasher {
+
+  private final MessageDigest md5;
+  private final Hasher crc32c = Hashing.crc32c().newHasher();
+  private long byteCount;
+  private String md5Hash;
+  private String crc32cHash;
+
+  public ObjectHasher() {
+    try {
+      md5 = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /** Adds bytes to the hashes. */
+  public void update(byte[] b, int off, int len) {
+    if (md5Hash != null) {
+      throw new IllegalStateException("Hashes already computed");
+    }
+    md5.update(b, off, len);
+    crc32c.putBytes(b, off, len);
+    byteCount += len;
+  }
+
+  /** Returns the number of bytes hashed so far. */
+  public long getByteCount() {
+    return byteCount;
+  }
+
+  /** Returns the MD5 encoded as in {@code StorageObject.getMd5Hash()}. */
+  public String getMd5Hash() {
+    finish();
+    return md5Hash;
+  }
+
+  /** Returns the CRC32C encoded as in {@code StorageObject.getCrc32c()}. */
+  public String getCrc32c() {
+    finish();
+    return crc32cHash;
+  }
+
+  /** Checks the hashes against the ones GCS reported for the object. */
+  public void verify(StorageObject object) throws IOException {
+    verify(object.getName(), object.getMd5Hash(), object.getCrc32c());
+  }
+
+  /**
+   * Checks the hashes against the expected ones, either of which may be {@code null} if not
+   * known (composite objects, for example, have no MD5).
+   *
+   * @throws IOException if a hash does not match, i.e. the data was altered in transit
+   */
+  public void verify(String name, String expectedMd5Hash, String expectedCrc32c)
+      throws IOException {
+    if (expectedMd5Hash != null && !expectedMd5Hash.equals(getMd5Hash())) {
+      throw new IOException("md5Hash mismatch for " + name + ": calculated " + getMd5Hash()
+          + ", expected " + expectedMd5Hash);
+    }
+    if (expectedCrc32c != null && !expectedCrc32c.equals(getCrc32c())) {
+      throw new IOException("crc32c mismatch for " + name + ": calculated " + getCrc32c()
+          + ", expected " + expectedCrc32c);
+    }
+  }
+
+  /** Returns a stream that hashes every byte read from {@code in}. */
+  public InputStream wrap(InputStream in) {
+    return new FilterInputStream(in) {
+      @Override
+      public int read() throws IOException {
+        int b = in.read();
+        if (b != -1) {
+          update(new byte[] {(byte) b}, 0, 1);
+        }
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int count = in.read(b, off, len);
+        if (count > 0) {
+          update(b, off, count);
+        }
+        return count;
+      }
+
+      @Override
+      public long skip(long n) throws IOException {
+        // Skipped bytes would be missing from the hashes.
+        throw new IOException("skip() not supported");
+      }
+
+      @Override
+      public boolean markSupported() {
+        return false;
+      }
+    };
+  }
+
+  /** Returns a stream that hashes every byte written to {@code out}. */
+  public OutputStream wrap(OutputStream out) {
+    return new FilterOutputStream(out) {
+      @Override
+      public void write(int b) throws IOException {
+        out.write(b);
+        update(new byte[] {(byte) b}, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        update(b, off, len);
+      }
+    };
+  }
+
+  private void finish() {
+    if (md5Hash == null) {
+      md5Hash = ObjectHashes.encodeMd5(md5.digest());
+      crc32cHash = ObjectHashes.encodeCrc32c(crc32c.hash().asInt());
+    }
+  }
+}
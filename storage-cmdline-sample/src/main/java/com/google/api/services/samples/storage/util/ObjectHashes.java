@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.storage.util;
+
+import com.google.common.io.BaseEncoding;
+import com.google.common.primitives.Ints;
+
+/**
+ * Utility methods for the hash encodings used in GCS object metadata.
+ */
+public class ObjectHashes {
+
+  /** Reversed CRC32C (Castagnoli) polynomial. */
+  private static final int CRC32C_POLYNOMIAL = 0x82F63B78;
+
+  /**
+   * Encodes a CRC32C value the way GCS reports it in {@code StorageObject.getCrc32c()}.
+   *
+   * <p>NOTE: GCS uses the base64 of the big-endian bytes. Don't encode {@code HashCode.asBytes()}
+   * directly, as that is little-endian.
+   */
+  public static String encodeCrc32c(int crc32c) {
+    return BaseEncoding.base64().encode(Ints.toByteArray(crc32c));
+  }
+
+  /** Decodes a CRC32C value as reported by {@code StorageObject.getCrc32c()}. */
+  public static int decodeCrc32c(String encodedCrc32c) {
+    return Ints.fromByteArray(BaseEncoding.base64().decode(encodedCrc32c));
+  }
+
+  /** Encodes an MD5 digest the way GCS reports it in {@code StorageObject.getMd5Hash()}. */
+  public static String encodeMd5(byte[] md5Digest) {
+    return BaseEncoding.base64().encode(md5Digest);
+  }
+
+  /**
+   * Combines the CRC32C of two adjacent byte sequences: given {@code crc1} of the first sequence,
+   * and {@code crc2} of the second sequence of length {@code length2}, returns the CRC32C of their
+   * concatenation. This lets ranges hashed independently (e.g. downloaded in parallel) be checked
+   * against the CRC32C of the whole object without reading it again.
+   *
+   * <p>Port of zlib's {@code crc32_combine()}, using the CRC32C (Castagnoli) polynomial.
+   */
+  public static int combineCrc32c(int crc1, int crc2, long length2) {
+    if (length2 <= 0) {
+      return crc1;
+    }
+    int[] even = new int[32];
+    int[] odd = new int[32];
+    // put operator for one zero bit in odd
+    odd[0] = CRC32C_POLYNOMIAL;
+    int row = 1;
+    for (int n = 1; n < 32; n++) {
+      odd[n] = row;
+      row <<= 1;
+    }
+    // put operator for two zero bits in even, then four zero bits in odd
+    gf2MatrixSquare(even, odd);
+    gf2MatrixSquare(odd, even);
+    // apply length2 zero bytes to crc1 (first square puts the operator for one zero byte, eight
+    // zero bits, in even)
+    do {
+      gf2MatrixSquare(even, odd);
+      if ((length2 & 1) != 0) {
+        crc1 = gf2MatrixTimes(even, crc1);
+      }
+      length2 >>= 1;
+      if (length2 == 0) {
+        break;
+      }
+      gf2MatrixSquare(odd, even);
+      if ((length2 & 1) != 0) {
+        crc1 = gf2MatrixTimes(odd, crc1);
+      }
+      length2 >>= 1;
+    } while (length2 != 0);
+    return crc1 ^ crc2;
+  }
+
+  private static int gf2MatrixTimes(int[] matrix, int vector) {
+    int sum = 0;
+    for (int i = 0; vector != 0; i++, vector >>>= 1) {
+      if ((vector & 1) != 0) {
+        sum ^= matrix[i];
+      }
+    }
+    return sum;
+  }
+
+  private static void gf2MatrixSquare(int[] square, int[] matrix) {
+    for (int n = 0; n < 32; n++) {
+      square[n] = gf2MatrixTimes(matrix, matrix[n]);
+    }
+  }
+
+  private ObjectHashes() {
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.storage.util;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Cache of the CRC32C of local files, keyed by relative path and invalidated by size and
+ * modification time, so repeated syncs only hash the files that changed since the last run.
+ *
+ * <p>It is safe to use from several threads. It is stored as a text file with one line per file:
+ * size, modification time, CRC32C (encoded as in {@code StorageObject.getCrc32c()}) and path,
+ * separated by tabs. Lines that can't be parsed are ignored, so a damaged manifest only costs
+ * some re-hashing.
+ */
+public class SyncManifest {
+
+  private static final class Entry {
+    final long size;
+    final long lastModified;
+    final String crc32c;
+
+    Entry(long size, long lastModified, String crc32c) {
+      this.size = size;
+      this.lastModified = lastModified;
+      this.crc32c = crc32c;
+    }
+  }
+
+  private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+  /** Loads a manifest, or returns an empty one if {@code file} does not exist. */
+  public static SyncManifest load(File file) throws IOException {
+    SyncManifest manifest = new SyncManifest();
+    if (!file.exists()) {
+      return manifest;
+    }
+    BufferedReader reader = new BufferedReader(
+        new InputStreamReader(new FileInputStream(file), Charsets.UTF_8));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split("\t", 4);
+        if (fields.length != 4) {
+          continue;
+        }
+        try {
+          manifest.entries.put(fields[3], new Entry(Long.parseLong(fields[0]),
+              Long.parseLong(fields[1]), fields[2]));
+        } catch (NumberFormatException e) {
+          // Ignore the line; the file will be hashed again.
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return manifest;
+  }
+
+  /**
+   * Writes the manifest to a temporary file next to {@code file} and then renames it, so an
+   * interrupted save leaves the previous manifest in place.
+   */
+  public void save(File file) throws IOException {
+    File temp = new File(file.getPath() + ".tmp");
+    Writer writer = new BufferedWriter(
+        new OutputStreamWriter(new FileOutputStream(temp), Charsets.UTF_8));
+    try {
+      for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+        Entry value = entry.getValue();
+        writer.write(value.size + "\t" + value.lastModified + "\t" + value.crc32c + "\t"
+            + entry.getKey() + "\n");
+      }
+    } finally {
+      writer.close();
+    }
+    if (file.exists() && !file.delete() || !temp.renameTo(file)) {
+      throw new IOException("Unable to replace " + file);
+    }
+  }
+
+  /**
+   * Returns the CRC32C of {@code file}, encoded as in {@code StorageObject.getCrc32c()}. It comes
+   * from the manifest if the file's size and modification time are unchanged, and is computed and
+   * recorded otherwise.
+   */
+  public String getCrc32c(String path, File file) throws IOException {
+    long size = file.length();
+    long lastModified = file.lastModified();
+    Entry entry = entries.get(path);
+    if (entry != null && entry.size == size && entry.lastModified == lastModified) {
+      return entry.crc32c;
+    }
+    String crc32c = ObjectHashes.encodeCrc32c(
+        Files.asByteSource(file).hash(Hashing.crc32c()).asInt());
+    // A file modified while it was hashed has a newer time, so the entry won't be trusted.
+    entries.put(path, new Entry(size, lastModified, crc32c));
+    return crc32c;
+  }
+
+  /** Records the CRC32C of a file that was just written or uploaded with a known checksum. */
+  public void put(String path, File file, String crc32c) {
+    entries.put(path, new Entry(file.length(), file.lastModified(), crc32c));
+  }
+
+  /** Drops the entries of files that are not in {@code paths}, e.g. because they were deleted. */
+  public void retainAll(Set<String> paths) {
+    entries.keySet().retainAll(paths);
+  }
+}
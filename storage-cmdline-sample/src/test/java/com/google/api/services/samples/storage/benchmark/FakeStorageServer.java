@@ -0,0 +1,618 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.storage.benchmark;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.samples.storage.util.ObjectHasher;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.ComposeRequest;
+import com.google.api.services.storage.model.Objects;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * In-process stand-in for the parts of the GCS JSON API the examples use, so they can be measured
+ * without touching real buckets. Objects are held in memory.
+ *
+ * <p>Supported: object metadata get, media download (with {@code Range}), list (with
+ * {@code prefix}, {@code delimiter} and paging), resumable upload (with gzip-encoded chunks),
+ * multipart upload, compose, delete, and batches of metadata gets. Anything else gets a 501.
+ * Like GCS, uploads whose metadata has a CRC32C that doesn't match the data are rejected.
+ */
+public class FakeStorageServer {
+
+  /** Prefix of the server's thread names, so they can be told apart from client threads. */
+  public static final String THREAD_NAME_PREFIX = "fake-gcs-";
+
+  private static final String SERVICE_PATH = "/storage/v1/b/";
+  private static final String DOWNLOAD_PATH = "/download/storage/v1/b/";
+  private static final String UPLOAD_PATH = "/upload/storage/v1/b/";
+  private static final String SESSION_PATH = "/upload/session/";
+  private static final String BATCH_PATH = "/batch/storage/v1";
+  private static final String BATCH_BOUNDARY = "batch_fake_storage_server";
+  private static final int DEFAULT_MAX_RESULTS = 1000;
+
+  private final JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final ConcurrentMap<String, NavigableMap<String, StoredObject>> buckets =
+      new ConcurrentSkipListMap<String, NavigableMap<String, StoredObject>>();
+  private final ConcurrentMap<String, UploadSession> sessions = Maps.newConcurrentMap();
+  private final AtomicLong nextGeneration = new AtomicLong(1);
+  private final AtomicLong nextSessionId = new AtomicLong(1);
+  private volatile Pattern failingUploads;
+  private volatile boolean sendHashHeaders = true;
+  private volatile boolean corruptDownloads;
+
+  /** An object's metadata and data. */
+  private static class StoredObject {
+    final StorageObject metadata;
+    final byte[] data;
+
+    StoredObject(StorageObject metadata, byte[] data) {
+      this.metadata = metadata;
+      this.data = data;
+    }
+  }
+
+  /** A resumable upload in progress. */
+  private static class UploadSession {
+    final StorageObject metadata;
+    final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+    UploadSession(StorageObject metadata) {
+      this.metadata = metadata;
+    }
+  }
+
+  /** Starts a server on an ephemeral port of the loopback interface. */
+  public FakeStorageServer() throws IOException {
+    // Without TCP_NODELAY, small responses written as headers then body wait on delayed ACKs,
+    // adding ~40 ms to every request.
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    final AtomicInteger threadCount = new AtomicInteger();
+    executor = Executors.newCachedThreadPool(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, THREAD_NAME_PREFIX + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    server.setExecutor(executor);
+    server.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          dispatch(exchange);
+        } catch (IOException e) {
+          sendError(exchange, 500, e.toString());
+        } catch (RuntimeException e) {
+          sendError(exchange, 500, e.toString());
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    server.start();
+  }
+
+  /** Returns the root URL to pass to {@link Storage.Builder#setRootUrl}. */
+  public String getRootUrl() {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+  }
+
+  public void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  /** Stores an object directly, e.g. to populate a bucket for a list benchmark. */
+  public StorageObject putObject(String bucketName, String objectName, byte[] data) {
+    return store(new StorageObject().setBucket(bucketName).setName(objectName), data);
+  }
+
+  /** Deletes all objects. */
+  public void clear() {
+    buckets.clear();
+    sessions.clear();
+  }
+
+  /**
+   * Makes uploads of objects whose names match a regular expression store the object, then fail
+   * with a 503 as if the response were lost, e.g. to check what a client leaves behind when part
+   * of its work fails.
+   *
+   * @param namePattern the regular expression, or {@code null} to let all uploads succeed
+   */
+  public void failUploadsMatching(String namePattern) {
+    failingUploads = namePattern == null ? null : Pattern.compile(namePattern);
+  }
+
+  private void dispatch(HttpExchange exchange) throws IOException {
+    String method = exchange.getRequestMethod();
+    String path = exchange.getRequestURI().getRawPath();
+    Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+    if (path.startsWith(SESSION_PATH) && method.equals("PUT")) {
+      handleUploadChunk(exchange, path.substring(SESSION_PATH.length()));
+    } else if (path.startsWith(UPLOAD_PATH) && method.equals("POST")) {
+      List<String> segments = splitPath(path.substring(UPLOAD_PATH.length()));
+      if (segments.size() == 2 && "resumable".equals(query.get("uploadType"))) {
+        handleUploadStart(exchange, segments.get(0));
+      } else if (segments.size() == 2 && "multipart".equals(query.get("uploadType"))) {
+        handleMultipartUpload(exchange, segments.get(0));
+      } else {
+        sendError(exchange, 501, "Only resumable and multipart uploads are supported");
+      }
+    } else if (path.startsWith(DOWNLOAD_PATH) && method.equals("GET")) {
+      List<String> segments = splitPath(path.substring(DOWNLOAD_PATH.length()));
+      if (segments.size() == 3) {
+        handleGet(exchange, segments.get(0), segments.get(2), query);
+      } else {
+        sendError(exchange, 501, method + " " + path);
+      }
+    } else if (path.equals(BATCH_PATH) && method.equals("POST")) {
+      handleBatch(exchange);
+    } else if (path.startsWith(SERVICE_PATH)) {
+      List<String> segments = splitPath(path.substring(SERVICE_PATH.length()));
+      if (segments.size() == 2 && segments.get(1).equals("o") && method.equals("GET")) {
+        handleList(exchange, segments.get(0), query);
+      } else if (segments.size() == 3 && method.equals("GET")) {
+        handleGet(exchange, segments.get(0), segments.get(2), query);
+      } else if (segments.size() == 3 && method.equals("DELETE")) {
+        handleDelete(exchange, segments.get(0), segments.get(2));
+      } else if (segments.size() == 4 && segments.get(3).equals("compose")
+          && method.equals("POST")) {
+        handleCompose(exchange, segments.get(0), segments.get(2));
+      } else {
+        sendError(exchange, 501, method + " " + path);
+      }
+    } else {
+      sendError(exchange, 501, method + " " + path);
+    }
+  }
+
+  private void handleGet(HttpExchange exchange, String bucketName, String objectName,
+      Map<String, String> query) throws IOException {
+    StoredObject object = lookup(bucketName, objectName);
+    if (object == null || (query.containsKey("generation")
+        && !query.get("generation").equals(object.metadata.getGeneration().toString()))) {
+      sendError(exchange, 404, "No such object: " + bucketName + "/" + objectName);
+      return;
+    }
+    if (!"media".equals(query.get("alt"))) {
+      sendJson(exchange, 200, jsonFactory.toString(object.metadata));
+      return;
+    }
+    byte[] data = object.data;
+    int first = 0;
+    int last = data.length - 1;
+    int status = 200;
+    String range = exchange.getRequestHeaders().getFirst("Range");
+    if (range != null && range.startsWith("bytes=")) {
+      String[] positions = range.substring("bytes=".length()).split("-");
+      first = Integer.parseInt(positions[0]);
+      if (positions.length > 1 && !positions[1].isEmpty()) {
+        last = Math.min(last, Integer.parseInt(positions[1]));
+      }
+      if (first > last) {
+        sendError(exchange, 416, "Requested range not satisfiable");
+        return;
+      }
+      status = 206;
+      exchange.getResponseHeaders().set("Content-Range",
+          "bytes " + first + "-" + last + "/" + data.length);
+    } else if (sendHashHeaders) {
+      exchange.getResponseHeaders().add("x-goog-hash", "crc32c=" + object.metadata.getCrc32c());
+      exchange.getResponseHeaders().add("x-goog-hash", "md5=" + object.metadata.getMd5Hash());
+    }
+    exchange.getResponseHeaders().set("x-goog-generation",
+        object.metadata.getGeneration().toString());
+    exchange.getResponseHeaders().set("Content-Type", object.metadata.getContentType());
+    int length = last - first + 1;
+    exchange.sendResponseHeaders(status, length == 0 ? -1 : length);
+    if (length > 0) {
+      if (corruptDownloads) {
+        data = data.clone();
+        data[first] ^= 1;
+      }
+      OutputStream out = exchange.getResponseBody();
+      out.write(data, first, length);
+      out.close();
+    }
+  }
+
+  private void handleList(HttpExchange exchange, String bucketName, Map<String, String> query)
+      throws IOException {
+    String prefix = query.containsKey("prefix") ? query.get("prefix") : "";
+    String delimiter = query.get("delimiter");
+    int maxResults = query.containsKey("maxResults")
+        ? Integer.parseInt(query.get("maxResults")) : DEFAULT_MAX_RESULTS;
+    NavigableMap<String, StoredObject> bucket = bucket(bucketName);
+    // The page token is the key to continue after.
+    String pageToken = query.containsKey("pageToken") ? query.get("pageToken") : prefix;
+    NavigableMap<String, StoredObject> remaining =
+        bucket.tailMap(pageToken, !query.containsKey("pageToken"));
+
+    List<StorageObject> items = Lists.newArrayList();
+    List<String> prefixes = Lists.newArrayList();
+    String lastKey = null;
+    String nextPageToken = null;
+    for (Map.Entry<String, StoredObject> entry = remaining.firstEntry(); entry != null;) {
+      String name = entry.getKey();
+      if (!name.startsWith(prefix)) {
+        break;
+      }
+      if (items.size() + prefixes.size() == maxResults) {
+        nextPageToken = lastKey;
+        break;
+      }
+      int delimiterIndex = delimiter == null ? -1 : name.indexOf(delimiter, prefix.length());
+      if (delimiterIndex >= 0) {
+        String subPrefix = name.substring(0, delimiterIndex + delimiter.length());
+        prefixes.add(subPrefix);
+        // Skip the rest of the names under the sub-prefix.
+        lastKey = subPrefix + Character.MAX_VALUE;
+      } else {
+        items.add(entry.getValue().metadata);
+        lastKey = name;
+      }
+      entry = bucket.higherEntry(lastKey);
+    }
+    Objects objects = new Objects()
+        .setItems(items.isEmpty() ? null : items)
+        .setPrefixes(prefixes.isEmpty() ? null : prefixes)
+        .setNextPageToken(nextPageToken);
+    sendJson(exchange, 200, jsonFactory.toString(objects));
+  }
+
+  private void handleDelete(HttpExchange exchange, String bucketName, String objectName)
+      throws IOException {
+    if (bucket(bucketName).remove(objectName) == null) {
+      sendError(exchange, 404, "No such object: " + bucketName + "/" + objectName);
+      return;
+    }
+    exchange.sendResponseHeaders(204, -1);
+  }
+
+  private void handleCompose(HttpExchange exchange, String bucketName, String objectName)
+      throws IOException {
+    ComposeRequest request = jsonFactory.fromInputStream(
+        new ByteArrayInputStream(requestBody(exchange)), ComposeRequest.class);
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    for (ComposeRequest.SourceObjects source : request.getSourceObjects()) {
+      StoredObject object = lookup(bucketName, source.getName());
+      if (object == null) {
+        sendError(exchange, 404, "No such object: " + bucketName + "/" + source.getName());
+        return;
+      }
+      data.write(object.data);
+    }
+    StorageObject metadata = request.getDestination() == null
+        ? new StorageObject() : request.getDestination().clone();
+    StorageObject composed = store(metadata.setBucket(bucketName).setName(objectName),
+        data.toByteArray());
+    // Composite objects have no MD5.
+    composed.setMd5Hash(null);
+    sendJson(exchange, 200, jsonFactory.toString(composed));
+  }
+
+  private void handleUploadStart(HttpExchange exchange, String bucketName) throws IOException {
+    byte[] body = requestBody(exchange);
+    StorageObject metadata = body.length == 0 ? new StorageObject()
+        : jsonFactory.fromString(new String(body, "UTF-8"), StorageObject.class);
+    metadata.setBucket(bucketName);
+    if (metadata.getName() == null) {
+      metadata.setName(parseQuery(exchange.getRequestURI().getRawQuery()).get("name"));
+    }
+    if (metadata.getContentType() == null) {
+      metadata.setContentType(exchange.getRequestHeaders().getFirst("X-Upload-Content-Type"));
+    }
+    String sessionId = String.valueOf(nextSessionId.getAndIncrement());
+    sessions.put(sessionId, new UploadSession(metadata));
+    exchange.getResponseHeaders().set("Location", getRootUrl() + SESSION_PATH.substring(1)
+        + sessionId);
+    exchange.sendResponseHeaders(200, -1);
+  }
+
+  /**
+   * Answers a batch of object metadata gets. Each part of the request is an HTTP request like
+   * "GET http://host/storage/v1/b/bucket/o/object?fields=... HTTP/1.1" followed by headers; each
+   * part of the response is the HTTP response to it.
+   */
+  private void handleBatch(HttpExchange exchange) throws IOException {
+    String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+    int boundaryStart = contentType == null ? -1 : contentType.indexOf("boundary=");
+    if (boundaryStart == -1) {
+      sendError(exchange, 400, "Missing multipart boundary");
+      return;
+    }
+    String delimiter = "--" + contentType.substring(boundaryStart + "boundary=".length());
+    String body = new String(requestBody(exchange), "UTF-8");
+    StringBuilder response = new StringBuilder();
+    for (String part : body.split(Pattern.quote(delimiter))) {
+      int requestStart = part.indexOf("\r\n\r\n");
+      if (requestStart == -1) {
+        continue;
+      }
+      String[] requestLine = part.substring(requestStart + 4).split("\r\n", 2)[0].split(" ");
+      int status = 200;
+      String json;
+      String path = requestLine.length == 3 ? URI.create(requestLine[1]).getRawPath() : "";
+      List<String> segments = requestLine[0].equals("GET") && path.startsWith(SERVICE_PATH)
+          ? splitPath(path.substring(SERVICE_PATH.length())) : null;
+      if (segments == null || segments.size() != 3 || !segments.get(1).equals("o")) {
+        status = 501;
+        json = "{\"error\": {\"code\": 501, \"message\": \"Only object gets are supported\"}}";
+      } else {
+        StoredObject object = lookup(segments.get(0), segments.get(2));
+        if (object == null) {
+          status = 404;
+          json = "{\"error\": {\"code\": 404, \"message\": "
+              + jsonFactory.toString("No such object: " + segments.get(0) + "/" + segments.get(2))
+              + "}}";
+        } else {
+          json = jsonFactory.toString(object.metadata);
+        }
+      }
+      byte[] jsonBytes = json.getBytes("UTF-8");
+      response.append("--").append(BATCH_BOUNDARY).append("\r\n")
+          .append("Content-Type: application/http\r\n\r\n")
+          .append("HTTP/1.1 ").append(status).append(status == 200 ? " OK" : " Error")
+          .append("\r\nContent-Type: application/json; charset=UTF-8\r\nContent-Length: ")
+          .append(jsonBytes.length).append("\r\n\r\n").append(json).append("\r\n");
+    }
+    response.append("--").append(BATCH_BOUNDARY).append("--\r\n");
+    byte[] responseBytes = response.toString().getBytes("UTF-8");
+    exchange.getResponseHeaders().set("Content-Type",
+        "multipart/mixed; boundary=" + BATCH_BOUNDARY);
+    exchange.sendResponseHeaders(200, responseBytes.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(responseBytes);
+    out.close();
+  }
+
+  private void handleMultipartUpload(HttpExchange exchange, String bucketName)
+      throws IOException {
+    String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+    int boundaryStart = contentType == null ? -1 : contentType.indexOf("boundary=");
+    if (boundaryStart == -1) {
+      sendError(exchange, 400, "Missing multipart boundary");
+      return;
+    }
+    // Each part is "--boundary\r\n", headers, a blank line and the content, followed by "\r\n".
+    // ISO-8859-1 maps bytes to chars one to one, so offsets in the string are offsets in the body.
+    byte[] body = requestBody(exchange);
+    String text = new String(body, "ISO-8859-1");
+    String delimiter = "\r\n--" + contentType.substring(boundaryStart + "boundary=".length());
+    List<byte[]> parts = Lists.newArrayList();
+    int partStart = ("\r\n" + text).indexOf(delimiter);
+    while (partStart != -1 && parts.size() < 2) {
+      int contentStart = text.indexOf("\r\n\r\n", partStart) + 4;
+      int contentEnd = text.indexOf(delimiter, contentStart);
+      if (contentStart < 4 || contentEnd == -1) {
+        break;
+      }
+      parts.add(Arrays.copyOfRange(body, contentStart, contentEnd));
+      partStart = contentEnd + 2;
+    }
+    if (parts.size() != 2) {
+      sendError(exchange, 400, "Expected metadata and media parts");
+      return;
+    }
+    StorageObject metadata =
+        jsonFactory.fromString(new String(parts.get(0), "UTF-8"), StorageObject.class);
+    metadata.setBucket(bucketName);
+    if (checkCrc32c(exchange, metadata, parts.get(1))) {
+      sendStored(exchange, store(metadata, parts.get(1)));
+    }
+  }
+
+  private void handleUploadChunk(HttpExchange exchange, String sessionId) throws IOException {
+    UploadSession session = sessions.get(sessionId);
+    if (session == null) {
+      sendError(exchange, 404, "No such upload session: " + sessionId);
+      return;
+    }
+    byte[] chunk = requestBody(exchange);
+    // Content-Range is "bytes first-last/total", "bytes first-last/*" or "bytes */total".
+    String contentRange = exchange.getRequestHeaders().getFirst("Content-Range");
+    long total = -1;
+    synchronized (session) {
+      if (contentRange != null) {
+        String[] rangeAndTotal = contentRange.substring("bytes ".length()).split("/");
+        if (!rangeAndTotal[0].equals("*")) {
+          long first = Long.parseLong(rangeAndTotal[0].split("-")[0]);
+          if (first != session.data.size()) {
+            sendError(exchange, 400, "Expected chunk at " + session.data.size() + ", got "
+                + contentRange);
+            return;
+          }
+        }
+        if (!rangeAndTotal[1].equals("*")) {
+          total = Long.parseLong(rangeAndTotal[1]);
+        }
+      } else {
+        total = session.data.size() + chunk.length;
+      }
+      session.data.write(chunk);
+      if (total == -1 || session.data.size() < total) {
+        if (session.data.size() > 0) {
+          exchange.getResponseHeaders().set("Range", "bytes=0-" + (session.data.size() - 1));
+        }
+        exchange.sendResponseHeaders(308, -1);
+        return;
+      }
+      sessions.remove(sessionId);
+    }
+    byte[] data = session.data.toByteArray();
+    if (checkCrc32c(exchange, session.metadata, data)) {
+      sendStored(exchange, store(session.metadata, data));
+    }
+  }
+
+  /**
+   * Sets whether full downloads have {@code x-goog-hash} headers, as GCS sends them, or none, as
+   * some proxies and caches serve them.
+   */
+  public void setSendHashHeaders(boolean sendHashHeaders) {
+    this.sendHashHeaders = sendHashHeaders;
+  }
+
+  /** Sets whether media downloads have their first byte altered, as if corrupted in transit. */
+  public void setCorruptDownloads(boolean corruptDownloads) {
+    this.corruptDownloads = corruptDownloads;
+  }
+
+  /** Sends the metadata of an uploaded object, or a 503 if {@link #failUploadsMatching} says so. */
+  private void sendStored(HttpExchange exchange, StorageObject stored) throws IOException {
+    Pattern pattern = failingUploads;
+    if (pattern != null && pattern.matcher(stored.getName()).matches()) {
+      sendError(exchange, 503, "Upload of " + stored.getName() + " made to fail");
+    } else {
+      sendJson(exchange, 200, jsonFactory.toString(stored));
+    }
+  }
+
+  /** Sends a 400 and returns false if the metadata has a CRC32C that doesn't match the data. */
+  private boolean checkCrc32c(HttpExchange exchange, StorageObject metadata, byte[] data)
+      throws IOException {
+    if (metadata.getCrc32c() == null) {
+      return true;
+    }
+    ObjectHasher hasher = new ObjectHasher();
+    hasher.update(data, 0, data.length);
+    if (metadata.getCrc32c().equals(hasher.getCrc32c())) {
+      return true;
+    }
+    sendError(exchange, 400, "Provided CRC32C \"" + metadata.getCrc32c()
+        + "\" doesn't match calculated CRC32C \"" + hasher.getCrc32c() + "\".");
+    return false;
+  }
+
+  private StorageObject store(StorageObject metadata, byte[] data) {
+    ObjectHasher hasher = new ObjectHasher();
+    hasher.update(data, 0, data.length);
+    StorageObject stored = metadata.clone()
+        .setId(metadata.getBucket() + "/" + metadata.getName())
+        .setGeneration(nextGeneration.getAndIncrement())
+        .setSize(BigInteger.valueOf(data.length))
+        .setMd5Hash(hasher.getMd5Hash())
+        .setCrc32c(hasher.getCrc32c());
+    if (stored.getContentType() == null) {
+      stored.setContentType("application/octet-stream");
+    }
+    bucket(metadata.getBucket()).put(metadata.getName(), new StoredObject(stored, data));
+    return stored.clone();
+  }
+
+  private StoredObject lookup(String bucketName, String objectName) {
+    return bucket(bucketName).get(objectName);
+  }
+
+  private NavigableMap<String, StoredObject> bucket(String bucketName) {
+    NavigableMap<String, StoredObject> bucket = buckets.get(bucketName);
+    if (bucket == null) {
+      buckets.putIfAbsent(bucketName, new ConcurrentSkipListMap<String, StoredObject>());
+      bucket = buckets.get(bucketName);
+    }
+    return bucket;
+  }
+
+  /**
+   * Returns the request body, decompressed if the client gzipped it. The body is always read to
+   * the end, so the connection can be reused.
+   */
+  private static byte[] requestBody(HttpExchange exchange) throws IOException {
+    byte[] body = ByteStreams.toByteArray(exchange.getRequestBody());
+    if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+      body = ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(body)));
+    }
+    return body;
+  }
+
+  private void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+    byte[] body = json.getBytes("UTF-8");
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+    exchange.sendResponseHeaders(status, body.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(body);
+    out.close();
+  }
+
+  private void sendError(HttpExchange exchange, int status, String message) throws IOException {
+    sendJson(exchange, status, "{\"error\": {\"code\": " + status + ", \"message\": "
+        + jsonFactory.toString(message) + "}}");
+  }
+
+  private static List<String> splitPath(String path) throws UnsupportedEncodingException {
+    List<String> segments = Lists.newArrayList();
+    for (String segment : path.split("/", -1)) {
+      segments.add(decode(segment));
+    }
+    return segments;
+  }
+
+  private static Map<String, String> parseQuery(String rawQuery)
+      throws UnsupportedEncodingException {
+    Map<String, String> query = Maps.newHashMap();
+    if (rawQuery != null) {
+      for (String parameter : rawQuery.split("&")) {
+        int equals = parameter.indexOf('=');
+        if (equals > 0) {
+          query.put(decode(parameter.substring(0, equals)),
+              decode(parameter.substring(equals + 1)));
+        }
+      }
+    }
+    return query;
+  }
+
+  /** Percent-decodes a URL component; unlike form decoding, '+' stays a plus. */
+  private static String decode(String component) throws UnsupportedEncodingException {
+    return URLDecoder.decode(component.replace("+", "%2B"), "UTF-8");
+  }
+}
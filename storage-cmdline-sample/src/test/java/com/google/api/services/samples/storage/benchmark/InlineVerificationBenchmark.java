@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.storage.benchmark;
+
+import com.google.api.services.samples.storage.cmdline.Helpers;
+import com.google.api.services.samples.storage.util.ObjectHasher;
+import com.google.common.io.ByteStreams;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Measures the CPU cost per GB of verifying object data inline with {@link ObjectHasher}, by
+ * streaming generated data to a null sink with and without hashing. No network is involved, so
+ * the difference is the pure hashing overhead an upload or download would pay.
+ *
+ * <p>Usage: {@code InlineVerificationBenchmark [megabytes] [iterations]}
+ */
+public class InlineVerificationBenchmark {
+
+  private static final long BYTES_PER_GB = 1024L * 1024 * 1024;
+
+  public static void main(String[] args) throws IOException {
+    long size = (args.length > 0 ? Long.parseLong(args[0]) : 1024) * 1024 * 1024;
+    int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+    // Warm up both paths so the JIT has compiled them before measuring.
+    run(size, false);
+    run(size, true);
+
+    long plainNanos = Long.MAX_VALUE;
+    long verifiedNanos = Long.MAX_VALUE;
+    for (int i = 0; i < iterations; i++) {
+      plainNanos = Math.min(plainNanos, run(size, false));
+      verifiedNanos = Math.min(verifiedNanos, run(size, true));
+    }
+    double plainMsPerGb = plainNanos / 1e6 * BYTES_PER_GB / size;
+    double verifiedMsPerGb = verifiedNanos / 1e6 * BYTES_PER_GB / size;
+    System.out.printf("plain:    %8.1f ms/GB%n", plainMsPerGb);
+    System.out.printf("verified: %8.1f ms/GB (MD5 + CRC32C)%n", verifiedMsPerGb);
+    System.out.printf("overhead: %8.1f ms/GB%n", verifiedMsPerGb - plainMsPerGb);
+  }
+
+  /** Streams {@code size} bytes to a null sink and returns the elapsed nanoseconds. */
+  private static long run(long size, boolean verify) throws IOException {
+    InputStream data = new Helpers.RandomDataBlockInputStream(size, 1024 * 1024);
+    ObjectHasher hasher = new ObjectHasher();
+    if (verify) {
+      data = hasher.wrap(data);
+    }
+    long start = System.nanoTime();
+    ByteStreams.copy(data, ByteStreams.nullOutputStream());
+    if (verify) {
+      hasher.getCrc32c();
+    }
+    return System.nanoTime() - start;
+  }
+}
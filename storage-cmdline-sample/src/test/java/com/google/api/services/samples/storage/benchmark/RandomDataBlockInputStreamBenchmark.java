@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.storage.benchmark;
+
+import com.google.api.services.samples.storage.cmdline.Helpers;
+
+/**
+ * Measures the read throughput of {@link Helpers.RandomDataBlockInputStream} for several block and
+ * read buffer sizes, to make sure the generator is never what limits an upload throughput test.
+ *
+ * <p>Usage: {@code RandomDataBlockInputStreamBenchmark [megabytes] [iterations]}
+ */
+public class RandomDataBlockInputStreamBenchmark {
+
+  private static final int[] BLOCK_SIZES = {1024, 64 * 1024, 1024 * 1024};
+  private static final int[] READ_SIZES = {8 * 1024, 64 * 1024, 1024 * 1024};
+
+  public static void main(String[] args) {
+    long size = (args.length > 0 ? Long.parseLong(args[0]) : 1024) * 1024 * 1024;
+    int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+    System.out.printf("%10s %10s %12s%n", "block", "read", "MB/s");
+    for (int blockSize : BLOCK_SIZES) {
+      for (int readSize : READ_SIZES) {
+        // The first run warms up the JIT; report the best of the rest.
+        run(size, blockSize, readSize);
+        long bestNanos = Long.MAX_VALUE;
+        for (int i = 0; i < iterations; i++) {
+          bestNanos = Math.min(bestNanos, run(size, blockSize, readSize));
+        }
+        System.out.printf("%10d %10d %12.1f%n", blockSize, readSize,
+            size / (1024.0 * 1024) / (bestNanos / 1e9));
+      }
+    }
+  }
+
+  /** Reads the whole stream and returns the elapsed nanoseconds. */
+  private static long run(long size, int blockSize, int readSize) {
+    Helpers.RandomDataBlockInputStream data =
+        new Helpers.RandomDataBlockInputStream(size, blockSize, 0, 0);
+    byte[] buffer = new byte[readSize];
+    long start = System.nanoTime();
+    // Read at an offset, which the generator used to get wrong.
+    while (data.read(buffer, 1, readSize - 1) != -1) {
+    }
+    return System.nanoTime() - start;
+  }
+}
@@ -0,0 +1,395 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.storage.benchmark;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.samples.storage.cmdline.Helpers;
+import com.google.api.services.samples.storage.examples.ObjectsDownloadExample;
+import com.google.api.services.samples.storage.examples.ObjectsListExample;
+import com.google.api.services.samples.storage.examples.ObjectsUploadExample;
+import com.google.api.services.samples.storage.util.AdaptiveChunkSizePolicy;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the upload, download and list examples against an in-process {@link FakeStorageServer}
+ * and reports throughput, latency percentiles and client-side allocation for each configuration,
+ * so regressions show up without touching real buckets.
+ *
+ * <p>Sweeps object size, chunk size and gzip for resumable uploads (plus adaptive chunk sizing),
+ * and object size and concurrency for parallel composite uploads, downloads and listing. The fake
+ * server runs in the same JVM, so absolute numbers are an upper bound; compare them between runs
+ * on the same host.
+ *
+ * <p>Usage: {@code StorageBenchmark [iterations]}, or {@code StorageBenchmark smoke} to run every
+ * operation once on the smallest configurations and check the results, which exits with a non-zero
+ * status if any operation fails.
+ */
+public class StorageBenchmark {
+
+  private static final String BUCKET_NAME = "benchmark-bucket";
+  private static final int MB = 1024 * 1024;
+
+  private static final int[] OBJECT_SIZES = {1 * MB, 16 * MB, 64 * MB};
+  private static final int[] CHUNK_SIZES = {256 * 1024, 1 * MB, 8 * MB};
+  private static final int[] CONCURRENCIES = {1, 4, 8};
+  private static final boolean[] GZIP = {false, true};
+
+  /** Objects in the bucket for the list benchmarks, spread over this many prefixes. */
+  private static final int LIST_OBJECT_COUNT = 20000;
+  private static final int LIST_PREFIX_COUNT = 50;
+
+  // The smoke run covers every code path, including multi-slice and multi-range ones.
+  private static final int[] SMOKE_OBJECT_SIZES = {1 * MB};
+  private static final int[] SMOKE_CHUNK_SIZES = {256 * 1024};
+  private static final int[] SMOKE_CONCURRENCIES = {1, 4};
+  private static final int SMOKE_LIST_OBJECT_COUNT = 500;
+
+  private final Storage storage;
+  private final FakeStorageServer server;
+  private final int iterations;
+  private final boolean smoke;
+  private final int[] objectSizes;
+  private final int[] chunkSizes;
+  private final int[] concurrencies;
+  private final int listObjectCount;
+
+  /** One measured operation, run {@link #iterations} times after a warm-up run. */
+  private abstract static class Operation {
+    final String name;
+
+    Operation(String name) {
+      this.name = name;
+    }
+
+    /** Runs the operation once and returns the number of bytes (or items) it transferred. */
+    abstract long run() throws IOException;
+  }
+
+  public StorageBenchmark(FakeStorageServer server, int iterations) {
+    this(server, iterations, false);
+  }
+
+  /**
+   * @param smoke whether to only run the smallest configurations and check their results, rather
+   *     than sweep all configurations
+   */
+  public StorageBenchmark(FakeStorageServer server, int iterations, boolean smoke) {
+    this.server = server;
+    this.iterations = iterations;
+    this.smoke = smoke;
+    objectSizes = smoke ? SMOKE_OBJECT_SIZES : OBJECT_SIZES;
+    chunkSizes = smoke ? SMOKE_CHUNK_SIZES : CHUNK_SIZES;
+    concurrencies = smoke ? SMOKE_CONCURRENCIES : CONCURRENCIES;
+    listObjectCount = smoke ? SMOKE_LIST_OBJECT_COUNT : LIST_OBJECT_COUNT;
+    HttpTransport httpTransport = new NetHttpTransport();
+    storage = new Storage.Builder(httpTransport, JacksonFactory.getDefaultInstance(), null)
+        .setRootUrl(server.getRootUrl())
+        .setApplicationName("Google-StorageBenchmark/1.0").build();
+  }
+
+  public static void main(String[] args) throws IOException {
+    boolean smoke = args.length > 0 && args[0].equals("smoke");
+    int iterations = smoke ? 1 : args.length > 0 ? Integer.parseInt(args[0]) : 5;
+    FakeStorageServer server = new FakeStorageServer();
+    try {
+      new StorageBenchmark(server, iterations, smoke).runAll();
+    } catch (IOException e) {
+      if (!smoke) {
+        throw e;
+      }
+      e.printStackTrace();
+      System.exit(1);
+    } finally {
+      server.stop();
+    }
+  }
+
+  public void runAll() throws IOException {
+    System.out.printf("%-52s %10s %10s %10s %14s%n",
+        "operation", "MB/s", "p50 ms", "p99 ms", "alloc MB/s");
+    for (int size : objectSizes) {
+      for (int chunkSize : chunkSizes) {
+        for (boolean gzip : GZIP) {
+          measure(upload(size, chunkSize, gzip), true);
+        }
+      }
+    }
+    for (int size : objectSizes) {
+      measure(adaptiveUpload(size), true);
+    }
+    for (int size : objectSizes) {
+      for (int concurrency : concurrencies) {
+        measure(compositeUpload(size, concurrency), true);
+      }
+    }
+    for (int size : objectSizes) {
+      measure(download(size), true);
+      for (int concurrency : concurrencies) {
+        measure(parallelDownload(size, concurrency), true);
+      }
+    }
+    server.clear();
+    populateListBucket();
+    measure(list(), false);
+    for (int concurrency : concurrencies) {
+      measure(concurrentList(concurrency), false);
+    }
+    server.clear();
+  }
+
+  private Operation upload(final int size, final int chunkSize, final boolean gzip) {
+    return new Operation(String.format("upload %dMB chunk=%dKB gzip=%s", size / MB,
+        chunkSize / 1024, gzip)) {
+      @Override
+      long run() throws IOException {
+        // Half of each block is zeros, so gzip has something to compress.
+        Helpers.RandomDataBlockInputStream data =
+            new Helpers.RandomDataBlockInputStream(size, 64 * 1024, 0, 0.5);
+        StorageObject object = new StorageObject().setBucket(BUCKET_NAME).setName("upload");
+        ObjectsUploadExample.uploadWithMetadata(storage, object, data, chunkSize, gzip);
+        return size;
+      }
+    };
+  }
+
+  private Operation adaptiveUpload(final int size) throws IOException {
+    final File file = createTempFile(size);
+    return new Operation(String.format("upload %dMB adaptive chunks", size / MB)) {
+      @Override
+      long run() throws IOException {
+        StorageObject object = new StorageObject().setBucket(BUCKET_NAME).setName("adaptive");
+        ObjectsUploadExample.uploadWithMetadata(storage, object, file,
+            new AdaptiveChunkSizePolicy());
+        return size;
+      }
+    };
+  }
+
+  private Operation compositeUpload(final int size, final int concurrency) throws IOException {
+    final File file = createTempFile(size);
+    return new Operation(String.format("composite upload %dMB slices=%d", size / MB,
+        concurrency)) {
+      @Override
+      long run() throws IOException {
+        StorageObject object = new StorageObject().setBucket(BUCKET_NAME).setName("composite");
+        StorageObject composite = ObjectsUploadExample.uploadParallelComposite(storage, object,
+            file, concurrency, concurrency);
+        if (smoke) {
+          check(composite.getSize().longValue() == size,
+              "composite object has " + composite.getSize() + " bytes, expected " + size);
+        }
+        return size;
+      }
+    };
+  }
+
+  private Operation download(final int size) {
+    server.putObject(BUCKET_NAME, "download", new byte[size]);
+    return new Operation(String.format("download %dMB", size / MB)) {
+      @Override
+      long run() throws IOException {
+        ObjectsDownloadExample.downloadToOutputStream(storage, BUCKET_NAME, "download",
+            ByteStreams.nullOutputStream());
+        return size;
+      }
+    };
+  }
+
+  private Operation parallelDownload(final int size, final int concurrency) throws IOException {
+    server.putObject(BUCKET_NAME, "download", new byte[size]);
+    final File file = createTempFile(0);
+    return new Operation(String.format("parallel download %dMB parallelism=%d", size / MB,
+        concurrency)) {
+      @Override
+      long run() throws IOException {
+        ObjectsDownloadExample.downloadParallel(storage, BUCKET_NAME, "download", file,
+            (size + concurrency - 1) / concurrency, concurrency, 3);
+        if (smoke) {
+          check(file.length() == size,
+              "downloaded " + file.length() + " bytes, expected " + size);
+        }
+        return size;
+      }
+    };
+  }
+
+  private void populateListBucket() {
+    for (int i = 0; i < listObjectCount; i++) {
+      server.putObject(BUCKET_NAME, "list/" + (i % LIST_PREFIX_COUNT) + "/" + i, new byte[0]);
+    }
+  }
+
+  private Operation list() {
+    return new Operation(String.format("list %d objects", listObjectCount)) {
+      @Override
+      long run() throws IOException {
+        long count = 0;
+        for (StorageObject object : ObjectsListExample.list(storage, BUCKET_NAME)) {
+          count++;
+        }
+        if (smoke) {
+          check(count == listObjectCount, "listed " + count + " objects");
+        }
+        return count;
+      }
+    };
+  }
+
+  private Operation concurrentList(final int concurrency) {
+    return new Operation(String.format("concurrent list %d objects parallelism=%d",
+        listObjectCount, concurrency)) {
+      @Override
+      long run() throws IOException {
+        long count = ObjectsListExample.listConcurrently(storage, BUCKET_NAME, "list/", "/",
+            "name,size", concurrency, new ObjectsListExample.ObjectConsumer() {
+              @Override
+              public void accept(StorageObject object) {
+              }
+            });
+        if (smoke) {
+          check(count == listObjectCount, "listed " + count + " objects");
+        }
+        return count;
+      }
+    };
+  }
+
+  /**
+   * Runs the operation and prints a line of results. For list operations ({@code isBytes} false)
+   * the throughput column is thousands of objects per second.
+   */
+  private void measure(Operation operation, boolean isBytes) throws IOException {
+    operation.run();
+    List<Long> latencies = Lists.newArrayList();
+    long units = 0;
+    AllocationSampler sampler = new AllocationSampler();
+    sampler.start();
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      long operationStart = System.nanoTime();
+      units += operation.run();
+      latencies.add(System.nanoTime() - operationStart);
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    long allocated = sampler.finish();
+    Collections.sort(latencies);
+    System.out.printf("%-52s %10.1f %10.1f %10.1f %14.1f%n", operation.name,
+        units / (isBytes ? (double) MB : 1000.0) / seconds,
+        percentile(latencies, 50) / 1e6, percentile(latencies, 99) / 1e6,
+        allocated / (double) MB / seconds);
+  }
+
+  /** Fails the smoke run if a result is wrong. */
+  private static void check(boolean condition, String message) throws IOException {
+    if (!condition) {
+      throw new IOException("Smoke check failed: " + message);
+    }
+  }
+
+  private static long percentile(List<Long> sorted, int percentile) {
+    int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+    return sorted.get(Math.max(0, index));
+  }
+
+  private static File createTempFile(long size) throws IOException {
+    File file = File.createTempFile("storage-benchmark", ".bin");
+    file.deleteOnExit();
+    OutputStream out = new FileOutputStream(file);
+    try {
+      ByteStreams.copy(new Helpers.RandomDataBlockInputStream(size, 64 * 1024), out);
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+
+  /**
+   * Totals the heap allocated by client threads (everything but the fake server's threads) while
+   * running. Threads are polled regularly, so short-lived worker threads are mostly accounted for.
+   */
+  private static class AllocationSampler extends Thread {
+
+    private final com.sun.management.ThreadMXBean threadBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final Map<Long, Long> initial = Maps.newHashMap();
+    private final Map<Long, Long> latest = Maps.newHashMap();
+    private volatile boolean running = true;
+
+    AllocationSampler() {
+      setDaemon(true);
+      sample(initial);
+    }
+
+    @Override
+    public void run() {
+      while (running) {
+        synchronized (latest) {
+          sample(latest);
+        }
+        try {
+          Thread.sleep(10);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    }
+
+    /** Stops sampling and returns the bytes allocated since construction. */
+    long finish() {
+      running = false;
+      try {
+        join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      sample(latest);
+      long total = 0;
+      for (Map.Entry<Long, Long> entry : latest.entrySet()) {
+        Long before = initial.get(entry.getKey());
+        total += entry.getValue() - (before == null ? 0 : before);
+      }
+      return total;
+    }
+
+    private void sample(Map<Long, Long> allocated) {
+      long[] threadIds = threadBean.getAllThreadIds();
+      long[] bytes = threadBean.getThreadAllocatedBytes(threadIds);
+      ThreadInfo[] threadInfos = threadBean.getThreadInfo(threadIds, 0);
+      for (int i = 0; i < threadIds.length; i++) {
+        if (threadIds[i] == getId() || bytes[i] < 0 || threadInfos[i] == null
+            || threadInfos[i].getThreadName().startsWith(FakeStorageServer.THREAD_NAME_PREFIX)) {
+          continue;
+        }
+        allocated.put(threadIds[i], bytes[i]);
+      }
+    }
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.storage.benchmark;
+
+import com.google.api.client.googleapis.media.MediaHttpUploader;
+import com.google.api.client.http.AbstractInputStreamContent;
+import com.google.api.client.http.FileContent;
+import com.google.api.client.http.InputStreamContent;
+import com.google.api.services.samples.storage.cmdline.Helpers;
+import com.google.api.services.samples.storage.util.MappedFileContent;
+import com.google.common.io.ByteStreams;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures heap allocation per GB of file content sent the way {@link MediaHttpUploader} sends
+ * it, for {@link FileContent} and {@link MappedFileContent}. The output goes to a null sink, so
+ * only the cost of getting the bytes out of the content is measured.
+ *
+ * <p>For a resumable upload with a known length, the uploader marks the content stream at the
+ * start of each chunk so it can retry it; a stream without mark support, such as the one from
+ * {@code FileContent}, is first wrapped in a {@link BufferedInputStream}, which then holds a heap
+ * copy of each chunk.
+ *
+ * <p>Usage: {@code UploadContentAllocationBenchmark [megabytes]}
+ */
+public class UploadContentAllocationBenchmark {
+
+  private static final long BYTES_PER_GB = 1024L * 1024 * 1024;
+
+  public static void main(String[] args) throws IOException {
+    long size = (args.length > 0 ? Long.parseLong(args[0]) : 1024) * 1024 * 1024;
+    File file = File.createTempFile("upload-benchmark", ".bin");
+    file.deleteOnExit();
+    OutputStream out = new FileOutputStream(file);
+    try {
+      ByteStreams.copy(new Helpers.RandomDataBlockInputStream(size, 1024 * 1024), out);
+    } finally {
+      out.close();
+    }
+
+    FileContent fileContent = new FileContent("application/octet-stream", file);
+    MappedFileContent mappedContent = new MappedFileContent("application/octet-stream", file);
+    // Warm up, so class loading and JIT compilation are not counted.
+    sendDirect(fileContent);
+    sendDirect(mappedContent);
+    sendResumable(fileContent, size);
+    sendResumable(mappedContent, size);
+
+    System.out.println("Heap allocated per GB sent:");
+    report("direct, FileContent", sendDirect(fileContent), size);
+    report("direct, MappedFileContent", sendDirect(mappedContent), size);
+    report("resumable, FileContent", sendResumable(fileContent, size), size);
+    report("resumable, MappedFileContent", sendResumable(mappedContent, size), size);
+    if (!file.delete()) {
+      System.err.println("Unable to delete " + file);
+    }
+  }
+
+  private static void report(String name, long allocatedBytes, long size) {
+    System.out.printf("%-30s %10.1f KB%n", name,
+        allocatedBytes / 1024.0 * BYTES_PER_GB / size);
+  }
+
+  /** Sends the content as a direct upload does, returning the bytes allocated. */
+  private static long sendDirect(AbstractInputStreamContent content) throws IOException {
+    long before = allocatedBytes();
+    content.writeTo(ByteStreams.nullOutputStream());
+    return allocatedBytes() - before;
+  }
+
+  /** Sends the content in chunks as a resumable upload does, returning the bytes allocated. */
+  private static long sendResumable(AbstractInputStreamContent content, long size)
+      throws IOException {
+    long before = allocatedBytes();
+    InputStream in = content.getInputStream();
+    if (!in.markSupported()) {
+      in = new BufferedInputStream(in);
+    }
+    try {
+      int chunkSize = MediaHttpUploader.DEFAULT_CHUNK_SIZE;
+      for (long sent = 0; sent < size; sent += chunkSize) {
+        int length = (int) Math.min(chunkSize, size - sent);
+        in.mark(length);
+        new InputStreamContent(content.getType(), ByteStreams.limit(in, length))
+            .setLength(length).setRetrySupported(true).setCloseInputStream(false)
+            .writeTo(ByteStreams.nullOutputStream());
+      }
+    } finally {
+      in.close();
+    }
+    return allocatedBytes() - before;
+  }
+
+  private static long allocatedBytes() {
+    return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.storage.examples;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.samples.storage.benchmark.FakeStorageServer;
+import com.google.api.services.storage.Storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Tests {@link ObjectsDownloadExample#downloadToOutputStreamAndVerify} against a
+ * {@link FakeStorageServer}.
+ */
+public class ObjectsDownloadExampleTest {
+
+  private static final String BUCKET_NAME = "bucket";
+  private static final String OBJECT_NAME = "object";
+
+  private FakeStorageServer server;
+  private Storage storage;
+  private byte[] data;
+
+  @Before
+  public void setUp() throws IOException {
+    server = new FakeStorageServer();
+    storage = new Storage.Builder(new NetHttpTransport(), JacksonFactory.getDefaultInstance(), null)
+        .setRootUrl(server.getRootUrl())
+        .setApplicationName("Google-ObjectsDownloadExampleTest/1.0").build();
+    data = new byte[100000];
+    new Random(42).nextBytes(data);
+    server.putObject(BUCKET_NAME, OBJECT_NAME, data);
+  }
+
+  @After
+  public void tearDown() {
+    server.stop();
+  }
+
+  @Test
+  public void testDownloadToOutputStreamAndVerify() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ObjectsDownloadExample.downloadToOutputStreamAndVerify(storage, BUCKET_NAME, OBJECT_NAME,
+        out);
+    assertArrayEquals(data, out.toByteArray());
+  }
+
+  @Test
+  public void testDownloadToOutputStreamAndVerifyWithoutHashHeaders() throws IOException {
+    // The hashes then come from the metadata of the downloaded generation.
+    server.setSendHashHeaders(false);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ObjectsDownloadExample.downloadToOutputStreamAndVerify(storage, BUCKET_NAME, OBJECT_NAME,
+        out);
+    assertArrayEquals(data, out.toByteArray());
+  }
+
+  @Test
+  public void testDownloadToOutputStreamAndVerifyDetectsCorruption() throws IOException {
+    server.setCorruptDownloads(true);
+    assertCorruptionDetected();
+  }
+
+  @Test
+  public void testDownloadToOutputStreamAndVerifyDetectsCorruptionWithoutHashHeaders()
+      throws IOException {
+    server.setCorruptDownloads(true);
+    server.setSendHashHeaders(false);
+    assertCorruptionDetected();
+  }
+
+  private void assertCorruptionDetected() throws IOException {
+    try {
+      ObjectsDownloadExample.downloadToOutputStreamAndVerify(storage, BUCKET_NAME, OBJECT_NAME,
+          new ByteArrayOutputStream());
+      fail("Expected a hash mismatch");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("mismatch"));
+    }
+  }
+}
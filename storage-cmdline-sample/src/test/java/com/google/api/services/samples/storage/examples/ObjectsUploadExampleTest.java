@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.storage.examples;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.samples.storage.benchmark.FakeStorageServer;
+import com.google.api.services.samples.storage.util.ObjectHasher;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.Objects;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests {@link ObjectsUploadExample#uploadParallelComposite} against a {@link FakeStorageServer}.
+ */
+public class ObjectsUploadExampleTest {
+
+  private static final String BUCKET_NAME = "bucket";
+  private static final String OBJECT_NAME = "composite";
+  // Not a multiple of the slice count, so the last slice is shorter than the others.
+  private static final int DATA_LENGTH = 1000003;
+  private static final int SLICE_COUNT = 7;
+  private static final int PARALLELISM = 3;
+
+  private FakeStorageServer server;
+  private Storage storage;
+  private byte[] data;
+  private File file;
+
+  @Before
+  public void setUp() throws IOException {
+    server = new FakeStorageServer();
+    storage = new Storage.Builder(new NetHttpTransport(), JacksonFactory.getDefaultInstance(), null)
+        .setRootUrl(server.getRootUrl())
+        .setApplicationName("Google-ObjectsUploadExampleTest/1.0").build();
+    data = new byte[DATA_LENGTH];
+    new Random(42).nextBytes(data);
+    file = File.createTempFile("composite", ".bin");
+    Files.write(data, file);
+  }
+
+  @After
+  public void tearDown() {
+    server.stop();
+    file.delete();
+  }
+
+  @Test
+  public void testUploadParallelComposite() throws IOException {
+    StorageObject composed = ObjectsUploadExample.uploadParallelComposite(storage,
+        new StorageObject().setBucket(BUCKET_NAME).setName(OBJECT_NAME), file, SLICE_COUNT,
+        PARALLELISM);
+
+    assertEquals(DATA_LENGTH, composed.getSize().longValue());
+    // The upload checked the composed CRC32C against the component CRC32Cs combined; check the
+    // combination is that of the whole file.
+    ObjectHasher hasher = new ObjectHasher();
+    hasher.update(data, 0, data.length);
+    assertEquals(hasher.getCrc32c(), composed.getCrc32c());
+    InputStream in = storage.objects().get(BUCKET_NAME, OBJECT_NAME).executeMediaAsInputStream();
+    try {
+      assertArrayEquals(data, ByteStreams.toByteArray(in));
+    } finally {
+      in.close();
+    }
+    assertEquals(Arrays.asList(OBJECT_NAME), listObjectNames());
+  }
+
+  @Test
+  public void testUploadParallelCompositeDeletesComponentsOnFailure() throws IOException {
+    server.failUploadsMatching(".*_component_.*_3");
+    try {
+      ObjectsUploadExample.uploadParallelComposite(storage,
+          new StorageObject().setBucket(BUCKET_NAME).setName(OBJECT_NAME), file, SLICE_COUNT,
+          PARALLELISM);
+      fail("Expected the upload to fail");
+    } catch (IOException e) {
+      // Expected.
+    }
+    assertEquals(Collections.emptyList(), listObjectNames());
+  }
+
+  @Test
+  public void testUploadParallelCompositeDeletesComponentsOnInterrupt() throws IOException {
+    Thread.currentThread().interrupt();
+    try {
+      ObjectsUploadExample.uploadParallelComposite(storage,
+          new StorageObject().setBucket(BUCKET_NAME).setName(OBJECT_NAME), file, SLICE_COUNT,
+          PARALLELISM);
+      fail("Expected the upload to be interrupted");
+    } catch (IOException e) {
+      // Expected.
+    } finally {
+      assertTrue(Thread.interrupted());
+    }
+    assertEquals(Collections.emptyList(), listObjectNames());
+  }
+
+  private List<String> listObjectNames() throws IOException {
+    List<String> names = Lists.newArrayList();
+    Objects objects = storage.objects().list(BUCKET_NAME).execute();
+    if (objects.getItems() != null) {
+      for (StorageObject object : objects.getItems()) {
+        names.add(object.getName());
+      }
+    }
+    return names;
+  }
+}